@@ -0,0 +1,191 @@
+package i5.las2peer.services.fileService;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact record of how often identifiers are accessed. Frequencies are estimated with a count-min sketch of fixed
+ * size, the identifiers with the highest estimates are kept as candidates for {@link #top(int)}. All counts decay
+ * exponentially with the configured half-life, so the record follows shifts in popularity. The record can be saved to
+ * and restored from a file to survive restarts.
+ */
+class AccessSketch {
+
+	private static final int FORMAT_VERSION = 1;
+	private static final int DEPTH = 4;
+	private static final int WIDTH = 4096;
+	// seeds of the row hash functions
+	private static final int[] SEEDS = { 0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f };
+
+	private final float[][] counts = new float[DEPTH][WIDTH];
+	private final Map<String, Float> candidates = new HashMap<>();
+	private final int maxCandidates;
+	private final long halfLifeMillis;
+	private long lastDecay = System.currentTimeMillis();
+
+	/**
+	 * @param maxCandidates The number of hot identifiers kept for {@link #top(int)}.
+	 * @param halfLifeMillis The time after which counts are halved.
+	 */
+	public AccessSketch(int maxCandidates, long halfLifeMillis) {
+		this.maxCandidates = maxCandidates;
+		this.halfLifeMillis = halfLifeMillis;
+	}
+
+	/**
+	 * Records an access.
+	 *
+	 * @param identifier The accessed identifier.
+	 */
+	public synchronized void record(String identifier) {
+		decay();
+		int hash = identifier.hashCode();
+		float estimate = Float.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			int column = index(hash, row);
+			counts[row][column] += 1;
+			estimate = Math.min(estimate, counts[row][column]);
+		}
+		if (candidates.containsKey(identifier) || candidates.size() < maxCandidates) {
+			candidates.put(identifier, estimate);
+			return;
+		}
+		// replace the coldest candidate if this identifier is hotter
+		String coldest = null;
+		float coldestEstimate = Float.MAX_VALUE;
+		for (Map.Entry<String, Float> candidate : candidates.entrySet()) {
+			if (candidate.getValue() < coldestEstimate) {
+				coldest = candidate.getKey();
+				coldestEstimate = candidate.getValue();
+			}
+		}
+		if (estimate > coldestEstimate) {
+			candidates.remove(coldest);
+			candidates.put(identifier, estimate);
+		}
+	}
+
+	/**
+	 * @param n The maximum number of identifiers.
+	 * @return Returns the most frequently accessed identifiers, hottest first.
+	 */
+	public List<String> top(int n) {
+		return top(n, 0);
+	}
+
+	/**
+	 * @param n The maximum number of identifiers.
+	 * @param minEstimate The minimum decayed access count.
+	 * @return Returns the most frequently accessed identifiers with at least the given count, hottest first. Counts
+	 *         are decayed up to now first, so identifiers that are no longer accessed drop out.
+	 */
+	public synchronized List<String> top(int n, float minEstimate) {
+		decay();
+		List<Map.Entry<String, Float>> sorted = new ArrayList<>(candidates.entrySet());
+		sorted.sort(Map.Entry.<String, Float> comparingByValue().reversed());
+		List<String> result = new ArrayList<>();
+		for (int i = 0; i < sorted.size() && i < n && sorted.get(i).getValue() >= minEstimate; i++) {
+			result.add(sorted.get(i).getKey());
+		}
+		return result;
+	}
+
+	private void decay() {
+		long now = System.currentTimeMillis();
+		long elapsed = now - lastDecay;
+		if (elapsed < halfLifeMillis / 8) {
+			return;
+		}
+		float factor = (float) Math.pow(0.5, (double) elapsed / halfLifeMillis);
+		for (float[] row : counts) {
+			for (int i = 0; i < WIDTH; i++) {
+				row[i] *= factor;
+			}
+		}
+		candidates.replaceAll((identifier, estimate) -> estimate * factor);
+		lastDecay = now;
+	}
+
+	private static int index(int hash, int row) {
+		int h = hash * SEEDS[row];
+		h ^= h >>> 16;
+		return (h & 0x7fffffff) % WIDTH;
+	}
+
+	/**
+	 * Saves the record to a file. The file is replaced atomically.
+	 *
+	 * @param file The target file.
+	 * @throws IOException If writing failed.
+	 */
+	public void save(Path file) throws IOException {
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+		try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+			synchronized (this) {
+				out.writeInt(FORMAT_VERSION);
+				out.writeLong(lastDecay);
+				for (float[] row : counts) {
+					for (float count : row) {
+						out.writeFloat(count);
+					}
+				}
+				out.writeInt(candidates.size());
+				for (Map.Entry<String, Float> candidate : candidates.entrySet()) {
+					byte[] identifier = candidate.getKey().getBytes(StandardCharsets.UTF_8);
+					out.writeInt(identifier.length);
+					out.write(identifier);
+					out.writeFloat(candidate.getValue());
+				}
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Restores a record saved by {@link #save(Path)}. Counts decay for the time the record was not in use.
+	 *
+	 * @param file The file to read.
+	 * @throws IOException If the file can't be read or has an unknown format.
+	 */
+	public synchronized void load(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+			if (in.readInt() != FORMAT_VERSION) {
+				throw new IOException("Unknown access record format in " + file);
+			}
+			long savedDecay = in.readLong();
+			float[][] loaded = new float[DEPTH][WIDTH];
+			for (float[] row : loaded) {
+				for (int i = 0; i < WIDTH; i++) {
+					row[i] = in.readFloat();
+				}
+			}
+			int size = in.readInt();
+			Map<String, Float> loadedCandidates = new HashMap<>();
+			for (int i = 0; i < size; i++) {
+				byte[] identifier = new byte[in.readInt()];
+				in.readFully(identifier);
+				float estimate = in.readFloat();
+				if (loadedCandidates.size() < maxCandidates) {
+					loadedCandidates.put(new String(identifier, StandardCharsets.UTF_8), estimate);
+				}
+			}
+			for (int row = 0; row < DEPTH; row++) {
+				counts[row] = loaded[row];
+			}
+			candidates.clear();
+			candidates.putAll(loadedCandidates);
+			lastDecay = Math.min(savedDecay, System.currentTimeMillis());
+		}
+	}
+
+}
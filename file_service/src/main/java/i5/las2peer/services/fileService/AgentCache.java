@@ -0,0 +1,108 @@
+package i5.las2peer.services.fileService;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import i5.las2peer.api.Context;
+import i5.las2peer.api.security.Agent;
+import i5.las2peer.api.security.AgentAccessDeniedException;
+import i5.las2peer.api.security.AgentNotFoundException;
+import i5.las2peer.api.security.AgentOperationFailedException;
+
+/**
+ * Node-local cache of agents resolved with {@link Context#requestAgent(String)}, mainly the groups files are shared
+ * with. A group agent is only returned unlocked to its members, so entries are kept per requesting agent and a cached
+ * entry also stands for a successful membership check. Entries expire after a time to live, after which changed
+ * memberships take effect. Failed lookups are never cached and remove the entry.
+ */
+class AgentCache {
+
+	private static class Cached {
+
+		private final Agent agent;
+		private final long loaded;
+
+		private Cached(Agent agent, long loaded) {
+			this.agent = agent;
+			this.loaded = loaded;
+		}
+
+	}
+
+	private final ConcurrentHashMap<String, Cached> agents = new ConcurrentHashMap<>();
+	private final SingleFlight<String, Agent> loads = new SingleFlight<>();
+	private final long ttlMillis;
+	private final int maxEntries;
+
+	/**
+	 * @param ttlMillis The time to live of entries, 0 disables the cache.
+	 * @param maxEntries The maximum number of cached agents.
+	 */
+	public AgentCache(long ttlMillis, int maxEntries) {
+		this.ttlMillis = ttlMillis;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Resolves an agent for the main agent of the given context. Concurrent lookups of the same agent by the same
+	 * requester are coalesced.
+	 *
+	 * @param context The context of the requesting agent.
+	 * @param agentId The id of the agent to resolve.
+	 * @return Returns the agent, unlocked if the requester has access to it.
+	 * @throws AgentAccessDeniedException If the requester has no access to the agent.
+	 * @throws AgentNotFoundException If the agent does not exist.
+	 * @throws AgentOperationFailedException If an error occurred on the node.
+	 */
+	public Agent get(Context context, String agentId)
+			throws AgentAccessDeniedException, AgentNotFoundException, AgentOperationFailedException {
+		String key = key(context, agentId);
+		Cached cached = agents.get(key);
+		if (cached != null && System.currentTimeMillis() - cached.loaded <= ttlMillis) {
+			return cached.agent;
+		}
+		try {
+			return loads.execute(key, () -> {
+				Agent agent = context.requestAgent(agentId);
+				put(key, agent);
+				return agent;
+			});
+		} catch (AgentAccessDeniedException | AgentNotFoundException | AgentOperationFailedException
+				| RuntimeException e) {
+			agents.remove(key);
+			throw e;
+		} catch (Exception e) {
+			agents.remove(key);
+			throw new AgentOperationFailedException("Could not resolve agent (" + agentId + "): " + e);
+		}
+	}
+
+	/**
+	 * Removes an agent resolved by the main agent of the given context, e.g. after an operation on its behalf was
+	 * denied.
+	 *
+	 * @param context The context of the requesting agent.
+	 * @param agentId The id of the resolved agent.
+	 */
+	public void invalidate(Context context, String agentId) {
+		agents.remove(key(context, agentId));
+	}
+
+	private void put(String key, Agent agent) {
+		if (ttlMillis <= 0) {
+			return;
+		}
+		if (agents.size() >= maxEntries) {
+			long now = System.currentTimeMillis();
+			agents.values().removeIf(cached -> now - cached.loaded > ttlMillis);
+			if (agents.size() >= maxEntries) {
+				agents.clear();
+			}
+		}
+		agents.put(key, new Cached(agent, System.currentTimeMillis()));
+	}
+
+	private static String key(Context context, String agentId) {
+		return context.getMainAgent().getIdentifier() + "/" + agentId;
+	}
+
+}
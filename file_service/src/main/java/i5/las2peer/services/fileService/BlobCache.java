@@ -0,0 +1,531 @@
+package i5.las2peer.services.fileService;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import i5.las2peer.logging.L2pLogger;
+
+/**
+ * A node-local cache of file contents on disk. Each file version is stored as raw content ({@code .blob}) plus its
+ * serialized metadata ({@code .meta}), named by the hashed identifier and the last modified timestamp of the version.
+ * The cache survives restarts, the modification time of the metadata file records when the version was last
+ * confirmed by the network. Hits are written to the response with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} and never need a network fetch. The las2peer web
+ * connector still buffers the whole response in memory before sending it. If the cache grows beyond its size limit,
+ * the least recently used entries are evicted. Pinned files, which are hot across the service, are never evicted. They
+ * may take up at most half of the size limit.
+ *
+ * <p>
+ * The directory is opened and loaded on first use, because it is named after the service agent, which is not known
+ * before the service is started.
+ */
+class BlobCache {
+
+	private static final L2pLogger logger = L2pLogger.getInstance(BlobCache.class.getName());
+	private static final String CONTENT_SUFFIX = ".blob";
+	private static final String META_SUFFIX = ".meta";
+	// queued writes of new entries, further writes are dropped until the disk catches up
+	private static final int MAX_PENDING_WRITES = 1000;
+
+	/**
+	 * A cached file version.
+	 */
+	public static class Entry {
+
+		private final StoredFileIndex meta;
+		private final Path content;
+		private final long size;
+		private volatile long validated;
+		private volatile long lastAccess;
+
+		private Entry(StoredFileIndex meta, Path content, long size, long validated) {
+			this.meta = meta;
+			this.content = content;
+			this.size = size;
+			this.validated = validated;
+			this.lastAccess = validated;
+		}
+
+		public StoredFileIndex getMeta() {
+			return meta;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return Returns the time the version was last confirmed by the network.
+		 */
+		public long getValidated() {
+			return validated;
+		}
+
+	}
+
+	private final Callable<Path> directorySupplier;
+	private volatile Path directory;
+	private volatile boolean opened;
+	private final long maxBytes;
+	private final long freshnessMillis;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	// the same entries by content hash, for content addressed requests
+	private final ConcurrentHashMap<String, Entry> digests = new ConcurrentHashMap<>();
+	private final AtomicLong totalBytes = new AtomicLong();
+	// sizes of the pinned files by identifier, pinned files are skipped by the eviction
+	private final ConcurrentHashMap<String, Long> pinned = new ConcurrentHashMap<>();
+	// disk writes happen in the background, so a cache miss is not slowed down by the write. Removals are queued
+	// behind the writes and are never dropped, only writes beyond the pending limit are.
+	private final ExecutorService writer;
+	private final AtomicInteger pendingWrites = new AtomicInteger();
+
+	/**
+	 * @param directory Resolves the cache directory on first use.
+	 * @param maxBytes The size limit of the cache.
+	 * @param freshnessMillis The time an entry is served after it was last confirmed by the network.
+	 */
+	public BlobCache(Callable<Path> directory, long maxBytes, long freshnessMillis) {
+		this.directorySupplier = directory;
+		this.maxBytes = maxBytes;
+		this.freshnessMillis = freshnessMillis;
+		this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+				runnable -> {
+					Thread thread = new Thread(runnable, "fileservice-blobcache");
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	/**
+	 * Creates and loads the cache directory, if this did not happen yet.
+	 *
+	 * @return Returns false if the directory could not be created, the cache is disabled then.
+	 */
+	private boolean open() {
+		if (!opened) {
+			synchronized (directorySupplier) {
+				if (!opened) {
+					Path resolved = null;
+					try {
+						resolved = directorySupplier.call();
+						Files.createDirectories(resolved);
+						directory = resolved;
+						load();
+					} catch (Exception e) {
+						logger.log(Level.WARNING, "Could not create blob cache in " + resolved + ". Cache disabled.",
+								e);
+					}
+					opened = true;
+				}
+			}
+		}
+		return directory != null;
+	}
+
+	/**
+	 * Restores the entries of a previous run from disk.
+	 */
+	private void load() {
+		// remove leftovers of writes interrupted by a shutdown
+		try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory, "*.tmp")) {
+			for (Path leftover : leftovers) {
+				Files.deleteIfExists(leftover);
+			}
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Could not remove temporary files from " + directory, e);
+		}
+		try (DirectoryStream<Path> metas = Files.newDirectoryStream(directory, "*" + META_SUFFIX)) {
+			for (Path metaFile : metas) {
+				Path content = contentPath(metaFile);
+				try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(metaFile))) {
+					StoredFileIndex meta = (StoredFileIndex) in.readObject();
+					long size = Files.size(content);
+					if (size != meta.getFileSize()) {
+						throw new IOException("Size mismatch of cached content " + content);
+					}
+					Entry entry = new Entry(meta, content, size,
+							Files.getLastModifiedTime(metaFile).toMillis());
+					Entry existing = entries.get(meta.getIdentifier());
+					if (existing != null && existing.meta.getLastModified() >= meta.getLastModified()) {
+						delete(entry);
+					} else {
+						if (existing != null) {
+							delete(existing);
+							unindex(existing);
+							totalBytes.addAndGet(-existing.size);
+						}
+						entries.put(meta.getIdentifier(), entry);
+						index(entry);
+						totalBytes.addAndGet(size);
+					}
+				} catch (Exception e) {
+					logger.log(Level.FINE, "Dropping unreadable cache entry " + metaFile, e);
+					Files.deleteIfExists(metaFile);
+					Files.deleteIfExists(content);
+				}
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not read blob cache directory " + directory, e);
+		}
+		logger.info("blob cache loaded " + entries.size() + " entries with " + totalBytes.get() + " bytes");
+	}
+
+	/**
+	 * Looks up a cached version of the given file that was confirmed by the network within the freshness period.
+	 *
+	 * @param identifier The file identifier.
+	 * @return Returns the entry or {@code null} if there is no fresh entry.
+	 */
+	public Entry get(String identifier) {
+		if (!open()) {
+			return null;
+		}
+		Entry entry = entries.get(identifier);
+		if (entry == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		if (now - entry.validated > freshnessMillis) {
+			return null;
+		}
+		entry.lastAccess = now;
+		return entry;
+	}
+
+	/**
+	 * Looks up the cached version of the given file, regardless of when it was confirmed by the network.
+	 *
+	 * @param identifier The file identifier.
+	 * @return Returns the entry or {@code null} if the file is not cached.
+	 */
+	public Entry peek(String identifier) {
+		if (!open()) {
+			return null;
+		}
+		return entries.get(identifier);
+	}
+
+	/**
+	 * Looks up a cached file by the hash of its content. Content addressed entries never become stale, so the
+	 * freshness period does not apply.
+	 *
+	 * @param sha256 The hex encoded SHA-256 hash of the content.
+	 * @return Returns the entry or {@code null} if no cached file has this content.
+	 */
+	public Entry getByDigest(String sha256) {
+		if (!open()) {
+			return null;
+		}
+		Entry entry = digests.get(sha256);
+		if (entry != null) {
+			entry.lastAccess = System.currentTimeMillis();
+		}
+		return entry;
+	}
+
+	/**
+	 * Opens the content of an entry and returns it as streaming response entity. The channel is opened immediately,
+	 * so a concurrent eviction can't remove the content before it is sent.
+	 *
+	 * @param entry The cache entry to serve.
+	 * @return Returns the response entity or {@code null} if the content is gone or truncated.
+	 */
+	public StreamingOutput open(Entry entry) {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(entry.content, StandardOpenOption.READ);
+			if (channel.size() < entry.size) {
+				channel.close();
+				throw new IOException("Cached content " + entry.content + " is truncated");
+			}
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Could not open cache entry " + entry.content, e);
+			discard(entry);
+			return null;
+		}
+		return output -> {
+			try (FileChannel in = channel) {
+				WritableByteChannel out = Channels.newChannel(output);
+				long position = 0;
+				while (position < entry.size) {
+					long sent = in.transferTo(position, entry.size - position, out);
+					// truncated after it was opened, the response is already committed and can only be aborted
+					if (sent == 0 && position >= in.size()) {
+						discard(entry);
+						throw new IOException("Cached content " + entry.content + " is truncated");
+					}
+					position += sent;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Reads the content of an entry into memory.
+	 *
+	 * @param entry The cache entry.
+	 * @return Returns the content.
+	 * @throws IOException If the content was evicted or truncated meanwhile.
+	 */
+	public byte[] read(Entry entry) throws IOException {
+		byte[] content = Files.readAllBytes(entry.content);
+		if (content.length != entry.size) {
+			discard(entry);
+			throw new IOException("Cached content " + entry.content + " has " + content.length + " instead of "
+					+ entry.size + " bytes");
+		}
+		return content;
+	}
+
+	/**
+	 * Stores the given file version in the cache or marks an identical cached version as confirmed.
+	 *
+	 * @param file The file as fetched from or stored in the network.
+	 */
+	public void put(StoredFile file) {
+		if (!open()) {
+			return;
+		}
+		Entry existing = entries.get(file.getIdentifier());
+		if (existing != null && existing.meta.getLastModified() == file.getLastModified()) {
+			existing.validated = System.currentTimeMillis();
+			enqueueWrite(() -> touch(existing));
+			return;
+		}
+		if (file.getFileSize() > maxBytes) {
+			return;
+		}
+		enqueueWrite(() -> write(file));
+	}
+
+	private void enqueueWrite(Runnable write) {
+		if (pendingWrites.incrementAndGet() > MAX_PENDING_WRITES) {
+			// the cache is only an optimization, the entry is written with a later request
+			pendingWrites.decrementAndGet();
+			return;
+		}
+		writer.execute(() -> {
+			try {
+				write.run();
+			} finally {
+				pendingWrites.decrementAndGet();
+			}
+		});
+	}
+
+	private void write(StoredFile file) {
+		Entry current = entries.get(file.getIdentifier());
+		if (current != null && current.meta.getLastModified() > file.getLastModified()) {
+			// a newer version was written meanwhile
+			return;
+		}
+		String name = hash(file.getIdentifier()) + "-" + file.getLastModified();
+		Path content = directory.resolve(name + CONTENT_SUFFIX);
+		Path metaFile = directory.resolve(name + META_SUFFIX);
+		try {
+			// write to temporary files first, so a crash never leaves a partial entry behind
+			Path tmpContent = Files.createTempFile(directory, name, ".tmp");
+			Files.write(tmpContent, file.getContent());
+			Files.move(tmpContent, content, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			StoredFileIndex meta = new StoredFileIndex(file.getIdentifier(), file.getName(), file.getLastModified(),
+					file.getOwnerId(), file.getMimeType(), file.getDescription(), file.getFileSize());
+			meta.setSha256(file.getSha256());
+			Path tmpMeta = Files.createTempFile(directory, name, ".tmp");
+			try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(tmpMeta))) {
+				out.writeObject(meta);
+			}
+			Files.move(tmpMeta, metaFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Entry entry = new Entry(meta, content, file.getFileSize(), System.currentTimeMillis());
+			Entry previous = entries.put(file.getIdentifier(), entry);
+			totalBytes.addAndGet(entry.size);
+			if (previous != null) {
+				if (!previous.content.equals(entry.content)) {
+					delete(previous);
+				}
+				unindex(previous);
+				totalBytes.addAndGet(-previous.size);
+			}
+			index(entry);
+			evict();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not write file (" + file.getIdentifier() + ") to blob cache", e);
+		}
+	}
+
+	private void touch(Entry entry) {
+		try {
+			Files.setLastModifiedTime(metaPath(entry.content), FileTime.fromMillis(entry.validated));
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Could not touch cache entry " + entry.content, e);
+		}
+	}
+
+	/**
+	 * Removes the cached versions of the given file.
+	 *
+	 * @param identifier The file identifier.
+	 */
+	public void invalidate(String identifier) {
+		if (!open()) {
+			return;
+		}
+		remove(identifier);
+		// remove again after writes that were queued before this call
+		writer.execute(() -> remove(identifier));
+	}
+
+	private void remove(String identifier) {
+		Entry entry = entries.remove(identifier);
+		if (entry != null) {
+			unindex(entry);
+			totalBytes.addAndGet(-entry.size);
+			writer.execute(() -> delete(entry));
+		}
+	}
+
+	/**
+	 * Excludes the given file from the eviction. The file does not need to be cached yet.
+	 *
+	 * @param identifier The file identifier.
+	 * @param size The size of the file.
+	 * @return Returns false if the file was not pinned, because pinned files would exceed half of the size limit.
+	 */
+	public synchronized boolean pin(String identifier, long size) {
+		long pinnedBytes = 0;
+		for (Map.Entry<String, Long> pin : pinned.entrySet()) {
+			if (!pin.getKey().equals(identifier)) {
+				pinnedBytes += pin.getValue();
+			}
+		}
+		if (pinnedBytes + size > maxBytes / 2) {
+			return false;
+		}
+		pinned.put(identifier, size);
+		return true;
+	}
+
+	/**
+	 * Makes a pinned file an ordinary entry again, which is evicted when it is not used.
+	 *
+	 * @param identifier The file identifier.
+	 */
+	public void unpin(String identifier) {
+		pinned.remove(identifier);
+	}
+
+	/**
+	 * @return Returns the identifiers of all pinned files.
+	 */
+	public Set<String> getPinned() {
+		return new HashSet<>(pinned.keySet());
+	}
+
+	private synchronized void evict() {
+		if (totalBytes.get() <= maxBytes) {
+			return;
+		}
+		List<Entry> candidates = new ArrayList<>(entries.values());
+		candidates.removeIf(entry -> pinned.containsKey(entry.meta.getIdentifier()));
+		candidates.sort(Comparator.comparingLong(e -> e.lastAccess));
+		// evict down to 90 % of the limit, so not every write triggers an eviction run
+		long target = maxBytes / 10 * 9;
+		for (Entry entry : candidates) {
+			if (totalBytes.get() <= target) {
+				break;
+			}
+			if (entries.remove(entry.meta.getIdentifier(), entry)) {
+				unindex(entry);
+				totalBytes.addAndGet(-entry.size);
+				delete(entry);
+			}
+		}
+	}
+
+	private void index(Entry entry) {
+		if (entry.meta.getSha256() != null) {
+			digests.put(entry.meta.getSha256(), entry);
+		}
+	}
+
+	// removes a broken entry, unless it was replaced meanwhile
+	private void discard(Entry entry) {
+		if (entries.remove(entry.meta.getIdentifier(), entry)) {
+			unindex(entry);
+			totalBytes.addAndGet(-entry.size);
+			writer.execute(() -> delete(entry));
+		}
+	}
+
+	private void unindex(Entry entry) {
+		if (entry.meta.getSha256() != null) {
+			digests.remove(entry.meta.getSha256(), entry);
+		}
+	}
+
+	private void delete(Entry entry) {
+		try {
+			Files.deleteIfExists(metaPath(entry.content));
+			Files.deleteIfExists(entry.content);
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Could not delete cache entry " + entry.content, e);
+		}
+	}
+
+	public long getTotalBytes() {
+		return totalBytes.get();
+	}
+
+	private static Path contentPath(Path metaFile) {
+		String name = metaFile.getFileName().toString();
+		return metaFile.resolveSibling(name.substring(0, name.length() - META_SUFFIX.length()) + CONTENT_SUFFIX);
+	}
+
+	private static Path metaPath(Path content) {
+		String name = content.getFileName().toString();
+		return content.resolveSibling(name.substring(0, name.length() - CONTENT_SUFFIX.length()) + META_SUFFIX);
+	}
+
+	static String hash(String identifier) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(identifier.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
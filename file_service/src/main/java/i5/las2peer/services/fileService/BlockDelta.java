@@ -0,0 +1,229 @@
+package i5.las2peer.services.fileService;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+/**
+ * rsync-style block signatures and delta encoding for file contents.
+ * <p>
+ * The stored content is split into blocks of a fixed size. Each block is described by a weak rolling checksum and a
+ * strong MD5 hash. A client compares its new content against these signatures by rolling the weak checksum over every
+ * offset and sends only instructions to copy matching blocks plus the literal data in between. The instructions are:
+ * <ul>
+ * <li>{@code {"copy": <first block index>, "count": <number of blocks>}}</li>
+ * <li>{@code {"data": "<base64 encoded literal bytes>"}}</li>
+ * </ul>
+ */
+public class BlockDelta {
+
+	public static final String OP_COPY = "copy";
+	public static final String OP_COUNT = "count";
+	public static final String OP_DATA = "data";
+
+	/**
+	 * Computes the block signatures of the given content.
+	 *
+	 * @param content The content to describe.
+	 * @param blockSize The block size in bytes.
+	 * @param version The version of the content, sent back by the client to detect concurrent changes.
+	 * @return Returns the signatures as JSON object with the fields blockSize, version, size and blocks.
+	 */
+	public static JSONObject signatures(byte[] content, int blockSize, long version) {
+		JSONArray blocks = new JSONArray();
+		for (int offset = 0; offset < content.length; offset += blockSize) {
+			int length = Math.min(blockSize, content.length - offset);
+			JSONObject block = new JSONObject();
+			block.put("weak", weakChecksum(content, offset, length));
+			block.put("strong", strongHash(content, offset, length));
+			blocks.add(block);
+		}
+		JSONObject result = new JSONObject();
+		result.put("blockSize", blockSize);
+		result.put("version", version);
+		result.put("size", content.length);
+		result.put("blocks", blocks);
+		return result;
+	}
+
+	/**
+	 * Rebuilds new content from the base content and a list of delta instructions.
+	 *
+	 * @param base The base content the signatures were computed for.
+	 * @param blockSize The block size used for the signatures.
+	 * @param ops The delta instructions.
+	 * @param maxSize The maximum size of the rebuilt content.
+	 * @return Returns the rebuilt content.
+	 * @throws IllegalArgumentException If an instruction is invalid or the result exceeds the maximum size.
+	 */
+	public static byte[] apply(byte[] base, int blockSize, List<?> ops, long maxSize) throws IllegalArgumentException {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Invalid block size " + blockSize);
+		}
+		int blockCount = (base.length + blockSize - 1) / blockSize;
+		ByteArrayOutputStream result = new ByteArrayOutputStream(base.length);
+		for (Object o : ops) {
+			if (!(o instanceof Map)) {
+				throw new IllegalArgumentException("Invalid delta instruction " + o);
+			}
+			Map<?, ?> op = (Map<?, ?>) o;
+			if (op.get(OP_COPY) instanceof Number) {
+				int first = ((Number) op.get(OP_COPY)).intValue();
+				int count = op.get(OP_COUNT) instanceof Number ? ((Number) op.get(OP_COUNT)).intValue() : 1;
+				if (first < 0 || count < 1 || first + count > blockCount) {
+					throw new IllegalArgumentException("Block range " + first + "+" + count + " out of range");
+				}
+				int offset = first * blockSize;
+				int end = Math.min(base.length, (first + count) * blockSize);
+				result.write(base, offset, end - offset);
+			} else if (op.get(OP_DATA) instanceof String) {
+				byte[] data = Base64.getDecoder().decode((String) op.get(OP_DATA));
+				result.write(data, 0, data.length);
+			} else {
+				throw new IllegalArgumentException("Invalid delta instruction " + op);
+			}
+			if (result.size() > maxSize) {
+				throw new IllegalArgumentException("Rebuilt content exceeds limit of " + maxSize + " bytes");
+			}
+		}
+		return result.toByteArray();
+	}
+
+	/**
+	 * Computes the delta instructions that rebuild the given content from the content described by the signatures.
+	 * This is the client side of the delta upload, provided for Java clients and other services.
+	 *
+	 * @param signatures The signatures as returned by {@link #signatures(byte[], int, long)}.
+	 * @param content The new content.
+	 * @return Returns the delta instructions.
+	 */
+	public static List<Map<String, Object>> diff(Map<String, Object> signatures, byte[] content) {
+		int blockSize = ((Number) signatures.get("blockSize")).intValue();
+		List<?> blocks = (List<?>) signatures.get("blocks");
+		long baseSize = ((Number) signatures.get("size")).longValue();
+		// only complete blocks can be matched by the rolling checksum
+		int fullBlocks = (int) (baseSize / blockSize);
+		Map<Integer, List<Integer>> byWeak = new HashMap<>();
+		for (int i = 0; i < fullBlocks; i++) {
+			Map<?, ?> block = (Map<?, ?>) blocks.get(i);
+			byWeak.computeIfAbsent(((Number) block.get("weak")).intValue(), k -> new ArrayList<>()).add(i);
+		}
+		List<Map<String, Object>> ops = new ArrayList<>();
+		int literalStart = 0;
+		int pos = 0;
+		int a = 0;
+		int b = 0;
+		boolean rolling = false;
+		while (pos + blockSize <= content.length && !byWeak.isEmpty()) {
+			if (!rolling) {
+				int checksum = weakChecksum(content, pos, blockSize);
+				a = checksum & 0xffff;
+				b = checksum >>> 16;
+				rolling = true;
+			}
+			int match = -1;
+			List<Integer> candidates = byWeak.get((b << 16) | a);
+			if (candidates != null) {
+				String strong = strongHash(content, pos, blockSize);
+				for (int candidate : candidates) {
+					if (strong.equals(((Map<?, ?>) blocks.get(candidate)).get("strong"))) {
+						match = candidate;
+						break;
+					}
+				}
+			}
+			if (match >= 0) {
+				addData(ops, content, literalStart, pos);
+				addCopy(ops, match);
+				pos += blockSize;
+				literalStart = pos;
+				rolling = false;
+			} else {
+				// roll the checksum one byte forward
+				if (pos + blockSize < content.length) {
+					int out = content[pos] & 0xff;
+					int in = content[pos + blockSize] & 0xff;
+					a = (a - out + in) & 0xffff;
+					b = (b - blockSize * out + a) & 0xffff;
+				}
+				pos++;
+			}
+		}
+		addData(ops, content, literalStart, content.length);
+		return ops;
+	}
+
+	private static void addCopy(List<Map<String, Object>> ops, int block) {
+		if (!ops.isEmpty()) {
+			Map<String, Object> last = ops.get(ops.size() - 1);
+			if (last.containsKey(OP_COPY)) {
+				int first = ((Number) last.get(OP_COPY)).intValue();
+				int count = ((Number) last.get(OP_COUNT)).intValue();
+				if (first + count == block) {
+					last.put(OP_COUNT, count + 1);
+					return;
+				}
+			}
+		}
+		Map<String, Object> op = new JSONObject();
+		op.put(OP_COPY, block);
+		op.put(OP_COUNT, 1);
+		ops.add(op);
+	}
+
+	private static void addData(List<Map<String, Object>> ops, byte[] content, int from, int to) {
+		if (to > from) {
+			byte[] data = new byte[to - from];
+			System.arraycopy(content, from, data, 0, data.length);
+			Map<String, Object> op = new JSONObject();
+			op.put(OP_DATA, Base64.getEncoder().encodeToString(data));
+			ops.add(op);
+		}
+	}
+
+	/**
+	 * The rsync weak checksum, two 16 bit sums that can be rolled forward byte by byte.
+	 *
+	 * @param data The data array.
+	 * @param offset The first byte of the block.
+	 * @param length The block length.
+	 * @return Returns the checksum with the second sum in the upper 16 bits.
+	 */
+	public static int weakChecksum(byte[] data, int offset, int length) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < length; i++) {
+			int x = data[offset + i] & 0xff;
+			a += x;
+			b += (length - i) * x;
+		}
+		return ((b & 0xffff) << 16) | (a & 0xffff);
+	}
+
+	public static String strongHash(byte[] data, int offset, int length) {
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			md5.update(data, offset, length);
+			return toHex(md5.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,107 @@
+package i5.las2peer.services.fileService;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control for request and response bodies buffered in memory. Each request reserves the bytes it buffers
+ * before reading them and releases the reservation when done. If the budget is exhausted, a reservation waits up to
+ * the configured time and fails afterwards, so the caller can reject the request instead of risking an out of memory
+ * error.
+ *
+ * <p>
+ * Response bodies are held until Jersey wrote them, after the resource method returned. They are reserved with
+ * {@link #reserveForResponse(long)}, which binds the reservation to the request thread, and released by the
+ * {@link TraceFilter} with {@link #releaseResponse()} once the response is written.
+ */
+class ByteBudget {
+
+	// reservations are accounted in KiB to fit large budgets into semaphore permits
+	private static final int UNIT = 1024;
+	// the response reservation of the current request thread
+	private static final ThreadLocal<Reservation> RESPONSE = new ThreadLocal<>();
+
+	private static class Reservation {
+
+		private final ByteBudget budget;
+		private final long bytes;
+
+		private Reservation(ByteBudget budget, long bytes) {
+			this.budget = budget;
+			this.bytes = bytes;
+		}
+
+	}
+
+	private final Semaphore permits;
+	private final int totalUnits;
+	private final long waitMillis;
+
+	public ByteBudget(long maxBytes, long waitMillis) {
+		this.totalUnits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / UNIT));
+		this.permits = new Semaphore(totalUnits, true);
+		this.waitMillis = waitMillis;
+	}
+
+	/**
+	 * Reserves the given number of bytes, waiting for other requests to release their reservations if necessary.
+	 *
+	 * @param bytes The number of bytes to reserve.
+	 * @return Returns true if the bytes are reserved and must be released later, false if the budget is exhausted.
+	 */
+	public boolean reserve(long bytes) {
+		try {
+			return permits.tryAcquire(units(bytes), waitMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Reserves the given number of bytes for the response of the current request, see {@link #reserve(long)}. A
+	 * reservation left over by a previous response on this thread, e.g. one that was never written, is released first.
+	 *
+	 * @param bytes The number of bytes to reserve.
+	 * @return Returns true if the bytes are reserved until {@link #releaseResponse()}, false if the budget is
+	 *         exhausted.
+	 */
+	public boolean reserveForResponse(long bytes) {
+		releaseResponse();
+		if (!reserve(bytes)) {
+			return false;
+		}
+		RESPONSE.set(new Reservation(this, bytes));
+		return true;
+	}
+
+	/**
+	 * Releases the response reservation of the current request thread, if any.
+	 */
+	public static void releaseResponse() {
+		Reservation reservation = RESPONSE.get();
+		if (reservation != null) {
+			RESPONSE.remove();
+			reservation.budget.release(reservation.bytes);
+		}
+	}
+
+	public void release(long bytes) {
+		if (bytes > 0) {
+			permits.release(units(bytes));
+		}
+	}
+
+	/**
+	 * @return Returns the currently available budget in bytes.
+	 */
+	public long available() {
+		return (long) permits.availablePermits() * UNIT;
+	}
+
+	private int units(long bytes) {
+		// a single reservation larger than the whole budget could never be granted
+		return (int) Math.min(totalUnits, (bytes + UNIT - 1) / UNIT);
+	}
+
+}
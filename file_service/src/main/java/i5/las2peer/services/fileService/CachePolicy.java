@@ -0,0 +1,74 @@
+package i5.las2peer.services.fileService;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Maps mime types to {@code Cache-Control} header values for files served by their mutable identifier. The policy is
+ * configured as list of rules separated by semicolons, each rule consisting of a mime type pattern and the header
+ * value, e.g. {@code image/*=public, max-age=86400; text/html=no-cache; *=public, max-age=60}. A pattern is either an
+ * exact mime type, a type with wildcard subtype or a single wildcard. The most specific matching rule wins.
+ */
+class CachePolicy {
+
+	private static final String WILDCARD = "*";
+
+	private final Map<String, String> rules = new HashMap<>();
+
+	/**
+	 * Parses the given policy.
+	 *
+	 * @param policy The policy as configured, may be {@code null} or empty.
+	 * @throws IllegalArgumentException If a rule has no value.
+	 */
+	public CachePolicy(String policy) throws IllegalArgumentException {
+		if (policy == null) {
+			return;
+		}
+		for (String rule : policy.split(";")) {
+			if (rule.isBlank()) {
+				continue;
+			}
+			int separator = rule.indexOf('=');
+			if (separator < 1 || rule.substring(separator + 1).isBlank()) {
+				throw new IllegalArgumentException("Invalid cache policy rule '" + rule.trim() + "'");
+			}
+			rules.put(rule.substring(0, separator).trim().toLowerCase(Locale.ROOT),
+					rule.substring(separator + 1).trim());
+		}
+	}
+
+	/**
+	 * Looks up the {@code Cache-Control} value for a mime type.
+	 *
+	 * @param mimeType The mime type of the served file, parameters like the charset are ignored.
+	 * @return Returns the header value or {@code null} if no rule matches.
+	 */
+	public String forMimeType(String mimeType) {
+		if (rules.isEmpty()) {
+			return null;
+		}
+		if (mimeType != null) {
+			String type = mimeType.toLowerCase(Locale.ROOT);
+			int parameters = type.indexOf(';');
+			if (parameters >= 0) {
+				type = type.substring(0, parameters);
+			}
+			type = type.trim();
+			String value = rules.get(type);
+			if (value != null) {
+				return value;
+			}
+			int slash = type.indexOf('/');
+			if (slash > 0) {
+				value = rules.get(type.substring(0, slash) + "/" + WILDCARD);
+				if (value != null) {
+					return value;
+				}
+			}
+		}
+		return rules.get(WILDCARD);
+	}
+
+}
@@ -0,0 +1,97 @@
+package i5.las2peer.services.fileService;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Node-local long poll on the change log. Waiting requests share the last read log, which is read again at most once
+ * per poll interval, so the network load does not grow with the number of waiting clients. Changes written on this
+ * node wake waiting requests immediately. Each waiting request holds a connector thread, so their number is limited.
+ */
+class ChangeFeed {
+
+	private final SingleFlight<String, ChangeLog> loads = new SingleFlight<>();
+	private final long pollMillis;
+	private final int maxWaiters;
+	private final AtomicInteger waiters = new AtomicInteger();
+	private ChangeLog log;
+	private long loaded;
+
+	/**
+	 * @param pollMillis The minimum time between two reads of the change log.
+	 * @param maxWaiters The maximum number of requests waiting at the same time.
+	 */
+	public ChangeFeed(long pollMillis, int maxWaiters) {
+		this.pollMillis = pollMillis;
+		this.maxWaiters = maxWaiters;
+	}
+
+	/**
+	 * Publishes a change log written on this node and wakes all waiting requests.
+	 *
+	 * @param written The written change log.
+	 */
+	public synchronized void publish(ChangeLog written) {
+		if (log == null || written.getSequence() >= log.getSequence()) {
+			log = written;
+			loaded = System.currentTimeMillis();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Waits until the change log has changes after the given sequence number or the timeout elapsed.
+	 *
+	 * @param since The last sequence number seen by the client.
+	 * @param timeoutMillis The maximum time to wait, 0 to return immediately.
+	 * @param loader Reads the change log from the network.
+	 * @return Returns the latest known change log.
+	 * @throws RejectedExecutionException If too many requests are waiting already.
+	 * @throws InterruptedException If the waiting thread was interrupted.
+	 * @throws Exception The exception of the loader.
+	 */
+	public ChangeLog await(long since, long timeoutMillis, SingleFlight.Loader<ChangeLog> loader)
+			throws RejectedExecutionException, InterruptedException, Exception {
+		if (waiters.incrementAndGet() > maxWaiters) {
+			waiters.decrementAndGet();
+			throw new RejectedExecutionException("Too many waiting change feed requests");
+		}
+		try {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (true) {
+				ChangeLog current = current(loader);
+				long remaining = deadline - System.currentTimeMillis();
+				if (current.getSequence() != since || remaining <= 0) {
+					return current;
+				}
+				synchronized (this) {
+					if (log == current) {
+						wait(Math.min(remaining, pollMillis));
+					}
+				}
+			}
+		} finally {
+			waiters.decrementAndGet();
+		}
+	}
+
+	private ChangeLog current(SingleFlight.Loader<ChangeLog> loader) throws Exception {
+		synchronized (this) {
+			if (log != null && System.currentTimeMillis() - loaded < pollMillis) {
+				return log;
+			}
+		}
+		return loads.execute("changes", () -> {
+			ChangeLog read = loader.load();
+			synchronized (this) {
+				// a log published while reading may be newer
+				if (log == null || read.getSequence() >= log.getSequence()) {
+					log = read;
+				}
+				loaded = System.currentTimeMillis();
+				return log;
+			}
+		});
+	}
+
+}
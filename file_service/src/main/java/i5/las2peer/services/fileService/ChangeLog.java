@@ -0,0 +1,148 @@
+package i5.las2peer.services.fileService;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+/**
+ * The most recent changes of the file index, each with a sequence number that increases with every change. Clients
+ * follow the changes from the last sequence number they have seen. Only a bounded number of changes is kept, clients
+ * that fall further behind have to read the whole index again.
+ */
+public class ChangeLog implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String UPSERT = "upsert";
+	public static final String DELETE = "delete";
+
+	/**
+	 * A single change of the file index.
+	 */
+	public static class Event implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long sequence;
+		private final String type;
+		private final long time;
+		private final StoredFileIndex entry;
+
+		public Event(long sequence, String type, long time, StoredFileIndex entry) {
+			this.sequence = sequence;
+			this.type = type;
+			this.time = time;
+			this.entry = entry;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public StoredFileIndex getEntry() {
+			return entry;
+		}
+
+		public JSONObject toJsonObject() {
+			JSONObject result = entry.toJsonObject();
+			result.put("sequence", sequence);
+			result.put("type", type);
+			result.put("time", time);
+			return result;
+		}
+
+	}
+
+	private long sequence;
+	private final ArrayList<Event> events = new ArrayList<>();
+
+	/**
+	 * @return Returns the sequence number of the latest change, 0 if nothing changed yet.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Appends a change with the next sequence number and drops the oldest changes beyond the limit.
+	 *
+	 * @param type The type of the change, {@link #UPSERT} or {@link #DELETE}.
+	 * @param entry The index entry after the change.
+	 * @param maxEvents The maximum number of kept changes.
+	 */
+	public void append(String type, StoredFileIndex entry, int maxEvents) {
+		sequence++;
+		events.add(new Event(sequence, type, System.currentTimeMillis(), entry));
+		if (events.size() > maxEvents) {
+			events.subList(0, events.size() - maxEvents).clear();
+		}
+	}
+
+	/**
+	 * Counts changes that were lost before they were appended. The kept changes are dropped as well, so every client
+	 * is told to read the whole index again.
+	 *
+	 * @param count The number of lost changes.
+	 */
+	public void skip(int count) {
+		if (count > 0) {
+			sequence += count;
+			events.clear();
+		}
+	}
+
+	/**
+	 * @param since The last sequence number seen by the client.
+	 * @return Returns the changes after the given sequence number, oldest first.
+	 */
+	public List<Event> since(long since) {
+		List<Event> result = new ArrayList<>();
+		for (Event event : events) {
+			if (event.sequence > since) {
+				result.add(event);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param since The last sequence number seen by the client.
+	 * @return Returns true if changes after the given sequence number were already dropped, or the sequence number is
+	 *         from the future, e.g. of a log that was recreated.
+	 */
+	public boolean isTruncated(long since) {
+		if (since > sequence) {
+			return true;
+		}
+		long oldest = events.isEmpty() ? sequence + 1 : events.get(0).sequence;
+		return since < sequence && since < oldest - 1;
+	}
+
+	/**
+	 * @param since The last sequence number seen by the client.
+	 * @return Returns the changes after the given sequence number with the latest sequence number and a reset flag,
+	 *         which tells the client to read the whole index.
+	 */
+	public JSONObject toJsonObject(long since) {
+		JSONObject result = new JSONObject();
+		result.put("sequence", sequence);
+		boolean reset = isTruncated(since);
+		result.put("reset", reset);
+		JSONArray changes = new JSONArray();
+		if (!reset) {
+			for (Event event : since(since)) {
+				changes.add(event.toJsonObject());
+			}
+		}
+		result.put("changes", changes);
+		return result;
+	}
+
+}
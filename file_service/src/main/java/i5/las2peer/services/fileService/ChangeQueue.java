@@ -0,0 +1,173 @@
+package i5.las2peer.services.fileService;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+
+import i5.las2peer.logging.L2pLogger;
+
+/**
+ * Index changes of this node waiting to be appended to the change log. Stores and deletes only queue their changes
+ * and never fail because of the change log. A single background flush appends all queued changes with one write of
+ * the change log and retries a failed write a few times. Changes that still could not be written stay queued for the
+ * next flush. If more changes are queued than the change log keeps, the oldest are dropped and counted, so clients
+ * that depend on them are told to read the whole index again.
+ */
+class ChangeQueue {
+
+	/**
+	 * A queued change of the file index.
+	 */
+	public static class Change {
+
+		private final String type;
+		private final StoredFileIndex entry;
+
+		public Change(String type, StoredFileIndex entry) {
+			this.type = type;
+			this.entry = entry;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public StoredFileIndex getEntry() {
+			return entry;
+		}
+
+	}
+
+	/**
+	 * Appends changes to the change log with a single read-modify-write.
+	 */
+	public interface Writer {
+
+		/**
+		 * @param changes The changes to append, oldest first.
+		 * @param lost The number of changes dropped before they were written.
+		 * @throws Exception If the change log could not be written, no change was appended then.
+		 */
+		void append(List<Change> changes, int lost) throws Exception;
+
+	}
+
+	private static final L2pLogger logger = L2pLogger.getInstance(ChangeQueue.class.getName());
+
+	private final int maxPending;
+	private final int attempts;
+	private final long retryMillis;
+	// oldest first, only the flush removes changes
+	private final ArrayDeque<Change> pending = new ArrayDeque<>();
+	private int lost;
+	private boolean flushing;
+
+	/**
+	 * @param maxPending The maximum number of queued changes, usually the number of changes the log keeps.
+	 * @param attempts The number of write attempts of a flush.
+	 * @param retryMillis The delay before the second attempt, it grows linearly with each further attempt.
+	 */
+	public ChangeQueue(int maxPending, int attempts, long retryMillis) {
+		this.maxPending = maxPending;
+		this.attempts = attempts;
+		this.retryMillis = retryMillis;
+	}
+
+	/**
+	 * Queues changes and starts a flush, unless one is running already.
+	 *
+	 * @param type The type of the changes, {@link ChangeLog#UPSERT} or {@link ChangeLog#DELETE}.
+	 * @param entries The changed index entries.
+	 * @param executor Runs the flush in the background.
+	 * @param writer Writes the change log.
+	 */
+	public void add(String type, Collection<StoredFileIndex> entries, Executor executor, Writer writer) {
+		synchronized (this) {
+			for (StoredFileIndex entry : entries) {
+				pending.add(new Change(type, entry));
+			}
+		}
+		flush(executor, writer);
+	}
+
+	/**
+	 * @return Returns the number of changes not written yet.
+	 */
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	private void flush(Executor executor, Writer writer) {
+		synchronized (this) {
+			if (flushing || pending.isEmpty()) {
+				return;
+			}
+			flushing = true;
+		}
+		try {
+			executor.execute(() -> {
+				boolean written = false;
+				try {
+					written = write(writer);
+				} finally {
+					synchronized (this) {
+						flushing = false;
+					}
+				}
+				// changes queued while this flush was running
+				if (written) {
+					flush(executor, writer);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				flushing = false;
+			}
+			logger.log(Level.WARNING, "Could not start change log flush, " + size() + " changes stay queued", e);
+		}
+	}
+
+	private boolean write(Writer writer) {
+		List<Change> batch;
+		int batchLost;
+		synchronized (this) {
+			while (pending.size() > maxPending) {
+				pending.poll();
+				lost++;
+			}
+			batch = new ArrayList<>(pending);
+			batchLost = lost;
+		}
+		for (int attempt = 1;; attempt++) {
+			try {
+				writer.append(batch, batchLost);
+				break;
+			} catch (Exception e) {
+				if (attempt >= attempts) {
+					logger.log(Level.WARNING, "Could not append to change log, " + batch.size()
+							+ " changes stay queued", e);
+					return false;
+				}
+				logger.log(Level.FINE, "Could not append to change log, attempt " + attempt, e);
+			}
+			try {
+				Thread.sleep(retryMillis * attempt);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		synchronized (this) {
+			for (int i = 0; i < batch.size(); i++) {
+				pending.poll();
+			}
+			lost -= batchLost;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,59 @@
+package i5.las2peer.services.fileService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Content defined chunking with a gear rolling hash. A chunk ends where the hash of the last bytes matches a mask, so
+ * chunk boundaries depend on the content only and not on offsets. An insertion or deletion changes only the chunks
+ * around it, all other chunks of two versions of a file stay identical and can be shared. Chunks are at least a
+ * quarter and at most four times the average size.
+ */
+class Chunker {
+
+	// random but fixed, all nodes must cut the same content at the same boundaries
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x5eedc4a4b3dL);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private Chunker() {
+	}
+
+	/**
+	 * Splits content into chunks.
+	 *
+	 * @param content The content to split.
+	 * @param averageSize The average chunk size, rounded down to a power of two.
+	 * @return Returns the offset and length of each chunk, in order.
+	 */
+	public static List<int[]> split(byte[] content, int averageSize) {
+		int bits = Integer.numberOfTrailingZeros(Integer.highestOneBit(Math.max(averageSize, 64)));
+		// the top bits of the hash depend on the last 64 bytes, the low bits only on the last few
+		long mask = -1L << (64 - bits);
+		int minSize = 1 << (bits - 2);
+		int maxSize = 1 << (bits + 2);
+		List<int[]> chunks = new ArrayList<>();
+		int start = 0;
+		long hash = 0;
+		for (int i = 0; i < content.length; i++) {
+			hash = (hash << 1) + GEAR[content[i] & 0xff];
+			int length = i - start + 1;
+			if ((length >= minSize && (hash & mask) == 0) || length >= maxSize) {
+				chunks.add(new int[] { start, length });
+				start = i + 1;
+				hash = 0;
+			}
+		}
+		if (start < content.length) {
+			chunks.add(new int[] { start, content.length - start });
+		}
+		return chunks;
+	}
+
+}
@@ -0,0 +1,245 @@
+package i5.las2peer.services.fileService;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import i5.las2peer.services.fileService.StoredFileIndex.StoredFileIndexComparator;
+
+/**
+ * A read-only, memory compact form of the file index, kept by each node instead of a list of
+ * {@link StoredFileIndex} objects. Entries are stored in columns. Identifiers, names, descriptions and hashes are
+ * packed as UTF-8 into one byte array. Owners and mime types, which repeat across many files, are dictionary encoded.
+ * Sizes and modification times are primitive arrays. Entries are sorted like the file index and indexed by identifier
+ * in an open addressing hash table.
+ *
+ * <p>
+ * {@link #get(int)} creates a new {@link StoredFileIndex} for each call, so callers that only need single columns
+ * should use the column getters.
+ */
+class CompactIndex extends AbstractList<StoredFileIndex> implements RandomAccess {
+
+	private static final int IDENTIFIER = 0;
+	private static final int NAME = 1;
+	private static final int DESCRIPTION = 2;
+	private static final int SHA256 = 3;
+	private static final int STRINGS = 4;
+	// marks offsets of null strings
+	private static final int NULL = 0x80000000;
+
+	private final int size;
+	private final byte[] text;
+	// start offset of string k of entry i at i * STRINGS + k, its end is the next start
+	private final int[] offsets;
+	private final String[] ownerDictionary;
+	private final int[] owners;
+	private final String[] mimeTypeDictionary;
+	private final int[] mimeTypes;
+	private final long[] lastModified;
+	private final long[] fileSizes;
+	// entry index + 1 by hash of the lower case identifier, 0 for free slots
+	private final int[] table;
+
+	/**
+	 * Builds the compact form of an index. Deleted entries are skipped.
+	 *
+	 * @param entries The entries of the file index in any order.
+	 * @return Returns the compact index.
+	 */
+	public static CompactIndex of(Collection<StoredFileIndex> entries) {
+		List<StoredFileIndex> sorted = new ArrayList<>(entries.size());
+		for (StoredFileIndex entry : entries) {
+			if (!entry.isDeleted()) {
+				sorted.add(entry);
+			}
+		}
+		sorted.sort(StoredFileIndexComparator.INSTANCE);
+		return new CompactIndex(sorted);
+	}
+
+	private CompactIndex(List<StoredFileIndex> sorted) {
+		size = sorted.size();
+		offsets = new int[size * STRINGS + 1];
+		owners = new int[size];
+		mimeTypes = new int[size];
+		lastModified = new long[size];
+		fileSizes = new long[size];
+		Map<String, Integer> ownerCodes = new HashMap<>();
+		Map<String, Integer> mimeTypeCodes = new HashMap<>();
+		ByteArrayOutputStream packed = new ByteArrayOutputStream(size * 64);
+		for (int i = 0; i < size; i++) {
+			StoredFileIndex entry = sorted.get(i);
+			pack(packed, i * STRINGS + IDENTIFIER, entry.getIdentifier());
+			pack(packed, i * STRINGS + NAME, entry.getName());
+			pack(packed, i * STRINGS + DESCRIPTION, entry.getDescription());
+			pack(packed, i * STRINGS + SHA256, entry.getSha256());
+			owners[i] = encode(ownerCodes, entry.getOwnerId());
+			mimeTypes[i] = encode(mimeTypeCodes, entry.getMimeType());
+			lastModified[i] = entry.getLastModified();
+			fileSizes[i] = entry.getFileSize();
+		}
+		offsets[size * STRINGS] = packed.size();
+		text = packed.toByteArray();
+		ownerDictionary = dictionary(ownerCodes);
+		mimeTypeDictionary = dictionary(mimeTypeCodes);
+		table = new int[Integer.highestOneBit(Math.max(size, 1) * 2) * 2];
+		for (int i = 0; i < size; i++) {
+			int slot = slot(sorted.get(i).getIdentifier());
+			while (table[slot] != 0) {
+				slot = (slot + 1) & (table.length - 1);
+			}
+			table[slot] = i + 1;
+		}
+	}
+
+	private void pack(ByteArrayOutputStream packed, int slot, String value) {
+		if (value == null) {
+			offsets[slot] = packed.size() | NULL;
+			return;
+		}
+		offsets[slot] = packed.size();
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		packed.write(bytes, 0, bytes.length);
+	}
+
+	private static int encode(Map<String, Integer> codes, String value) {
+		if (value == null) {
+			return -1;
+		}
+		return codes.computeIfAbsent(value, v -> codes.size());
+	}
+
+	private static String[] dictionary(Map<String, Integer> codes) {
+		String[] dictionary = new String[codes.size()];
+		for (Map.Entry<String, Integer> code : codes.entrySet()) {
+			dictionary[code.getValue()] = code.getKey();
+		}
+		return dictionary;
+	}
+
+	private int slot(String identifier) {
+		int hash = identifier.toLowerCase(Locale.ROOT).hashCode() * 0x9e3779b9;
+		return (hash ^ (hash >>> 16)) & (table.length - 1);
+	}
+
+	private String string(int slot) {
+		int start = offsets[slot];
+		if ((start & NULL) != 0) {
+			return null;
+		}
+		int end = offsets[slot + 1] & ~NULL;
+		return new String(text, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public StoredFileIndex get(int index) {
+		StoredFileIndex entry = new StoredFileIndex(getIdentifier(index), string(index * STRINGS + NAME),
+				lastModified[index], getOwnerId(index), getMimeType(index), string(index * STRINGS + DESCRIPTION),
+				fileSizes[index]);
+		entry.setSha256(string(index * STRINGS + SHA256));
+		return entry;
+	}
+
+	public String getIdentifier(int index) {
+		checkIndex(index);
+		return string(index * STRINGS + IDENTIFIER);
+	}
+
+	public String getOwnerId(int index) {
+		checkIndex(index);
+		return owners[index] < 0 ? null : ownerDictionary[owners[index]];
+	}
+
+	public String getMimeType(int index) {
+		checkIndex(index);
+		return mimeTypes[index] < 0 ? null : mimeTypeDictionary[mimeTypes[index]];
+	}
+
+	public long getFileSize(int index) {
+		checkIndex(index);
+		return fileSizes[index];
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+		}
+	}
+
+	/**
+	 * Looks up an entry by identifier, ignoring case like updates of the file index do.
+	 *
+	 * @param identifier The file identifier.
+	 * @return Returns the position of the entry or -1 if the identifier is not listed.
+	 */
+	public int indexOfIdentifier(String identifier) {
+		for (int slot = slot(identifier); table[slot] != 0; slot = (slot + 1) & (table.length - 1)) {
+			int index = table[slot] - 1;
+			if (identifier.equalsIgnoreCase(string(index * STRINGS + IDENTIFIER))) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param identifier The file identifier.
+	 * @return Returns true if the identifier is listed, ignoring case.
+	 */
+	public boolean containsIdentifier(String identifier) {
+		return indexOfIdentifier(identifier) >= 0;
+	}
+
+	/**
+	 * Finds all entries with identifiers starting with a prefix with a binary search, since they are consecutive in
+	 * the sort order.
+	 *
+	 * @param prefix The identifier prefix, case sensitive.
+	 * @return Returns a view of the matching entries.
+	 */
+	public List<StoredFileIndex> withPrefix(String prefix) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (string(middle * STRINGS + IDENTIFIER).compareTo(prefix) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		int end = low;
+		while (end < size && string(end * STRINGS + IDENTIFIER).startsWith(prefix)) {
+			end++;
+		}
+		return subList(low, end);
+	}
+
+	/**
+	 * @return Returns the approximate heap size of this index in bytes.
+	 */
+	public long memoryBytes() {
+		long bytes = text.length + 4L * (offsets.length + owners.length + mimeTypes.length + table.length)
+				+ 8L * (lastModified.length + fileSizes.length);
+		for (String owner : ownerDictionary) {
+			bytes += 40 + owner.length();
+		}
+		for (String mimeType : mimeTypeDictionary) {
+			bytes += 40 + mimeType.length();
+		}
+		return bytes;
+	}
+
+}
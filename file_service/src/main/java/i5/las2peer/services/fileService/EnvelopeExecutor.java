@@ -0,0 +1,392 @@
+package i5.las2peer.services.fileService;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import i5.las2peer.api.Context;
+import i5.las2peer.api.persistency.EnvelopeAccessDeniedException;
+import i5.las2peer.api.persistency.EnvelopeNotFoundException;
+import i5.las2peer.api.persistency.EnvelopeOperationFailedException;
+
+/**
+ * Runs blocking envelope operations on two bounded pools of worker threads, one for reads and one for writes, so slow
+ * writes can't take the workers of reads. The pool sizes limit how many network operations are in flight at the same
+ * time, excess operations are queued up to the queue capacity of each pool and rejected afterwards. The calling
+ * thread blocks until the result is available.
+ *
+ * <p>
+ * Only reads are bounded by the configured timeout, a read that takes longer is interrupted and the caller gets an
+ * {@link EnvelopeUnavailableException}. Writes are always awaited, because a write that is still running after its
+ * caller gave up may land anyway, e.g. a stored file without its index entry, while the client was told it failed.
+ * For the same reason, writes that belong together are admitted as a whole with {@link #beginWrites()}, so a later
+ * write is never rejected after an earlier one landed.
+ *
+ * <p>
+ * Read-only lookups may be hedged with {@link #callHedged(Context, EnvelopeCall)}: if a lookup takes longer than the
+ * recently observed 95th percentile, a second identical lookup is started and the first answer is used. The share of
+ * extra lookups is capped by a budget that grows with every hedged call.
+ */
+class EnvelopeExecutor {
+
+	/**
+	 * An envelope operation executed with the context of the requesting thread.
+	 *
+	 * @param <T> The result type of the operation.
+	 */
+	public interface EnvelopeCall<T> {
+
+		T call(Context context) throws Exception;
+
+	}
+
+	/**
+	 * Wraps each attempt of a lookup, e.g. to make some attempts slow in tests of hedged reads.
+	 */
+	interface LookupWrapper {
+
+		<T> EnvelopeCall<T> wrap(EnvelopeCall<T> call);
+
+	}
+
+	/**
+	 * Writes of the calling thread that are admitted as a whole, e.g. a file and its index entry. The sequence takes
+	 * one place of the write queue when it begins and keeps it until it is closed, its writes run one after another
+	 * and are never rejected. Sequences begun within a sequence join the outer one.
+	 */
+	public class WriteSequence implements AutoCloseable {
+
+		private final boolean outermost;
+		private boolean closed;
+
+		private WriteSequence(boolean outermost) {
+			this.outermost = outermost;
+		}
+
+		@Override
+		public void close() {
+			if (outermost && !closed) {
+				closed = true;
+				sequence.remove();
+				writePermits.release();
+			}
+		}
+
+	}
+
+	// bounds the hedging budget, so a burst of slow lookups after a quiet period can't double the load
+	private static final double MAX_HEDGE_TOKENS = 10;
+
+	private final ThreadPoolExecutor executor;
+	private final ThreadPoolExecutor writer;
+	// running and queued writes, or write sequences, the write queue itself is unbounded
+	private final Semaphore writePermits;
+	private final ThreadLocal<WriteSequence> sequence = new ThreadLocal<>();
+	private final long timeoutMillis;
+	private final LatencyTracker latencies = new LatencyTracker(1024, 64, 0.95);
+	private volatile double hedgeShare;
+	private final long hedgeMinDelayNanos;
+	private volatile LookupWrapper lookupWrapper;
+	private double hedgeTokens;
+	private final AtomicLong hedges = new AtomicLong();
+
+	/**
+	 * @param threads The number of worker threads for reads.
+	 * @param writeThreads The number of worker threads for writes.
+	 * @param queueCapacity The maximum number of queued reads and of queued writes.
+	 * @param timeoutMillis The maximum time a caller waits for a read.
+	 * @param hedgeShare The maximum share of extra lookups started by hedging, 0 disables hedging.
+	 * @param hedgeMinDelayMillis The minimum time before a lookup is hedged.
+	 */
+	public EnvelopeExecutor(int threads, int writeThreads, int queueCapacity, long timeoutMillis, double hedgeShare,
+			long hedgeMinDelayMillis) {
+		AtomicInteger threadCount = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(queueCapacity), runnable -> {
+					Thread thread = new Thread(runnable, "fileservice-envelope-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+		AtomicInteger writeThreadCount = new AtomicInteger();
+		this.writer = new ThreadPoolExecutor(writeThreads, writeThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), runnable -> {
+					Thread thread = new Thread(runnable, "fileservice-write-" + writeThreadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.writer.allowCoreThreadTimeOut(true);
+		this.writePermits = new Semaphore(writeThreads + queueCapacity);
+		this.timeoutMillis = timeoutMillis;
+		this.hedgeShare = hedgeShare;
+		this.hedgeMinDelayNanos = TimeUnit.MILLISECONDS.toNanos(hedgeMinDelayMillis);
+	}
+
+	/**
+	 * Executes the given read-only envelope lookup on the worker pool and waits at most the timeout for its result.
+	 *
+	 * @param <T> The result type of the lookup.
+	 * @param context The context of the requesting thread, which is not available on worker threads otherwise.
+	 * @param call The lookup, it must not have side effects since it is interrupted on timeout.
+	 * @return Returns the result of the lookup.
+	 * @throws EnvelopeAccessDeniedException If the lookup was denied.
+	 * @throws EnvelopeNotFoundException If the envelope does not exist.
+	 * @throws EnvelopeUnavailableException If the lookup timed out or too many operations are pending.
+	 * @throws EnvelopeOperationFailedException If the lookup failed otherwise.
+	 */
+	public <T> T call(Context context, EnvelopeCall<T> call) throws EnvelopeAccessDeniedException,
+			EnvelopeNotFoundException, EnvelopeUnavailableException, EnvelopeOperationFailedException {
+		Future<T> future = submit(context, call);
+		try {
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			// free the worker as well, if the network layer reacts to interrupts
+			future.cancel(true);
+			throw new EnvelopeUnavailableException("Envelope operation timed out after " + timeoutMillis + " ms");
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new EnvelopeUnavailableException("Interrupted while waiting for envelope operation");
+		} catch (ExecutionException e) {
+			throw unwrap(e.getCause());
+		}
+	}
+
+	/**
+	 * Begins a sequence of writes on the calling thread, which must be closed after its last write.
+	 *
+	 * <pre>
+	 * try (EnvelopeExecutor.WriteSequence writes = envelopeExecutor.beginWrites()) {
+	 * 	envelopeExecutor.callOrCreate(context, c -&gt; storeFile(c));
+	 * 	envelopeExecutor.callOrCreate(context, c -&gt; storeIndex(c));
+	 * }
+	 * </pre>
+	 *
+	 * @return Returns the sequence, or the sequence of the calling thread that is already open.
+	 * @throws EnvelopeUnavailableException If too many writes are pending, nothing was written then.
+	 */
+	public WriteSequence beginWrites() throws EnvelopeUnavailableException {
+		if (sequence.get() != null) {
+			return new WriteSequence(false);
+		}
+		if (!writePermits.tryAcquire()) {
+			throw new EnvelopeUnavailableException("Too many pending envelope writes");
+		}
+		WriteSequence writes = new WriteSequence(true);
+		sequence.set(writes);
+		return writes;
+	}
+
+	/**
+	 * Executes an envelope operation that writes envelopes and creates missing envelopes itself, like storing a file
+	 * or the file index, on the write pool. The operation is not bounded by the timeout, the caller waits until it
+	 * completed or failed.
+	 *
+	 * @param <T> The result type of the operation.
+	 * @param context The context of the requesting thread, which is not available on worker threads otherwise.
+	 * @param call The envelope operation.
+	 * @return Returns the result of the operation.
+	 * @throws EnvelopeAccessDeniedException If the operation was denied.
+	 * @throws EnvelopeUnavailableException If too many writes are pending and the calling thread has no open
+	 *             {@link WriteSequence}, the operation was not started then.
+	 * @throws EnvelopeOperationFailedException If the operation failed otherwise.
+	 */
+	public <T> T callOrCreate(Context context, EnvelopeCall<T> call)
+			throws EnvelopeAccessDeniedException, EnvelopeUnavailableException, EnvelopeOperationFailedException {
+		// writes of a sequence use the place taken by the sequence
+		boolean admitted = sequence.get() != null;
+		if (!admitted && !writePermits.tryAcquire()) {
+			throw new EnvelopeUnavailableException("Too many pending envelope writes");
+		}
+		Future<T> future;
+		try {
+			future = writer.submit(() -> {
+				try {
+					return call.call(context);
+				} finally {
+					if (!admitted) {
+						writePermits.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			if (!admitted) {
+				writePermits.release();
+			}
+			throw new EnvelopeUnavailableException("Envelope write pool is shut down");
+		}
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					// the outcome of a started write must be reported, so keep waiting
+					interrupted = true;
+				} catch (ExecutionException e) {
+					throw unwrap(e.getCause());
+				}
+			}
+		} catch (EnvelopeNotFoundException e) {
+			throw new EnvelopeOperationFailedException("Envelope vanished during operation", e);
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private <T> Future<T> submit(Context context, EnvelopeCall<T> call) throws EnvelopeUnavailableException {
+		try {
+			return executor.submit(() -> call.call(context));
+		} catch (RejectedExecutionException e) {
+			throw new EnvelopeUnavailableException("Too many pending envelope operations");
+		}
+	}
+
+	/**
+	 * Executes a read-only envelope lookup on the worker pool and waits for its result. If the lookup takes longer
+	 * than the 95th percentile of recent lookups and the hedging budget allows it, the same lookup is started a second
+	 * time and the first result is used. A failed attempt only decides the result if no other attempt is pending,
+	 * except for denied access and missing envelopes, which are definite answers.
+	 *
+	 * @param <T> The result type of the lookup.
+	 * @param context The context of the requesting thread, which is not available on worker threads otherwise.
+	 * @param call The lookup, it must not have side effects since it may run twice.
+	 * @return Returns the result of the first successful attempt.
+	 * @throws EnvelopeAccessDeniedException If the lookup was denied.
+	 * @throws EnvelopeNotFoundException If the envelope does not exist.
+	 * @throws EnvelopeUnavailableException If the lookup timed out or too many operations are pending.
+	 * @throws EnvelopeOperationFailedException If the lookup failed otherwise.
+	 */
+	public <T> T callHedged(Context context, EnvelopeCall<T> call) throws EnvelopeAccessDeniedException,
+			EnvelopeNotFoundException, EnvelopeUnavailableException, EnvelopeOperationFailedException {
+		if (hedgeShare <= 0) {
+			return call(context, wrap(call));
+		}
+		synchronized (this) {
+			hedgeTokens = Math.min(MAX_HEDGE_TOKENS, hedgeTokens + hedgeShare);
+		}
+		long start = System.nanoTime();
+		CompletableFuture<T> result = new CompletableFuture<>();
+		AtomicInteger pending = new AtomicInteger(1);
+		try {
+			executor.execute(() -> attempt(context, wrap(call), result, pending));
+		} catch (RejectedExecutionException e) {
+			throw new EnvelopeUnavailableException("Too many pending envelope operations");
+		}
+		RequestTrace.Span hedgeSpan = null;
+		try {
+			long threshold = latencies.estimate();
+			if (threshold >= 0) {
+				try {
+					return result.get(Math.max(threshold, hedgeMinDelayNanos), TimeUnit.NANOSECONDS);
+				} catch (TimeoutException e) {
+					if (takeHedgeToken()) {
+						pending.incrementAndGet();
+						try {
+							executor.execute(() -> attempt(context, wrap(call), result, pending));
+							hedges.incrementAndGet();
+							hedgeSpan = RequestTrace.span("hedge");
+						} catch (RejectedExecutionException rejected) {
+							pending.decrementAndGet();
+						}
+					}
+				}
+			}
+			long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis) - (System.nanoTime() - start);
+			return result.get(remaining, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			throw new EnvelopeUnavailableException("Envelope operation timed out after " + timeoutMillis + " ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EnvelopeUnavailableException("Interrupted while waiting for envelope operation");
+		} catch (ExecutionException e) {
+			throw unwrap(e.getCause());
+		} finally {
+			if (hedgeSpan != null) {
+				hedgeSpan.close();
+			}
+		}
+	}
+
+	private <T> void attempt(Context context, EnvelopeCall<T> call, CompletableFuture<T> result,
+			AtomicInteger pending) {
+		long start = System.nanoTime();
+		try {
+			T value = call.call(context);
+			latencies.record(System.nanoTime() - start);
+			result.complete(value);
+		} catch (EnvelopeAccessDeniedException | EnvelopeNotFoundException e) {
+			latencies.record(System.nanoTime() - start);
+			result.completeExceptionally(e);
+		} catch (Throwable e) {
+			if (pending.decrementAndGet() == 0) {
+				result.completeExceptionally(e);
+			}
+		}
+	}
+
+	private synchronized boolean takeHedgeToken() {
+		if (hedgeTokens < 1) {
+			return false;
+		}
+		hedgeTokens--;
+		return true;
+	}
+
+	private <T> EnvelopeCall<T> wrap(EnvelopeCall<T> call) {
+		LookupWrapper wrapper = lookupWrapper;
+		return wrapper != null ? wrapper.wrap(call) : call;
+	}
+
+	/**
+	 * @return Returns the number of hedged lookups since the start.
+	 */
+	public long getHedgeCount() {
+		return hedges.get();
+	}
+
+	/**
+	 * Changes the share of extra lookups of a running executor, e.g. to enable hedging of a service in a test.
+	 *
+	 * @param hedgeShare The maximum share of extra lookups started by hedging, 0 disables hedging.
+	 */
+	void setHedgeShare(double hedgeShare) {
+		this.hedgeShare = hedgeShare;
+	}
+
+	/**
+	 * Wraps every attempt of lookups made with {@link #callHedged(Context, EnvelopeCall)}.
+	 *
+	 * @param wrapper The wrapper or {@code null} to run lookups unwrapped.
+	 */
+	void wrapLookups(LookupWrapper wrapper) {
+		this.lookupWrapper = wrapper;
+	}
+
+	static EnvelopeOperationFailedException unwrap(Throwable cause) throws EnvelopeAccessDeniedException,
+			EnvelopeNotFoundException {
+		if (cause instanceof EnvelopeAccessDeniedException) {
+			throw (EnvelopeAccessDeniedException) cause;
+		} else if (cause instanceof EnvelopeNotFoundException) {
+			throw (EnvelopeNotFoundException) cause;
+		} else if (cause instanceof EnvelopeOperationFailedException) {
+			return (EnvelopeOperationFailedException) cause;
+		} else if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		} else if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return new EnvelopeOperationFailedException("Envelope operation failed", cause);
+	}
+
+}
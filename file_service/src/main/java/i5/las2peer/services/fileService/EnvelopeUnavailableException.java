@@ -0,0 +1,17 @@
+package i5.las2peer.services.fileService;
+
+import i5.las2peer.api.persistency.EnvelopeOperationFailedException;
+
+/**
+ * Thrown if an envelope operation could not be completed in time or was rejected, because too many envelope
+ * operations are already pending on this node. Clients should retry the request later.
+ */
+public class EnvelopeUnavailableException extends EnvelopeOperationFailedException {
+
+	private static final long serialVersionUID = 1L;
+
+	public EnvelopeUnavailableException(String message) {
+		super(message);
+	}
+
+}
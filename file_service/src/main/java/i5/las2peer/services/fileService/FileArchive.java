@@ -0,0 +1,164 @@
+package i5.las2peer.services.fileService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+import net.minidev.json.parser.ParseException;
+
+/**
+ * The ZIP archive format of bulk exports and imports. Each file is stored as two entries, its metadata as JSON object
+ * in {@code meta/<identifier>.json} followed by its content in {@code files/<identifier>}. So an unpacked archive is a
+ * plain directory tree of the stored files. Contents are stored uncompressed, most uploaded media is compressed
+ * already.
+ */
+class FileArchive {
+
+	public static final String META_PREFIX = "meta/";
+	public static final String META_SUFFIX = ".json";
+	public static final String FILES_PREFIX = "files/";
+
+	/**
+	 * Receives the files read from an archive.
+	 */
+	public interface Handler {
+
+		/**
+		 * @param file The file with metadata and content.
+		 * @param listed True if the file was listed on the file index of the exporting service.
+		 * @throws Exception If the file could not be handled, reading is aborted.
+		 */
+		void file(StoredFile file, boolean listed) throws Exception;
+
+	}
+
+	/**
+	 * Appends a file to an archive.
+	 *
+	 * @param zip The archive stream.
+	 * @param file The file to write.
+	 * @param listed True if the file is listed on the file index.
+	 * @throws IOException If writing failed.
+	 */
+	public static void write(ZipOutputStream zip, StoredFile file, boolean listed) throws IOException {
+		JSONObject meta = new JSONObject();
+		meta.put("identifier", file.getIdentifier());
+		meta.put("name", file.getName());
+		meta.put("mimeType", file.getMimeType());
+		meta.put("ownerId", file.getOwnerId());
+		meta.put("description", file.getDescription());
+		meta.put("lastModified", file.getLastModified());
+		meta.put("sha256", file.getSha256());
+		meta.put("listed", listed);
+		ZipEntry metaEntry = new ZipEntry(META_PREFIX + file.getIdentifier() + META_SUFFIX);
+		metaEntry.setTime(file.getLastModified());
+		zip.putNextEntry(metaEntry);
+		zip.write(meta.toJSONString().getBytes(StandardCharsets.UTF_8));
+		zip.closeEntry();
+		byte[] content = file.getContent();
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		ZipEntry contentEntry = new ZipEntry(FILES_PREFIX + file.getIdentifier());
+		contentEntry.setMethod(ZipEntry.STORED);
+		contentEntry.setSize(content.length);
+		contentEntry.setCompressedSize(content.length);
+		contentEntry.setCrc(crc.getValue());
+		contentEntry.setTime(file.getLastModified());
+		zip.putNextEntry(contentEntry);
+		zip.write(content);
+		zip.closeEntry();
+	}
+
+	/**
+	 * Reads all files of an archive.
+	 *
+	 * @param in The archive stream.
+	 * @param maxFileSize The maximum size of a single file in bytes.
+	 * @param handler Receives each file after its content was read.
+	 * @return Returns the number of files read.
+	 * @throws IllegalArgumentException If the archive is malformed or contains a file above the size limit.
+	 * @throws Exception The exception of the handler or reading the stream.
+	 */
+	public static int read(InputStream in, long maxFileSize, Handler handler) throws IllegalArgumentException,
+			Exception {
+		int count = 0;
+		Map<String, Map<?, ?>> pending = new HashMap<>();
+		try (ZipInputStream zip = new ZipInputStream(in, StandardCharsets.UTF_8)) {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				String name = entry.getName();
+				if (entry.isDirectory()) {
+					continue;
+				} else if (name.startsWith(META_PREFIX) && name.endsWith(META_SUFFIX)) {
+					String identifier = name.substring(META_PREFIX.length(), name.length() - META_SUFFIX.length());
+					byte[] json = readEntry(zip, 1000000, name);
+					try {
+						Object meta = new JSONParser(JSONParser.MODE_PERMISSIVE)
+								.parse(new String(json, StandardCharsets.UTF_8));
+						if (!(meta instanceof Map)) {
+							throw new IllegalArgumentException("Metadata " + name + " is no JSON object");
+						}
+						pending.put(identifier, (Map<?, ?>) meta);
+					} catch (ParseException e) {
+						throw new IllegalArgumentException("Invalid metadata " + name + ": " + e.getMessage());
+					}
+				} else if (name.startsWith(FILES_PREFIX)) {
+					String identifier = name.substring(FILES_PREFIX.length());
+					Map<?, ?> meta = pending.remove(identifier);
+					if (meta == null) {
+						throw new IllegalArgumentException("No metadata before content of " + identifier);
+					}
+					byte[] content = readEntry(zip, maxFileSize, name);
+					Object lastModified = meta.get("lastModified");
+					StoredFile file = new StoredFile(identifier, string(meta, "name"), content,
+							lastModified instanceof Number ? ((Number) lastModified).longValue()
+									: System.currentTimeMillis(),
+							string(meta, "ownerId"), string(meta, "mimeType"), string(meta, "description"));
+					file.setSha256(string(meta, "sha256"));
+					handler.file(file, !Boolean.FALSE.equals(meta.get("listed")));
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private static byte[] readEntry(InputStream in, long maxSize, String name) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 * 1024];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			if (out.size() + n > maxSize) {
+				throw new IllegalArgumentException("Entry " + name + " exceeds limit of " + maxSize + " bytes");
+			}
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static String string(Map<?, ?> meta, String key) {
+		Object value = meta.get(key);
+		return value != null ? value.toString() : null;
+	}
+
+	/**
+	 * Starts an archive.
+	 *
+	 * @param out The stream to write the archive to.
+	 * @return Returns the archive stream.
+	 */
+	public static ZipOutputStream open(OutputStream out) {
+		return new ZipOutputStream(out, StandardCharsets.UTF_8);
+	}
+
+}
@@ -15,6 +15,9 @@ import i5.las2peer.services.fileService.StoredFileIndex.StoredFileIndexComparato
 import i5.las2peer.tools.SimpleTools;
 import io.swagger.annotations.*;
 import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+import net.minidev.json.parser.ParseException;
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.glassfish.jersey.media.multipart.FormDataBodyPart;
 import org.glassfish.jersey.media.multipart.FormDataContentDisposition;
@@ -27,15 +30,32 @@ import javax.ws.rs.core.PathSegment;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
-import java.io.ByteArrayOutputStream;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 import java.util.logging.Level;
+import java.util.zip.ZipOutputStream;
 
 /**
  * las2peer File Service
@@ -69,7 +89,182 @@ public class FileService extends RESTService {
     private static final String INDEX_IDENTIFIER_PREFIX = "index-";
     private static final String RESOURCE_INDEX_JSON = "/index.json";
     private static final String RESOURCE_INDEX_HTML = "/index.html";
+    private static final String RESOURCE_OWNER_INDEX_JSON = "/index/owner.json";
+    private static final String OWNER_INDEX_INFIX = "-owner-";
     private static final SimpleDateFormat HTML_DATE_FMT = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+    private static final String RESOURCE_UPLOADS_BASENAME = "/uploads";
+    private static final String RESOURCE_DELTA_BASENAME = "/delta";
+    private static final String RESOURCE_BLOB_BASENAME = "/blob";
+    private static final String DIGEST_ENVELOPE_BASENAME = "digest-";
+    private static final String RESOURCE_SITES_BASENAME = "/sites";
+    private static final String SITE_ENVELOPE_BASENAME = "site-";
+    private static final String VARIANT_ENVELOPE_BASENAME = "variant-";
+    private static final String VARIANTS_ENVELOPE_BASENAME = "variants-";
+    private static final String RESOURCE_BULK_BASENAME = "/bulk";
+    private static final String HEADER_NEXT_OFFSET = "Next-Offset";
+    private static final String RESOURCE_CHANGES_BASENAME = "/changes";
+    private static final String CHANGES_IDENTIFIER_PREFIX = "changes-";
+    private static final String HOTLIST_IDENTIFIER_PREFIX = "hotfiles-";
+    private static final String RESOURCE_VERSIONS_BASENAME = "/versions";
+    private static final String VERSIONS_ENVELOPE_BASENAME = "versions-";
+    private static final String BLOCK_ENVELOPE_BASENAME = "block-";
+    // released version blocks keep their content this long, far longer than an archive may take
+    private static final long VERSION_BLOCK_GRACE_MILLIS = 3600000;
+    // failed appends to the change log are retried after 1, 2, ... seconds
+    private static final int CHANGE_LOG_ATTEMPTS = 4;
+    private static final long CHANGE_LOG_RETRY_MILLIS = 1000;
+    // marks a hot file deleted on this node in the pending hot list changes
+    private static final long HOT_FILE_DELETED = -1;
+    // access rates for the hot file threshold are decayed with this half-life
+    private static final long HOT_FILE_HALF_LIFE_MILLIS = 60000;
+    // content addressed responses never change, so caches may keep them for a year without revalidation
+    private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    // configurable properties, set from the service properties file
+    private long uploadSessionTimeoutSeconds = 3600;
+    private int maxUploadSessions = 100;
+    private long tombstoneRetentionSeconds = 86400;
+    private long sweepIntervalSeconds = 3600;
+    private int envelopeThreads = 32;
+    private int envelopeWriteThreads = 16;
+    private int envelopeQueueSize = 256;
+    private long envelopeTimeoutSeconds = 30;
+    private int hedgeMaxExtraPercent = 0;
+    private long hedgeMinDelayMillis = 20;
+    private long uploadBudgetMB = 512;
+    private long uploadAdmissionWaitSeconds = 5;
+    private long downloadBudgetMB = 512;
+    private long downloadAdmissionWaitSeconds = 5;
+    private String blobCacheDirectory = "node-storage/fileservice-cache";
+    private long blobCacheMB = 1024;
+    private long blobCacheFreshnessSeconds = 300;
+    private int deltaBlockSize = 8192;
+    private String cacheControlPolicy = "";
+    private long siteManifestTtlSeconds = 60;
+    private int variantThreads = 2;
+    private int variantQueueSize = 16;
+    private int variantMaxDimension = 4096;
+    private long variantMaxSourceMegapixels = 50;
+    private long variantTimeoutSeconds = 30;
+    private String accessRecordFile = "node-storage/fileservice-access.bin";
+    private long accessRecordSaveSeconds = 300;
+    private long accessRecordHalfLifeSeconds = 86400;
+    private int warmupFiles = 50;
+    private long slowRequestMillis = 1000;
+    private String traceExportFile = "";
+    private int bulkConcurrency = 16;
+    private long bulkExportMaxMB = 256;
+    private long agentCacheTtlSeconds = 60;
+    private long indexCacheSeconds = 5;
+    private int changeFeedEvents = 1000;
+    private long changeFeedPollMillis = 2000;
+    private int changeFeedMaxWaiters = 64;
+    private long changeFeedMaxWaitSeconds = 60;
+    private int hotFileAccessesPerMinute = 120;
+    private long hotListRefreshSeconds = 30;
+    private long hotFileCooldownSeconds = 300;
+    private int maxPinnedFiles = 100;
+    private int maxVersions = 20;
+    private long versionRetentionSeconds = 2592000;
+    private int versionBlockSize = 65536;
+
+    // chunked upload sessions of this service instance by session id, kept in memory only
+    private final Map<String, UploadSession> uploadSessions = new ConcurrentHashMap<>();
+    // time of the last index sweep, used to schedule the background sweeper at most once per interval
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+    // bounded worker pool for blocking envelope operations
+    private final EnvelopeExecutor envelopeExecutor;
+    // coalesce concurrent reads of the same file or index envelope on this node
+    private final SingleFlight<String, StoredFile> fileFetches = new SingleFlight<>();
+    private final SingleFlight<String, CompactIndex> indexFetches = new SingleFlight<>();
+    private final SingleFlight<String, StoredFileIndexList> partitionFetches = new SingleFlight<>();
+    // owners whose index partition missed an update on this node, rebuilt from the file index
+    private final Set<String> staleOwnerIndexes = ConcurrentHashMap.newKeySet();
+    // the file index in compact form, kept for the configured time and replaced by writes on this node
+    private volatile CachedIndex cachedIndex;
+    private final AtomicLong indexGeneration = new AtomicLong();
+    // the heap budget for all buffered uploads
+    private final ByteBudget uploadBudget;
+    // the heap budget for file contents fetched from the network until their response is written
+    private final ByteBudget downloadBudget;
+    // on-disk cache of file contents, null if disabled
+    private final BlobCache blobCache;
+    // Cache-Control values for files served by identifier
+    private final CachePolicy cachePolicy;
+    // manifests of deployed sites by site name, including names known to have no site
+    private final SiteCache siteCache;
+    // renders image variants on a bounded pool, each variant is generated at most once at a time on this node
+    private final ImageVariants imageVariants;
+    private final SingleFlight<String, StoredFile> variantFetches = new SingleFlight<>();
+    // decayed access frequencies of served files, used to warm up the caches after a restart
+    private final AccessSketch accessSketch;
+    private volatile java.nio.file.Path accessRecord;
+    private final AtomicLong lastAccessRecordSave = new AtomicLong(System.currentTimeMillis());
+    private final AtomicBoolean warmedUp = new AtomicBoolean();
+    // slow request log and optional export of request traces
+    private final TraceLog traceLog;
+    // groups resolved for sharing, per requesting agent
+    private final AgentCache agentCache;
+    // long poll requests waiting for index changes
+    private final ChangeFeed changeFeed;
+    // index changes of this node not yet appended to the change log
+    private final ChangeQueue changeQueue;
+    // access rates of files on this node and the last read list of files hot on any node, pinned in the blob cache
+    private final AccessSketch rateSketch;
+    private volatile HotList hotList;
+    // versions of hot files stored or deleted on this node, published to the hot list with the next sync
+    private final ConcurrentHashMap<String, Long> hotListChanges = new ConcurrentHashMap<>();
+    private final AtomicLong lastHotListSync = new AtomicLong();
+
+    private static class CachedIndex {
+
+        private final CompactIndex index;
+        private final long loaded;
+
+        private CachedIndex(CompactIndex index, long loaded) {
+            this.index = index;
+            this.loaded = loaded;
+        }
+
+    }
+
+    public FileService() {
+        // read and set properties values
+        setFieldValues();
+        envelopeExecutor = new EnvelopeExecutor(envelopeThreads, envelopeWriteThreads, envelopeQueueSize,
+                envelopeTimeoutSeconds * 1000, hedgeMaxExtraPercent / 100.0, hedgeMinDelayMillis);
+        uploadBudget = new ByteBudget(uploadBudgetMB * 1000000, uploadAdmissionWaitSeconds * 1000);
+        downloadBudget = new ByteBudget(downloadBudgetMB * 1000000, downloadAdmissionWaitSeconds * 1000);
+        // each service instance gets its own cache, named after its agent
+        blobCache = blobCacheMB > 0 ? new BlobCache(() -> Paths.get(blobCacheDirectory, getAgent().getIdentifier()),
+                blobCacheMB * 1000000, blobCacheFreshnessSeconds * 1000) : null;
+        CachePolicy policy;
+        try {
+            policy = new CachePolicy(cacheControlPolicy);
+        } catch (IllegalArgumentException e) {
+            logger.log(Level.WARNING, "Invalid cacheControlPolicy. No Cache-Control headers are sent.", e);
+            policy = new CachePolicy(null);
+        }
+        cachePolicy = policy;
+        siteCache = new SiteCache(siteManifestTtlSeconds * 1000, 10000);
+        imageVariants = new ImageVariants(variantThreads, variantQueueSize, variantMaxDimension,
+                variantMaxSourceMegapixels * 1000000, variantTimeoutSeconds * 1000);
+        accessSketch = new AccessSketch(Math.max(warmupFiles * 4, 64), accessRecordHalfLifeSeconds * 1000);
+        warmedUp.set(warmupFiles <= 0);
+        agentCache = new AgentCache(agentCacheTtlSeconds * 1000, 10000);
+        changeFeed = new ChangeFeed(changeFeedPollMillis, changeFeedMaxWaiters);
+        changeQueue = new ChangeQueue(changeFeedEvents, CHANGE_LOG_ATTEMPTS, CHANGE_LOG_RETRY_MILLIS);
+        rateSketch = new AccessSketch(Math.max(maxPinnedFiles * 4, 64), HOT_FILE_HALF_LIFE_MILLIS);
+        traceLog = new TraceLog(slowRequestMillis, traceExportFile.isEmpty() ? null : Paths.get(traceExportFile));
+    }
+
+    /**
+     * @return Returns the executor of the envelope operations of this service instance.
+     */
+    EnvelopeExecutor getEnvelopeExecutor() {
+        return envelopeExecutor;
+    }
 
     /**
      * Ensures that the given String is returned with exactly one leading slash and zero tailing slashes.
@@ -109,6 +304,14 @@ public class FileService extends RESTService {
         getResourceConfig().register(ResourceFiles.class);
         getResourceConfig().register(ResourceDownload.class);
         getResourceConfig().register(ResourceIndex.class);
+        getResourceConfig().register(ResourceUploads.class);
+        getResourceConfig().register(ResourceDelta.class);
+        getResourceConfig().register(ResourceBlob.class);
+        getResourceConfig().register(ResourceSites.class);
+        getResourceConfig().register(ResourceBulk.class);
+        getResourceConfig().register(ResourceChanges.class);
+        getResourceConfig().register(ResourceVersions.class);
+        getResourceConfig().register(TraceFilter.class);
     }
 
     /**
@@ -123,16 +326,58 @@ public class FileService extends RESTService {
      */
     public Map<String, Object> fetchFile(String identifier)
             throws EnvelopeAccessDeniedException, EnvelopeNotFoundException, EnvelopeOperationFailedException {
+        recordAccess(identifier);
         StoredFile file = fetchFileReal(identifier);
         return file.toMap();
     }
 
     private StoredFile fetchFileReal(String identifier)
             throws EnvelopeAccessDeniedException, EnvelopeNotFoundException, EnvelopeOperationFailedException {
-        // fetch envelope by file identifier
-        Envelope env = Context.get().requestEnvelope(ENVELOPE_BASENAME + identifier);
-        // read content from envelope into string
-        StoredFile result = (StoredFile) env.getContent();
+        return fetchFileReal(Context.get(), identifier);
+    }
+
+    private StoredFile fetchFileReal(Context context, String identifier)
+            throws EnvelopeAccessDeniedException, EnvelopeNotFoundException, EnvelopeOperationFailedException {
+        return fetchFileReal(context, identifier, true);
+    }
+
+    /**
+     * Fetches a file from the network.
+     *
+     * @param context    The context used for network operations.
+     * @param identifier The file identifier.
+     * @param cache      False to keep the file out of the blob cache, e.g. for bulk reads that would evict the
+     *                   frequently used files.
+     * @return Returns the file.
+     */
+    private StoredFile fetchFileReal(Context context, String identifier, boolean cache)
+            throws EnvelopeAccessDeniedException, EnvelopeNotFoundException, EnvelopeOperationFailedException {
+        StoredFile result;
+        try (RequestTrace.Span span = RequestTrace.span("fetch")) {
+            // concurrent requests for the same file share one fetch, file envelopes are public anyway
+            result = fileFetches.execute(identifier, () -> {
+                // fetch envelope by file identifier
+                Envelope env;
+                try (RequestTrace.Span envelopeSpan = RequestTrace.span("envelope")) {
+                    env = envelopeExecutor.callHedged(context,
+                            c -> c.requestEnvelope(ENVELOPE_BASENAME + identifier));
+                }
+                // read content from envelope into string
+                StoredFile file;
+                try (RequestTrace.Span deserializeSpan = RequestTrace.span("deserialize")) {
+                    file = (StoredFile) env.getContent();
+                }
+                if (cache && blobCache != null && !file.isDeleted()) {
+                    blobCache.put(file);
+                }
+                return file;
+            });
+        } catch (Exception e) {
+            throw EnvelopeExecutor.unwrap(e);
+        }
+        if (result.isDeleted()) {
+            throw new EnvelopeNotFoundException("File (" + identifier + ") was deleted");
+        }
         return result;
     }
 
@@ -213,7 +458,7 @@ public class FileService extends RESTService {
         Agent owner = Context.get().getMainAgent();
         if (shareWithGroup != null && !shareWithGroup.isEmpty()) {
             try {
-                Agent shareGroup = Context.get().requestAgent(shareWithGroup);
+                Agent shareGroup = agentCache.get(Context.get(), shareWithGroup);
                 if (!(shareGroup instanceof GroupAgent)) {
                     throw new IllegalArgumentException("Can not share file with non group agent '" + shareWithGroup
                             + "' (" + shareGroup.getClass().getCanonicalName() + ")");
@@ -223,288 +468,3148 @@ public class FileService extends RESTService {
                 throw new IllegalArgumentException("Can not share with (" + shareWithGroup + "). Agent not found.");
             }
         }
-        return storeFileReal(owner, new StoredFile(identifier, filename, content, new Date().getTime(),
-                owner.getIdentifier(), mimeType, description), listFileOnIndex);
+        try {
+            return storeFileReal(owner, new StoredFile(identifier, filename, content, new Date().getTime(),
+                    owner.getIdentifier(), mimeType, description), listFileOnIndex);
+        } catch (EnvelopeAccessDeniedException e) {
+            // the membership may have been revoked since the group was cached
+            agentCache.invalidate(Context.get(), owner.getIdentifier());
+            throw e;
+        }
     }
 
     private boolean storeFileReal(Agent owner, StoredFile file, boolean listFileOnIndex)
             throws IllegalArgumentException, EnvelopeAccessDeniedException, EnvelopeOperationFailedException,
             ServiceException {
-        boolean created = false;
+        return storeFileReal(Context.get(), owner, file, listFileOnIndex);
+    }
+
+    private boolean storeFileReal(Context context, Agent owner, StoredFile file, boolean listFileOnIndex)
+            throws IllegalArgumentException, EnvelopeAccessDeniedException, EnvelopeOperationFailedException,
+            ServiceException {
         // limit (configurable) file size
         if (file.getContent() != null && file.getContent().length > MAX_FILE_SIZE_MB * 1000000) {
             throw new IllegalArgumentException("File too big! Maximum size: " + MAX_FILE_SIZE_MB + " MB");
         }
-        // fetch or create envelope by file identifier
-        Envelope fileEnv = null;
-        try {
-            fileEnv = Context.get().requestEnvelope(ENVELOPE_BASENAME + file.getIdentifier());
-        } catch (EnvelopeNotFoundException e) {
-            logger.info("File (" + file.getIdentifier() + ") not found. Creating new one. " + e.toString());
-            fileEnv = Context.get().createEnvelope(ENVELOPE_BASENAME + file.getIdentifier(), owner);
-            created = true;
-        }
-        // update envelope content
-        fileEnv.setPublic();
-        fileEnv.setContent(file);
-        // store envelope with file content
-        Context.get().storeEnvelope(fileEnv, owner);
-        if (listFileOnIndex) {
-            StoredFileIndex indexEntry = new StoredFileIndex(file.getIdentifier(), file.getName(),
-                    file.getLastModified(), file.getOwnerId(), file.getMimeType(), file.getDescription(),
-                    file.getFileSize());
+        if (!file.isDeleted()) {
+            try (RequestTrace.Span span = RequestTrace.span("hash")) {
+                file.setSha256(sha256(file.getContent()));
+            }
+        }
+        // fetch or create envelope by file identifier and store the file content
+        AtomicReference<StoredFile> replaced = new AtomicReference<>();
+        boolean created;
+        // a file must not be stored without its index entry because the index write was rejected
+        try (EnvelopeExecutor.WriteSequence writes = envelopeExecutor.beginWrites()) {
+            try (RequestTrace.Span fileSpan = RequestTrace.span("store.file")) {
+                created = envelopeExecutor.callOrCreate(context, c -> {
+                    Envelope fileEnv;
+                    boolean isNew = false;
+                    try {
+                        fileEnv = c.requestEnvelope(ENVELOPE_BASENAME + file.getIdentifier());
+                        replaced.set((StoredFile) fileEnv.getContent());
+                        // overwriting a tombstone recreates a deleted file
+                        isNew = replaced.get().isDeleted();
+                    } catch (EnvelopeNotFoundException e) {
+                        logger.info("File (" + file.getIdentifier() + ") not found. Creating new one. "
+                                + e.toString());
+                        fileEnv = c.createEnvelope(ENVELOPE_BASENAME + file.getIdentifier(), owner);
+                        isNew = true;
+                    }
+                    // update envelope content
+                    fileEnv.setPublic();
+                    fileEnv.setContent(file);
+                    // store envelope with file content
+                    c.storeEnvelope(fileEnv, owner);
+                    return isNew;
+                });
+            }
+            if (listFileOnIndex) {
+                try (RequestTrace.Span span = RequestTrace.span("store.index")) {
+                    updateIndex(context, Collections.singletonList(indexEntry(file)));
+                }
+            }
+        }
+        if (file.getSha256() != null) {
+            scheduleDigest(context, file.getIdentifier(), file.getSha256());
+        }
+        if (blobCache != null) {
+            blobCache.put(file);
+        }
+        // other nodes replace their pinned copies of a hot file on their next sync
+        HotList hot = hotList;
+        if (hot != null && hot.contains(file.getIdentifier())) {
+            hotListChanges.put(file.getIdentifier(), file.getLastModified());
+            scheduleHotListSync(context, true);
+        }
+        StoredFile previous = replaced.get();
+        if (previous != null && !previous.isDeleted() && previous.getLastModified() != file.getLastModified()) {
+            scheduleArchive(context, owner, previous);
+            if (isImage(previous)) {
+                scheduleVariantCleanup(context, file.getIdentifier(), file.getSha256());
+            }
+        }
+        logger.info("stored file (" + file.getIdentifier() + ") in network storage");
+        scheduleSweep(context);
+        return created;
+    }
+
+    /**
+     * Adds entries to the file index in a single write. Existing entries with the same identifiers are replaced.
+     *
+     * @param context The context of the requesting thread.
+     * @param entries The new index entries.
+     * @throws EnvelopeAccessDeniedException    If the service agent is not able to access the index envelope
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network
+     * @throws ServiceException                 If the service is not started yet
+     */
+    private void updateIndex(Context context, Collection<StoredFileIndex> entries)
+            throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
+        Map<String, String> owners = new HashMap<>();
+        for (StoredFileIndex entry : entries) {
+            owners.put(entry.getIdentifier().toLowerCase(Locale.ROOT), entry.getOwnerId());
+        }
+        String indexIdentifier = getIndexIdentifier();
+        Agent serviceAgent = getAgent();
+        // entries of files that changed their owner, removed from the partition of the previous owner
+        List<StoredFileIndex> moved = new ArrayList<>();
+        StoredFileIndexList updated = envelopeExecutor.callOrCreate(context, c -> {
             // fetch or create file index envelope
             Envelope indexEnv;
             StoredFileIndexList fileIndex;
             try {
-                indexEnv = Context.get().requestEnvelope(getIndexIdentifier(), getAgent());
+                indexEnv = c.requestEnvelope(indexIdentifier, serviceAgent);
                 fileIndex = (StoredFileIndexList) indexEnv.getContent();
                 // remove old entries
-                Iterator<StoredFileIndex> itIndex = fileIndex.iterator();
-                while (itIndex.hasNext()) {
-                    StoredFileIndex index = itIndex.next();
-                    if (indexEntry.getIdentifier().equalsIgnoreCase(index.getIdentifier())) {
-                        itIndex.remove();
+                fileIndex.removeIf(index -> {
+                    String identifier = index.getIdentifier().toLowerCase(Locale.ROOT);
+                    if (!owners.containsKey(identifier)) {
+                        return false;
                     }
-                }
+                    if (!index.isDeleted() && !Objects.equals(owners.get(identifier), index.getOwnerId())) {
+                        moved.add(index);
+                    }
+                    return true;
+                });
             } catch (EnvelopeNotFoundException e) {
                 logger.info("Index not found. Creating new one.");
-                indexEnv = Context.get().createEnvelope(getIndexIdentifier(), getAgent());
+                indexEnv = c.createEnvelope(indexIdentifier, serviceAgent);
                 fileIndex = new StoredFileIndexList();
             }
             // update file index
-            fileIndex.add(indexEntry);
+            fileIndex.addAll(entries);
             indexEnv.setContent(fileIndex);
             // store index envelope
-            Context.get().storeEnvelope(indexEnv, getAgent());
-        }
-        logger.info("stored file (" + file.getIdentifier() + ") in network storage");
-        return created;
-    }
-
-    private Response downloadFile(String identifier) {
-        try {
-            StoredFile file = fetchFileReal(identifier);
-            // set binary file content as response body
-            ResponseBuilder responseBuilder = Response.ok(file.getContent());
-            // set headers
-            responseBuilder.header(HttpHeaders.CONTENT_DISPOSITION, "attachment" + escapeFilename(file.getName()));
-            responseBuilder.header(HttpHeaders.LAST_MODIFIED, RFC2822FMT.format(new Date(file.getLastModified())));
-            responseBuilder.header(HttpHeaders.CONTENT_TYPE, file.getMimeType());
-            // following some non HTTP standard header fields
-            responseBuilder.header(HEADER_OWNERID, file.getOwnerId());
-            responseBuilder.header(HEADER_CONTENT_DESCRIPTION, file.getDescription());
-            return responseBuilder.build();
-        } catch (EnvelopeNotFoundException e) {
-            logger.log(Level.INFO, "File (" + identifier + ") not found!", e);
-            return Response.status(Status.NOT_FOUND).build();
-        } catch (EnvelopeAccessDeniedException e) {
-            logger.log(Level.INFO, e.toString(), e);
-            return Response.status(Status.FORBIDDEN).entity(e.toString()).build();
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "Can't read file (" + identifier + ") content from network storage! ", e);
-            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
-        }
-    }
-
-    private Response getFile(List<String> cleanPaths) {
-        String originalIdentifier = String.join("/", cleanPaths);
-        try {
-            StoredFile file = null;
-            ArrayList<String> checkPaths = new ArrayList<>(cleanPaths);
-            try {
-                file = fetchFileReal(originalIdentifier);
-            } catch (EnvelopeNotFoundException e) {
-                while (!checkPaths.isEmpty()) {
-                    String identifier = String.join("/", checkPaths);
-                    try {
-                        file = fetchFileReal(identifier + "/index.html");
-                        break;
-                    } catch (Exception e2) {
-                        checkPaths.remove(checkPaths.size() - 1);
-                    }
-                }
+            c.storeEnvelope(indexEnv, serviceAgent);
+            return fileIndex;
+        });
+        replaceIndex(CompactIndex.of(updated));
+        // update the index partitions of all affected owners
+        Map<String, List<StoredFileIndex>> added = new HashMap<>();
+        for (StoredFileIndex entry : entries) {
+            if (entry.getOwnerId() != null) {
+                added.computeIfAbsent(entry.getOwnerId(), ownerId -> new ArrayList<>()).add(entry);
             }
-            if (file == null) {
-                logger.log(Level.INFO, "File (" + originalIdentifier + ") not found!");
-                return Response.status(Status.NOT_FOUND).build();
+        }
+        Map<String, Set<String>> removed = new HashMap<>();
+        for (StoredFileIndex entry : moved) {
+            if (entry.getOwnerId() != null) {
+                removed.computeIfAbsent(entry.getOwnerId(), ownerId -> new HashSet<>())
+                        .add(entry.getIdentifier().toLowerCase(Locale.ROOT));
             }
-            // set binary file content as response body
-            ResponseBuilder responseBuilder = Response.ok(file.getContent());
-            // set headers
-            responseBuilder.header(HttpHeaders.CONTENT_DISPOSITION, "inline" + escapeFilename(file.getName()));
-            responseBuilder.header(HttpHeaders.LAST_MODIFIED, RFC2822FMT.format(new Date(file.getLastModified())));
-            responseBuilder.header(HttpHeaders.CONTENT_TYPE, file.getMimeType());
-            // following some non HTTP standard header fields
-            responseBuilder.header(HEADER_OWNERID, file.getOwnerId());
-            responseBuilder.header(HEADER_CONTENT_DESCRIPTION, file.getDescription());
-            return responseBuilder.build();
-        } catch (EnvelopeAccessDeniedException e) {
-            logger.log(Level.INFO, e.toString(), e);
-            return Response.status(Status.FORBIDDEN).entity(e.toString()).build();
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "Can't read file (" + originalIdentifier + ") content from network storage! ", e);
-            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
         }
+        Set<String> affected = new HashSet<>(added.keySet());
+        affected.addAll(removed.keySet());
+        for (String ownerId : affected) {
+            scheduleOwnerIndexUpdate(context, ownerId, added.getOrDefault(ownerId, Collections.emptyList()),
+                    removed.getOrDefault(ownerId, Collections.emptySet()));
+        }
+        recordChanges(context, ChangeLog.UPSERT, entries);
     }
 
-    private String escapeFilename(String filename) {
-        String result = "";
-        if (filename != null) {
-            result = ";filename=\"" + filename + "\""; // this is the "old" way
+    /**
+     * Updates the index partition of a single owner in the background. Partitions are only a shortcut to the files of
+     * an owner, so a failed update does not fail the store or delete. The partition is marked as stale on this node
+     * instead, listings of the owner are served from the file index until the partition was rebuilt.
+     *
+     * @param context The context used for network operations, since this runs outside of the request thread.
+     * @param ownerId The agent id of the owner.
+     * @param added   The new entries of the owner.
+     * @param removed The lower case identifiers of files no longer owned by the owner.
+     */
+    private void scheduleOwnerIndexUpdate(Context context, String ownerId, Collection<StoredFileIndex> added,
+                                          Set<String> removed) {
+        context.getExecutor().execute(() -> {
+            // the file index already contains this update, so a rebuild includes it
+            boolean rebuild = staleOwnerIndexes.remove(ownerId);
             try {
-                // this is for modern browsers
-                result += ";filename*=UTF-8''" + URLEncoder.encode(filename, "UTF-8").replace("+", "%20");
-            } catch (UnsupportedEncodingException e) {
-                // if this fails, we still have the "old" way
-                logger.log(Level.WARNING, e.toString(), e);
+                updateOwnerIndex(context, ownerId, added, removed, rebuild);
+            } catch (Exception e) {
+                staleOwnerIndexes.add(ownerId);
+                logger.log(Level.WARNING, "Could not update index partition of owner (" + ownerId
+                        + "), it is rebuilt with the next update", e);
             }
-        }
-        return result;
+        });
     }
 
-    private Response uploadFile(String identifier, FormDataContentDisposition fileContentHeader,
-                                FormDataBodyPart bodyPart, InputStream fileContentStream, String shareWithGroup, String description,
-                                String excludeFromIndex, boolean enforceIdentifier) {
-        if (fileContentStream == null) {
-            return Response.status(Status.BAD_REQUEST).entity("File upload failed! No form data at all.").build();
+    /**
+     * Updates the index partition of a single owner, which lists only the files of this owner. A missing or stale
+     * partition is rebuilt from the entries of the owner in the file index.
+     *
+     * @param context The context used for network operations.
+     * @param ownerId The agent id of the owner.
+     * @param added   The new entries of the owner.
+     * @param removed The lower case identifiers of files no longer owned by the owner.
+     * @param rebuild True to rebuild the partition from the file index.
+     * @throws EnvelopeAccessDeniedException    If the service agent is not able to access the partition envelope
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network
+     * @throws ServiceException                 If the service is not started yet
+     */
+    private void updateOwnerIndex(Context context, String ownerId, Collection<StoredFileIndex> added,
+                                  Set<String> removed, boolean rebuild)
+            throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
+        if (!rebuild && added.isEmpty() && removed.isEmpty()) {
+            return;
         }
-        try {
-            String filename = null;
-            if (fileContentHeader != null) {
-                filename = fileContentHeader.getFileName();
-            }
-
-            // infer MIME type
-            String mimeType = MimeTypes.get(filename);
-            if (mimeType == MimeTypes.DEFAULT && bodyPart != null) {
-                MediaType type = bodyPart.getMediaType();
-                if (type != null) {
-                    mimeType = type.toString();
-                }
-            }
-            // write file content input stream into byte buffer
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            int nRead;
-            byte[] data = new byte[4096];
-            while ((nRead = fileContentStream.read(data, 0, data.length)) != -1) {
-                if (buffer.size() < MAX_FILE_SIZE_MB * 1000000 - data.length) {
-                    // still space left in local buffer
-                    buffer.write(data, 0, nRead);
-                } else {
-                    return Response.status(Status.REQUEST_ENTITY_TOO_LARGE)
-                            .entity("Given request body exceeds limit of " + MAX_FILE_SIZE_MB + " MB").build();
+        Set<String> replaced = new HashSet<>(removed);
+        for (StoredFileIndex entry : added) {
+            replaced.add(entry.getIdentifier().toLowerCase(Locale.ROOT));
+        }
+        String indexIdentifier = getIndexIdentifier();
+        String partitionIdentifier = getOwnerIndexIdentifier(ownerId);
+        Agent serviceAgent = getAgent();
+        envelopeExecutor.callOrCreate(context, c -> {
+            Envelope partitionEnv;
+            StoredFileIndexList partition = null;
+            try {
+                partitionEnv = c.requestEnvelope(partitionIdentifier, serviceAgent);
+                if (!rebuild) {
+                    partition = (StoredFileIndexList) partitionEnv.getContent();
+                    partition.removeIf(index -> replaced.contains(index.getIdentifier().toLowerCase(Locale.ROOT)));
+                    partition.addAll(added);
                 }
+            } catch (EnvelopeNotFoundException e) {
+                partitionEnv = c.createEnvelope(partitionIdentifier, serviceAgent);
             }
-            byte[] filecontent = buffer.toByteArray();
-            // validate input
-            if (filecontent.length < 1
-                    || new String(filecontent, StandardCharsets.UTF_8).equalsIgnoreCase("undefined")) {
-                return Response.status(Status.BAD_REQUEST)
-                        .entity("File (" + filename
-                                + ") upload failed! No content provided. Add field 'filecontent' to your form.")
-                        .build();
-            }
-            logger.info("upload request for (" + filename + ") with mime type '" + mimeType + "' and size "
-                    + filecontent.length + " bytes");
-            if (identifier != null) {
-                // these data belong to the (optional) identifier text input form element
-                identifier = identifier.trim();
-                // validate identifier
-                if (identifier.contains("//")) {
-                    return Response.status(Status.BAD_REQUEST)
-                            .entity("Invalid file identifier (" + identifier + "). Must not contain double slashes.")
-                            .build();
-                } else if (identifier.startsWith("/")) {
-                    return Response.status(Status.BAD_REQUEST)
-                            .entity("Invalid file identifier (" + identifier + "). Must not start with slash.").build();
-                } else if (identifier.endsWith("/")) {
-                    return Response.status(Status.BAD_REQUEST)
-                            .entity("Invalid file identifier (" + identifier + "). Must not end with slash.").build();
+            if (partition == null) {
+                partition = new StoredFileIndexList();
+                try {
+                    Envelope indexEnv = c.requestEnvelope(indexIdentifier, serviceAgent);
+                    for (StoredFileIndex index : (StoredFileIndexList) indexEnv.getContent()) {
+                        if (!index.isDeleted() && ownerId.equals(index.getOwnerId())) {
+                            partition.add(index);
+                        }
+                    }
+                } catch (EnvelopeNotFoundException e) {
+                    logger.fine("No index found while building index partition of owner (" + ownerId + ")");
                 }
             }
-            // optional hide from index
-            boolean listFileOnIndex = true;
-            if ("on".equalsIgnoreCase(excludeFromIndex) || "true".equalsIgnoreCase(excludeFromIndex)) {
-                listFileOnIndex = false;
-            }
-            // enforce identifier for PUT operations
-            if (enforceIdentifier && (identifier == null || identifier.isEmpty())) {
-                return Response.status(Status.BAD_REQUEST).entity("No identfier provided").build();
-            }
-            // if the form doesn't especially describe a identifier, use (hashed?) filename as fallback
-            if ((identifier == null || identifier.isEmpty()) && filename != null && !filename.isEmpty()) {
-                logger.info("No file identifier provided using hashed filename as fallback");
-                identifier = Long.toString(SimpleTools.longHash(filename));
-            }
-            int code = HttpURLConnection.HTTP_OK;
+            partitionEnv.setContent(partition);
+            c.storeEnvelope(partitionEnv, serviceAgent);
+            return null;
+        });
+    }
+
+    /**
+     * Queues changes of the file index for the change log. The change log is written in the background, so a
+     * failing change log does not fail the store or delete that caused the change.
+     *
+     * @param context The context used for network operations, since the change log is written outside of the request
+     *                thread.
+     * @param type    The type of the changes, {@link ChangeLog#UPSERT} or {@link ChangeLog#DELETE}.
+     * @param entries The changed index entries.
+     */
+    private void recordChanges(Context context, String type, Collection<StoredFileIndex> entries) {
+        changeQueue.add(type, entries, context.getExecutor(), (changes, lost) -> appendChanges(context, changes,
+                lost));
+    }
+
+    /**
+     * Appends changes of the file index to the change log and wakes the change feed requests waiting on this node.
+     *
+     * @param context The context used for network operations.
+     * @param changes The queued changes, oldest first.
+     * @param lost    The number of changes dropped from the queue before they were written.
+     * @throws EnvelopeAccessDeniedException    If the service agent is not able to access the change log envelope
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network
+     * @throws ServiceException                 If the service is not started yet
+     */
+    private void appendChanges(Context context, List<ChangeQueue.Change> changes, int lost)
+            throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
+        String changesIdentifier = CHANGES_IDENTIFIER_PREFIX + getAgent().getIdentifier();
+        Agent serviceAgent = getAgent();
+        ChangeLog written = envelopeExecutor.callOrCreate(context, c -> {
+            Envelope changesEnv;
+            ChangeLog changeLog;
             try {
-                boolean created = storeFile(identifier, filename, filecontent, mimeType, shareWithGroup, description,
-                        listFileOnIndex);
-                if (created) {
-                    code = HttpURLConnection.HTTP_CREATED;
-                }
-            } catch (IllegalArgumentException e) {
-                logger.log(Level.SEVERE, "File upload failed!", e);
-                return Response.status(Status.BAD_REQUEST).entity(e.toString()).build();
-            } catch (EnvelopeAccessDeniedException e) {
-                logger.log(Level.SEVERE, "File upload failed!", e);
-                return Response.status(Status.FORBIDDEN).entity("403 - Forbidden\n" + e.toString() + "\nFile ("
-                        + identifier + ") upload failed! See log for details.").build();
+                changesEnv = c.requestEnvelope(changesIdentifier, serviceAgent);
+                changeLog = (ChangeLog) changesEnv.getContent();
+            } catch (EnvelopeNotFoundException e) {
+                changesEnv = c.createEnvelope(changesIdentifier, serviceAgent);
+                changeLog = new ChangeLog();
             }
-            return Response.status(code).entity(identifier).build();
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "File upload failed!", e);
-            return Response.status(Status.INTERNAL_SERVER_ERROR)
-                    .entity("File (" + identifier + ") upload failed! See log for details.").build();
-        }
+            changeLog.skip(lost);
+            for (ChangeQueue.Change change : changes) {
+                changeLog.append(change.getType(), change.getEntry(), changeFeedEvents);
+            }
+            changesEnv.setContent(changeLog);
+            c.storeEnvelope(changesEnv, serviceAgent);
+            return changeLog;
+        });
+        changeFeed.publish(written);
     }
 
-    public ArrayList<Map<String, Object>> getFileIndex()
+    private ChangeLog getChangeLogReal(Context context)
             throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
-        ArrayList<Map<String, Object>> result = new ArrayList<>();
-        StoredFileIndexList fileIndex = getFileIndexReal();
-        for (StoredFileIndex index : fileIndex) {
-            result.add(index.toMap());
+        String changesIdentifier = CHANGES_IDENTIFIER_PREFIX + getAgent().getIdentifier();
+        Agent serviceAgent = getAgent();
+        try {
+            Envelope changesEnv = envelopeExecutor.call(context, c -> c.requestEnvelope(changesIdentifier,
+                    serviceAgent));
+            return (ChangeLog) changesEnv.getContent();
+        } catch (EnvelopeNotFoundException e) {
+            return new ChangeLog();
         }
-        return result;
     }
 
-    private StoredFileIndexList getFileIndexReal()
+    /**
+     * This method is intended to be used by other services for invocation. It returns the changes of the file index
+     * after the given sequence number without waiting.
+     *
+     * @param since The last sequence number seen by the caller, -1 to get only the latest sequence number.
+     * @return Returns a map with the latest sequence number in sequence, the changes after the given sequence number
+     *         in changes and reset, which is true if changes were dropped and the caller has to read the whole index.
+     * @throws EnvelopeAccessDeniedException    If the service agent is not able to access the change log
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network
+     * @throws ServiceException                 If the service is not started yet
+     */
+    public Map<String, Object> getChanges(long since)
             throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
+        ChangeLog changes = getChangeLogReal(Context.get());
+        changeFeed.publish(changes);
+        return changes.toJsonObject(since < 0 ? changes.getSequence() : since);
+    }
+
+    /**
+     * Waits for changes of the file index after the given sequence number.
+     *
+     * @param since       The last sequence number seen by the client, -1 to get only the latest sequence number.
+     * @param waitSeconds The maximum time to wait for changes.
+     * @return Returns the changes as JSON object.
+     */
+    private Response awaitChanges(long since, long waitSeconds) {
+        Context context = Context.get();
+        long timeout = since < 0 ? 0 : Math.max(0, Math.min(waitSeconds, changeFeedMaxWaitSeconds)) * 1000;
         try {
-            Envelope storedIndex = Context.get().requestEnvelope(getIndexIdentifier(), getAgent());
-            StoredFileIndexList indexList = (StoredFileIndexList) storedIndex.getContent();
-            indexList.sort(StoredFileIndexComparator.INSTANCE);
-            return indexList;
-        } catch (EnvelopeNotFoundException e) {
-            return new StoredFileIndexList();
+            ChangeLog changes = changeFeed.await(since, timeout, () -> getChangeLogReal(context));
+            JSONObject result = changes.toJsonObject(since < 0 ? changes.getSequence() : since);
+            return Response.ok(result.toJSONString(), MediaType.APPLICATION_JSON).header("Cache-Control", "no-store")
+                    .build();
+        } catch (EnvelopeUnavailableException e) {
+            return unavailable(e);
+        } catch (RejectedExecutionException e) {
+            logger.log(Level.WARNING, e.toString());
+            return overloaded(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Response.status(Status.SERVICE_UNAVAILABLE).build();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Can't read change log!", e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
         }
     }
 
-    private String getIndexIdentifier() throws ServiceException {
-        return INDEX_IDENTIFIER_PREFIX + getAgent().getIdentifier();
+    private static StoredFileIndex indexEntry(StoredFile file) {
+        StoredFileIndex entry = new StoredFileIndex(file.getIdentifier(), file.getName(), file.getLastModified(),
+                file.getOwnerId(), file.getMimeType(), file.getDescription(), file.getFileSize());
+        entry.setSha256(file.getSha256());
+        return entry;
     }
 
-    private List<String> getCleanPaths(List<PathSegment> paths) {
-        List<String> cleanPaths = new ArrayList<>();
-        for (PathSegment seg : paths) {
-            if (seg != null) {
-                String path = seg.getPath();
-                if (path != null && !path.isEmpty()) {
-                    cleanPaths.add(path);
-                }
+    /**
+     * Stores the digest pointer of a stored file in the background, so uploads don't wait for it. The content
+     * addressed URL of new content becomes available once the pointer is written.
+     *
+     * @param context    The context used for network operations, since this runs outside of the request thread.
+     * @param identifier The identifier of the stored file.
+     * @param sha256     The hex encoded SHA-256 hash of its content.
+     */
+    private void scheduleDigest(Context context, String identifier, String sha256) {
+        context.getExecutor().execute(() -> {
+            try {
+                storeDigest(context, identifier, sha256);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Could not store digest pointer of file (" + identifier + ")", e);
             }
-        }
-        return cleanPaths;
+        });
     }
 
-    @Api(
-            tags = {"files"})
-    @SwaggerDefinition(
-            info = @Info(
-                    title = "las2peer File Service",
-                    version = API_VERSION,
+    /**
+     * Stores the pointer from the content hash of a file to its identifier, which makes the content available at its
+     * immutable content addressed URL. If several files have the same content, the pointer refers to the last stored.
+     *
+     * @param context    The context used for network operations.
+     * @param identifier The identifier of the stored file.
+     * @param sha256     The hex encoded SHA-256 hash of its content.
+     */
+    private void storeDigest(Context context, String identifier, String sha256) throws EnvelopeAccessDeniedException,
+            EnvelopeOperationFailedException, ServiceException {
+        String digestIdentifier = DIGEST_ENVELOPE_BASENAME + sha256;
+        Agent serviceAgent = getAgent();
+        envelopeExecutor.callOrCreate(context, c -> {
+            Envelope digestEnv;
+            try {
+                digestEnv = c.requestEnvelope(digestIdentifier, serviceAgent);
+                if (identifier.equals(digestEnv.getContent())) {
+                    return null;
+                }
+            } catch (EnvelopeNotFoundException e) {
+                digestEnv = c.createEnvelope(digestIdentifier, serviceAgent);
+            }
+            digestEnv.setPublic();
+            digestEnv.setContent(identifier);
+            c.storeEnvelope(digestEnv, serviceAgent);
+            return null;
+        });
+    }
+
+    /**
+     * This method is designed to be used with RMI calls to this service. It fetches a file by the hash of its
+     * content.
+     *
+     * @param sha256 The hex encoded SHA-256 hash of the file content.
+     * @return Returns the file including its metadata as Map, see {@link #fetchFile(String)}.
+     * @throws EnvelopeAccessDeniedException    If the main agent is not able to access the envelope.
+     * @throws EnvelopeNotFoundException        If no stored file has this content.
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network.
+     */
+    public Map<String, Object> fetchFileByDigest(String sha256)
+            throws EnvelopeAccessDeniedException, EnvelopeNotFoundException, EnvelopeOperationFailedException {
+        return fetchFileByDigestReal(sha256.toLowerCase()).toMap();
+    }
+
+    private StoredFile fetchFileByDigestReal(String sha256)
+            throws EnvelopeAccessDeniedException, EnvelopeNotFoundException, EnvelopeOperationFailedException {
+        Context context = Context.get();
+        Envelope digestEnv = envelopeExecutor.call(context,
+                c -> c.requestEnvelope(DIGEST_ENVELOPE_BASENAME + sha256));
+        StoredFile file = fetchFileReal((String) digestEnv.getContent());
+        // the file may have been changed or deleted since the pointer was stored
+        if (!sha256.equals(file.getSha256())) {
+            throw new EnvelopeNotFoundException("No file with content " + sha256);
+        }
+        return file;
+    }
+
+    /**
+     * This method is intended to be used by other services for invocation. It deletes a file by replacing its content
+     * with an empty tombstone and marks its index entry as deleted. Tombstones are removed from the index by a
+     * background sweeper after a retention period. The deleted version is kept in the version history of the file.
+     *
+     * @param identifier The identifier of the file to delete.
+     * @return Returns true if the file was deleted and false if it did not exist or was already deleted.
+     * @throws AgentAccessDeniedException       If the main agent is not allowed to act as owner of the file.
+     * @throws AgentOperationFailedException    If an error occurred on the node.
+     * @throws EnvelopeAccessDeniedException    If the main agent is not able to access the envelope
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network
+     * @throws ServiceException                 If the service is not started yet
+     */
+    public boolean deleteFile(String identifier) throws AgentAccessDeniedException, AgentOperationFailedException,
+            EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
+        Context context = Context.get();
+        Envelope fileEnv;
+        try {
+            fileEnv = envelopeExecutor.call(context, c -> c.requestEnvelope(ENVELOPE_BASENAME + identifier));
+        } catch (EnvelopeNotFoundException e) {
+            return false;
+        }
+        StoredFile file = (StoredFile) fileEnv.getContent();
+        if (file.isDeleted()) {
+            return false;
+        }
+        // only the owner, or a member of the owning group, may overwrite the file envelope
+        Agent owner = Context.get().getMainAgent();
+        if (!owner.getIdentifier().equals(file.getOwnerId())) {
+            try {
+                owner = agentCache.get(Context.get(), file.getOwnerId());
+            } catch (AgentNotFoundException e) {
+                throw new AgentAccessDeniedException("Owner (" + file.getOwnerId() + ") of file (" + identifier
+                        + ") not found");
+            }
+        }
+        long now = new Date().getTime();
+        StoredFile tombstone = new StoredFile(file.getIdentifier(), file.getName(), new byte[0], now,
+                file.getOwnerId(), file.getMimeType(), file.getDescription());
+        tombstone.setDeleted(true);
+        fileEnv.setContent(tombstone);
+        Agent fileOwner = owner;
+        String indexIdentifier = getIndexIdentifier();
+        Agent serviceAgent = getAgent();
+        // a tombstone must not be stored without its index entry because the index write was rejected
+        try (EnvelopeExecutor.WriteSequence writes = envelopeExecutor.beginWrites()) {
+            try {
+                envelopeExecutor.callOrCreate(context, c -> {
+                    c.storeEnvelope(fileEnv, fileOwner);
+                    return null;
+                });
+            } catch (EnvelopeAccessDeniedException e) {
+                agentCache.invalidate(context, fileOwner.getIdentifier());
+                throw e;
+            }
+            // mark the index entry as deleted
+            StoredFileIndexList updated = envelopeExecutor.callOrCreate(context, c -> {
+                Envelope indexEnv;
+                try {
+                    indexEnv = c.requestEnvelope(indexIdentifier, serviceAgent);
+                } catch (EnvelopeNotFoundException e) {
+                    logger.fine("No index found while deleting file (" + identifier + ")");
+                    return null;
+                }
+                StoredFileIndexList fileIndex = (StoredFileIndexList) indexEnv.getContent();
+                boolean changed = false;
+                for (StoredFileIndex index : fileIndex) {
+                    if (identifier.equalsIgnoreCase(index.getIdentifier()) && !index.isDeleted()) {
+                        index.setDeleted(true);
+                        index.setLastModified(now);
+                        index.setFileSize(0);
+                        changed = true;
+                    }
+                }
+                if (!changed) {
+                    return null;
+                }
+                indexEnv.setContent(fileIndex);
+                c.storeEnvelope(indexEnv, serviceAgent);
+                return fileIndex;
+            });
+            if (updated != null) {
+                replaceIndex(CompactIndex.of(updated));
+            }
+        }
+        if (file.getOwnerId() != null) {
+            scheduleOwnerIndexUpdate(context, file.getOwnerId(), Collections.emptyList(),
+                    Collections.singleton(identifier.toLowerCase(Locale.ROOT)));
+        }
+        StoredFileIndex deleted = new StoredFileIndex(file.getIdentifier(), file.getName(), now, file.getOwnerId(),
+                file.getMimeType(), file.getDescription(), 0);
+        deleted.setDeleted(true);
+        recordChanges(context, ChangeLog.DELETE, Collections.singletonList(deleted));
+        if (blobCache != null) {
+            blobCache.invalidate(identifier);
+        }
+        HotList hot = hotList;
+        if (hot != null && hot.contains(identifier)) {
+            hotListChanges.put(identifier, HOT_FILE_DELETED);
+            scheduleHotListSync(context, true);
+        }
+        // a deleted file can be restored from its history
+        scheduleArchive(context, fileOwner, file);
+        if (isImage(file)) {
+            scheduleVariantCleanup(context, identifier, null);
+        }
+        logger.info("deleted file (" + identifier + ") from network storage");
+        scheduleSweep(context);
+        return true;
+    }
+
+    /**
+     * Submits archiving a replaced or deleted version to the service executor. The write of the new version already
+     * succeeded, so a failure only loses the history entry and is logged.
+     *
+     * @param context  The context used for network operations, since this runs outside of the request thread.
+     * @param owner    The owner of the file, who owns its history.
+     * @param previous The replaced version.
+     */
+    private void scheduleArchive(Context context, Agent owner, StoredFile previous) {
+        if (maxVersions <= 0) {
+            return;
+        }
+        context.getExecutor().execute(() -> {
+            try {
+                archiveVersion(context, owner, previous);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Could not archive version " + previous.getLastModified() + " of file ("
+                        + previous.getIdentifier() + ")", e);
+            }
+        });
+    }
+
+    /**
+     * Adds a replaced or deleted version of a file to its version history. The content is split into chunks and only
+     * chunks that are not stored for the history yet are written, all others are shared. Versions beyond the
+     * retention limits are dropped, their chunks that no kept version references are released and overwritten with
+     * empty content by a later archive after a grace period.
+     *
+     * @param context  The context of the requesting thread.
+     * @param owner    The owner of the file, who owns its history.
+     * @param previous The replaced version.
+     * @throws EnvelopeAccessDeniedException    If the owner is not able to access the history
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network
+     */
+    private void archiveVersion(Context context, Agent owner, StoredFile previous)
+            throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException {
+        String identifier = previous.getIdentifier();
+        String versionsIdentifier = VERSIONS_ENVELOPE_BASENAME + identifier;
+        byte[] content = previous.getContent();
+        List<String> blocks = new ArrayList<>();
+        Map<String, byte[]> chunks = new LinkedHashMap<>();
+        for (int[] chunk : Chunker.split(content, versionBlockSize)) {
+            byte[] data = Arrays.copyOfRange(content, chunk[0], chunk[0] + chunk[1]);
+            String hash = sha256(data);
+            blocks.add(hash);
+            chunks.putIfAbsent(hash, data);
+        }
+        Set<String> stored;
+        try {
+            stored = getVersionHistory(context, identifier).getStoredBlocks();
+        } catch (EnvelopeNotFoundException e) {
+            stored = Collections.emptySet();
+        }
+        List<String> missing = new ArrayList<>(chunks.keySet());
+        missing.removeAll(stored);
+        try {
+            forBlocks(context, missing, hash -> storeBlock(context, owner, identifier, hash, chunks.get(hash)));
+        } catch (EnvelopeNotFoundException e) {
+            throw new EnvelopeOperationFailedException("Could not store version of file (" + identifier + ")", e);
+        }
+        StoredFileIndex meta = indexEntry(previous);
+        if (meta.getSha256() == null) {
+            meta.setSha256(sha256(content));
+        }
+        long now = System.currentTimeMillis();
+        long oldest = versionRetentionSeconds > 0 ? now - versionRetentionSeconds * 1000 : 0;
+        // shared blocks whose content may have been removed since the history was read
+        Set<String> lost = new HashSet<>();
+        Set<String> dropped = envelopeExecutor.callOrCreate(context, c -> {
+            Envelope versionsEnv;
+            VersionHistory history;
+            try {
+                versionsEnv = c.requestEnvelope(versionsIdentifier);
+                history = (VersionHistory) versionsEnv.getContent();
+            } catch (EnvelopeNotFoundException e) {
+                versionsEnv = c.createEnvelope(versionsIdentifier, owner);
+                history = new VersionHistory();
+            }
+            lost.clear();
+            lost.addAll(chunks.keySet());
+            lost.removeAll(missing);
+            lost.removeAll(history.getStoredBlocks());
+            history.add(new VersionHistory.Version(meta, blocks, now));
+            Set<String> unreferenced = history.retain(maxVersions, oldest, now, VERSION_BLOCK_GRACE_MILLIS);
+            versionsEnv.setPublic();
+            versionsEnv.setContent(history);
+            c.storeEnvelope(versionsEnv, owner);
+            return unreferenced;
+        });
+        try {
+            forBlocks(context, new ArrayList<>(lost), hash -> storeBlock(context, owner, identifier, hash,
+                    chunks.get(hash)));
+            forBlocks(context, new ArrayList<>(dropped),
+                    hash -> storeBlock(context, owner, identifier, hash, new byte[0]));
+        } catch (EnvelopeNotFoundException e) {
+            throw new EnvelopeOperationFailedException("Could not drop blocks of file (" + identifier + ")", e);
+        }
+        logger.info("archived version " + previous.getLastModified() + " of file (" + identifier + ") with "
+                + missing.size() + " new of " + blocks.size() + " blocks, removed " + dropped.size() + " blocks");
+    }
+
+    /**
+     * Stores a chunk of a file version, or an empty chunk to release the content of a chunk no longer referenced.
+     */
+    private Void storeBlock(Context context, Agent owner, String identifier, String hash, byte[] data)
+            throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException {
+        String blockIdentifier = BLOCK_ENVELOPE_BASENAME + hash + "-" + identifier;
+        return envelopeExecutor.callOrCreate(context, c -> {
+            Envelope blockEnv;
+            try {
+                blockEnv = c.requestEnvelope(blockIdentifier);
+                if (((byte[]) blockEnv.getContent()).length == data.length) {
+                    return null;
+                }
+            } catch (EnvelopeNotFoundException e) {
+                blockEnv = c.createEnvelope(blockIdentifier, owner);
+            }
+            blockEnv.setPublic();
+            blockEnv.setContent(data);
+            c.storeEnvelope(blockEnv, owner);
+            return null;
+        });
+    }
+
+    private VersionHistory getVersionHistory(Context context, String identifier)
+            throws EnvelopeAccessDeniedException, EnvelopeNotFoundException, EnvelopeOperationFailedException {
+        Envelope versionsEnv = envelopeExecutor.callHedged(context,
+                c -> c.requestEnvelope(VERSIONS_ENVELOPE_BASENAME + identifier));
+        return (VersionHistory) versionsEnv.getContent();
+    }
+
+    private interface BlockOperation<T> {
+
+        T apply(String hash) throws Exception;
+
+    }
+
+    /**
+     * Runs an operation for each block on the service executor, at most bulkConcurrency at a time.
+     *
+     * @param context   The context of the requesting thread.
+     * @param hashes    The hashes of the blocks.
+     * @param operation The operation.
+     * @return Returns the results in the order of the hashes.
+     */
+    private <T> List<T> forBlocks(Context context, List<String> hashes, BlockOperation<T> operation)
+            throws EnvelopeAccessDeniedException, EnvelopeNotFoundException, EnvelopeOperationFailedException {
+        List<T> results = new ArrayList<>(hashes.size());
+        ArrayDeque<CompletableFuture<T>> window = new ArrayDeque<>();
+        Iterator<String> pending = hashes.iterator();
+        while (pending.hasNext() || !window.isEmpty()) {
+            while (pending.hasNext() && window.size() < bulkConcurrency) {
+                String hash = pending.next();
+                window.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return operation.apply(hash);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, context.getExecutor()));
+            }
+            try {
+                results.add(window.poll().join());
+            } catch (CompletionException e) {
+                window.forEach(block -> block.cancel(false));
+                throw EnvelopeExecutor.unwrap(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Reads a version of a file, either the current version or a version from its history. Historic versions are
+     * rebuilt from their chunks, which are fetched in parallel.
+     *
+     * @param context    The context of the requesting thread.
+     * @param identifier The file identifier.
+     * @param version    The last modified timestamp of the version.
+     * @return Returns the file version.
+     * @throws EnvelopeAccessDeniedException    If the main agent is not able to access the file or its history
+     * @throws EnvelopeNotFoundException        If the file or the version does not exist
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network
+     */
+    private StoredFile fetchVersionReal(Context context, String identifier, long version)
+            throws EnvelopeAccessDeniedException, EnvelopeNotFoundException, EnvelopeOperationFailedException {
+        try {
+            StoredFile current = fetchFileReal(context, identifier);
+            if (current.getLastModified() == version) {
+                return current;
+            }
+        } catch (EnvelopeNotFoundException e) {
+            // deleted files keep their history
+        }
+        VersionHistory.Version found = getVersionHistory(context, identifier).get(version);
+        if (found == null) {
+            throw new EnvelopeNotFoundException("Version " + version + " of file (" + identifier + ") not found");
+        }
+        StoredFileIndex meta = found.getMeta();
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(found.getBlocks()));
+        List<byte[]> fetched;
+        try (RequestTrace.Span span = RequestTrace.span("blocks")) {
+            fetched = forBlocks(context, distinct, hash -> (byte[]) envelopeExecutor.callHedged(context,
+                    c -> c.requestEnvelope(BLOCK_ENVELOPE_BASENAME + hash + "-" + identifier)).getContent());
+        }
+        Map<String, byte[]> blocks = new HashMap<>();
+        for (int i = 0; i < distinct.size(); i++) {
+            blocks.put(distinct.get(i), fetched.get(i));
+        }
+        byte[] content = new byte[(int) meta.getFileSize()];
+        int position = 0;
+        for (String hash : found.getBlocks()) {
+            byte[] block = blocks.get(hash);
+            if (position + block.length > content.length) {
+                break;
+            }
+            System.arraycopy(block, 0, content, position, block.length);
+            position += block.length;
+        }
+        if (position != content.length || !sha256(content).equals(meta.getSha256())) {
+            throw new EnvelopeOperationFailedException("Version " + version + " of file (" + identifier
+                    + ") is incomplete");
+        }
+        StoredFile file = new StoredFile(meta.getIdentifier(), meta.getName(), content, meta.getLastModified(),
+                meta.getOwnerId(), meta.getMimeType(), meta.getDescription());
+        file.setSha256(meta.getSha256());
+        return file;
+    }
+
+    private List<Map<String, Object>> getVersionsReal(Context context, String identifier)
+            throws EnvelopeAccessDeniedException, EnvelopeNotFoundException, EnvelopeOperationFailedException {
+        List<Map<String, Object>> result = new ArrayList<>();
+        try {
+            Map<String, Object> current = fetchFileReal(context, identifier).toMap();
+            current.remove("content");
+            current.put("version", current.get("lastModified"));
+            current.put("current", true);
+            result.add(current);
+        } catch (EnvelopeNotFoundException e) {
+            // deleted files keep their history
+        }
+        List<VersionHistory.Version> versions;
+        try {
+            versions = getVersionHistory(context, identifier).getVersions();
+        } catch (EnvelopeNotFoundException e) {
+            if (result.isEmpty()) {
+                throw e;
+            }
+            versions = Collections.emptyList();
+        }
+        for (int i = versions.size() - 1; i >= 0; i--) {
+            StoredFileIndex meta = versions.get(i).getMeta();
+            if (!result.isEmpty() && result.get(0).get("version").equals(meta.getLastModified())) {
+                continue;
+            }
+            Map<String, Object> version = meta.toMap();
+            version.put("version", meta.getLastModified());
+            version.put("current", false);
+            version.put("replaced", versions.get(i).getReplaced());
+            result.add(version);
+        }
+        return result;
+    }
+
+    /**
+     * This method is intended to be used by other services for invocation. It lists the current and all kept
+     * previous versions of a file.
+     *
+     * @param identifier The file identifier.
+     * @return Returns the versions, newest first, each with the fields of the file index, its version, which is its
+     *         last modified timestamp, and current, which is true for the current version.
+     * @throws EnvelopeAccessDeniedException    If the main agent is not able to access the file or its history
+     * @throws EnvelopeNotFoundException        If the file never existed
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network
+     */
+    public ArrayList<Map<String, Object>> getFileVersions(String identifier)
+            throws EnvelopeAccessDeniedException, EnvelopeNotFoundException, EnvelopeOperationFailedException {
+        return new ArrayList<>(getVersionsReal(Context.get(), identifier));
+    }
+
+    /**
+     * This method is intended to be used by other services for invocation. It fetches a version of a file. To roll
+     * back, store the fetched content again.
+     *
+     * @param identifier The file identifier.
+     * @param version    The version as listed by {@link #getFileVersions(String)}.
+     * @return Returns the file version as Map with the same fields as {@link #fetchFile(String)}.
+     * @throws EnvelopeAccessDeniedException    If the main agent is not able to access the file or its history
+     * @throws EnvelopeNotFoundException        If the file or the version does not exist
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network
+     */
+    public Map<String, Object> fetchFileVersion(String identifier, long version)
+            throws EnvelopeAccessDeniedException, EnvelopeNotFoundException, EnvelopeOperationFailedException {
+        return fetchVersionReal(Context.get(), identifier, version).toMap();
+    }
+
+    private Response versionsResponse(String identifier, Long version) {
+        RequestTrace.begin("getVersions", identifier);
+        Context context = Context.get();
+        try {
+            if (version == null) {
+                JSONArray result = new JSONArray();
+                for (Map<String, Object> entry : getVersionsReal(context, identifier)) {
+                    JSONObject json = new JSONObject();
+                    json.putAll(entry);
+                    result.add(json);
+                }
+                return Response.ok(result.toJSONString(), MediaType.APPLICATION_JSON).build();
+            }
+            StoredFile file = fetchVersionReal(context, identifier, version);
+            // a version never changes
+            return fileResponse(file, file.getContent(), "inline", IMMUTABLE_CACHE_CONTROL);
+        } catch (EnvelopeNotFoundException e) {
+            logger.log(Level.INFO, "Version of file (" + identifier + ") not found!");
+            return Response.status(Status.NOT_FOUND).build();
+        } catch (EnvelopeUnavailableException e) {
+            return unavailable(e);
+        } catch (EnvelopeAccessDeniedException e) {
+            logger.log(Level.INFO, e.toString(), e);
+            return Response.status(Status.FORBIDDEN).entity(e.toString()).build();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Can't read versions of file (" + identifier + ")!", e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Submits the index sweeper to the service executor, if the last sweep is older than the configured interval.
+     */
+    private void scheduleSweep(Context context) {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (now - last < sweepIntervalSeconds * 1000 || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        context.getExecutor().execute(() -> {
+            try {
+                sweepIndex(context);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Index sweep failed!", e);
+            }
+        });
+    }
+
+    /**
+     * Exports a page of the file index with contents as ZIP archive, see {@link FileArchive} for the format. Files are
+     * fetched in parallel, at most the configured bulk concurrency ahead of the file being written, and written in
+     * index order. Exported files are not put into the blob cache. A page ends after the limit or when the configured
+     * maximum archive size is reached.
+     *
+     * @param offset The position in the file index of the first exported file.
+     * @param limit  The maximum number of files, 0 for no limit.
+     * @return Returns the archive with the offset of the next page in the Next-Offset header, which is missing on the
+     *         last page.
+     */
+    private Response exportFiles(int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            return Response.status(Status.BAD_REQUEST).entity("offset and limit must not be negative").build();
+        }
+        Context context = Context.get();
+        CompactIndex index;
+        try {
+            index = getFileIndexReal(context);
+        } catch (EnvelopeUnavailableException e) {
+            return unavailable(e);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Can't read file index for export!", e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+        }
+        List<String> page = new ArrayList<>();
+        long pageSize = 0;
+        int next = offset;
+        for (; next < index.size() && (limit == 0 || page.size() < limit); next++) {
+            long fileSize = index.getFileSize(next);
+            // a page holds at least one file
+            if (!page.isEmpty() && pageSize + fileSize > bulkExportMaxMB * 1000000) {
+                break;
+            }
+            page.add(index.getIdentifier(next));
+            pageSize += fileSize;
+        }
+        StreamingOutput archive = out -> {
+            ArrayDeque<CompletableFuture<StoredFile>> window = new ArrayDeque<>();
+            Iterator<String> pending = page.iterator();
+            try (ZipOutputStream zip = FileArchive.open(out)) {
+                while (pending.hasNext() || !window.isEmpty()) {
+                    while (pending.hasNext() && window.size() < bulkConcurrency) {
+                        String identifier = pending.next();
+                        window.add(CompletableFuture.supplyAsync(() -> {
+                            try {
+                                return fetchFileReal(context, identifier, false);
+                            } catch (EnvelopeNotFoundException e) {
+                                // deleted since the index was read
+                                return null;
+                            } catch (Exception e) {
+                                throw new CompletionException(e);
+                            }
+                        }, context.getExecutor()));
+                    }
+                    StoredFile file;
+                    try {
+                        file = window.poll().join();
+                    } catch (CompletionException e) {
+                        window.forEach(fetch -> fetch.cancel(false));
+                        throw new IOException("Export failed", e.getCause());
+                    }
+                    if (file != null) {
+                        FileArchive.write(zip, file, true);
+                    }
+                }
+            }
+        };
+        ResponseBuilder response = Response.ok(archive, "application/zip")
+                .header("Content-Disposition", "attachment; filename=\"export-" + offset + ".zip\"");
+        if (next < index.size()) {
+            response.header(HEADER_NEXT_OFFSET, next);
+        }
+        return response.build();
+    }
+
+    /**
+     * Imports an archive created by {@link #exportFiles(int, int)}. Files are stored in parallel with the configured
+     * bulk concurrency and added to the file index in a single write at the end. Files keep their metadata and
+     * modification time. A file keeps its owner if that is the importing agent or a group it is a member of, else it
+     * is owned by the importing agent.
+     *
+     * @param archive The archive.
+     * @return Returns a JSON object with the number of stored files and the failed files with their error, in archive
+     *         order.
+     */
+    private Response importFiles(InputStream archive) {
+        Context context = Context.get();
+        Agent mainAgent = context.getMainAgent();
+        Map<String, Agent> owners = new ConcurrentHashMap<>();
+        Semaphore slots = new Semaphore(bulkConcurrency);
+        List<CompletableFuture<Void>> stores = new ArrayList<>();
+        List<StoredFileIndex> listed = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger stored = new AtomicInteger();
+        // errors by position in the archive, an identifier may occur more than once
+        Map<Integer, JSONObject> failed = new ConcurrentSkipListMap<>();
+        AtomicInteger position = new AtomicInteger();
+        try {
+            FileArchive.read(archive, MAX_FILE_SIZE_MB * 1000000, (file, list) -> {
+                String identifier = file.getIdentifier();
+                int filePosition = position.getAndIncrement();
+                String invalid = validateIdentifier(identifier);
+                if (invalid != null) {
+                    failed.put(filePosition, importError(identifier, invalid));
+                    return;
+                }
+                String expectedSha256 = file.getSha256();
+                Agent owner = owners.computeIfAbsent(String.valueOf(file.getOwnerId()),
+                        ownerId -> importOwner(context, ownerId, mainAgent));
+                file.setOwnerId(owner.getIdentifier());
+                slots.acquire();
+                stores.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(sha256(file.getContent()))) {
+                            throw new IllegalArgumentException("Content does not match sha256");
+                        }
+                        storeFileReal(context, owner, file, false);
+                        stored.incrementAndGet();
+                        if (list) {
+                            listed.add(indexEntry(file));
+                        }
+                    } catch (Exception e) {
+                        logger.log(Level.FINE, "Import of file (" + identifier + ") failed", e);
+                        failed.put(filePosition, importError(identifier, e.toString()));
+                    } finally {
+                        slots.release();
+                    }
+                }, context.getExecutor()));
+            });
+        } catch (IllegalArgumentException e) {
+            CompletableFuture.allOf(stores.toArray(new CompletableFuture[0])).join();
+            return Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build();
+        } catch (Exception e) {
+            CompletableFuture.allOf(stores.toArray(new CompletableFuture[0])).join();
+            logger.log(Level.SEVERE, "Can't read import archive!", e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+        }
+        CompletableFuture.allOf(stores.toArray(new CompletableFuture[0])).join();
+        if (!listed.isEmpty()) {
+            try {
+                updateIndex(context, listed);
+            } catch (EnvelopeUnavailableException e) {
+                return unavailable(e);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Can't update file index after import!", e);
+                return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+            }
+        }
+        logger.info("imported " + stored.get() + " files, " + failed.size() + " failed");
+        JSONObject result = new JSONObject();
+        result.put("stored", stored.get());
+        result.put("listed", listed.size());
+        JSONArray errors = new JSONArray();
+        errors.addAll(failed.values());
+        result.put("failed", errors);
+        return Response.ok(result.toJSONString(), MediaType.APPLICATION_JSON).build();
+    }
+
+    private static JSONObject importError(String identifier, String error) {
+        JSONObject result = new JSONObject();
+        result.put("identifier", identifier);
+        result.put("error", error);
+        return result;
+    }
+
+    private Agent importOwner(Context context, String ownerId, Agent mainAgent) {
+        if (ownerId.equals(mainAgent.getIdentifier())) {
+            return mainAgent;
+        }
+        try {
+            Agent owner = agentCache.get(context, ownerId);
+            if (owner instanceof GroupAgent) {
+                return owner;
+            }
+        } catch (Exception e) {
+            logger.fine("Imported files of (" + ownerId + ") are owned by the importing agent: " + e);
+        }
+        return mainAgent;
+    }
+
+    /**
+     * Hands a finished request trace to the slow request log and the trace export.
+     *
+     * @param trace The finished trace.
+     */
+    void completeTrace(RequestTrace trace) {
+        traceLog.complete(trace);
+    }
+
+    /**
+     * Records an access to a file for the cache warm up after a restart. The first access after the start of this
+     * instance triggers the warm up and the record is saved periodically.
+     *
+     * @param identifier The accessed file identifier.
+     */
+    private void recordAccess(String identifier) {
+        java.nio.file.Path record = accessRecord();
+        accessSketch.record(identifier);
+        if (!warmedUp.get() && warmedUp.compareAndSet(false, true)) {
+            warmUp(Context.get());
+        }
+        if (blobCache != null && hotFileAccessesPerMinute > 0) {
+            rateSketch.record(identifier);
+            scheduleHotListSync(Context.get(), false);
+        }
+        long now = System.currentTimeMillis();
+        long last = lastAccessRecordSave.get();
+        if (record == null || now - last < accessRecordSaveSeconds * 1000
+                || !lastAccessRecordSave.compareAndSet(last, now)) {
+            return;
+        }
+        Context.get().getExecutor().execute(() -> {
+            try {
+                accessSketch.save(record);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not save access record " + record, e);
+            }
+        });
+    }
+
+    /**
+     * Resolves the access record of this service instance and loads it on first use. Each instance keeps its own
+     * record, named after its agent, since the agent is only known once the service is started.
+     *
+     * @return Returns the path of the record or {@code null} if saving is disabled or the agent is not available.
+     */
+    private java.nio.file.Path accessRecord() {
+        java.nio.file.Path path = accessRecord;
+        if (path != null || accessRecordFile.isEmpty()) {
+            return path;
+        }
+        synchronized (accessSketch) {
+            if (accessRecord == null) {
+                try {
+                    path = Paths.get(accessRecordFile);
+                    String name = path.getFileName().toString();
+                    int dot = name.lastIndexOf('.');
+                    String agentId = getAgent().getIdentifier();
+                    path = path.resolveSibling(dot > 0 ? name.substring(0, dot) + "-" + agentId + name.substring(dot)
+                            : name + "-" + agentId);
+                } catch (ServiceException e) {
+                    logger.log(Level.WARNING, "Could not resolve access record " + accessRecordFile, e);
+                    return null;
+                }
+                // accesses recorded meanwhile wait for the load, it replaces the whole sketch
+                if (Files.exists(path)) {
+                    try {
+                        accessSketch.load(path);
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Could not read access record " + path, e);
+                    }
+                }
+                accessRecord = path;
+            }
+            return accessRecord;
+        }
+    }
+
+    /**
+     * Prefetches the file index and the most frequently accessed files of previous runs into the local caches in the
+     * background. Files are fetched in parallel, files still fresh in the blob cache are skipped.
+     *
+     * @param context The context used for network operations, since this runs outside of the request thread.
+     */
+    private void warmUp(Context context) {
+        List<String> hot = accessSketch.top(warmupFiles);
+        context.getExecutor().execute(() -> {
+            long start = System.currentTimeMillis();
+            List<CompletableFuture<Boolean>> fetches = new ArrayList<>();
+            fetches.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    getFileIndexReal(context);
+                    return true;
+                } catch (Exception e) {
+                    logger.log(Level.FINE, "Warm up of file index failed", e);
+                    return false;
+                }
+            }, context.getExecutor()));
+            for (String identifier : hot) {
+                if (blobCache != null && blobCache.get(identifier) != null) {
+                    continue;
+                }
+                fetches.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        fetchFileReal(context, identifier);
+                        return true;
+                    } catch (Exception e) {
+                        logger.log(Level.FINE, "Warm up of file (" + identifier + ") failed", e);
+                        return false;
+                    }
+                }, context.getExecutor()));
+            }
+            CompletableFuture.allOf(fetches.toArray(new CompletableFuture[0])).join();
+            long warmed = fetches.stream().filter(CompletableFuture::join).count();
+            logger.info("warmed up " + warmed + " of " + fetches.size() + " entries in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        });
+    }
+
+    /**
+     * Submits the hot list sync to the service executor, if the last sync is older than the configured interval. The
+     * first access after the start of this instance syncs immediately, so files hot on other nodes are pinned early.
+     * A failed sync keeps the pending hot list changes of stores and deletes for the next sync.
+     *
+     * @param context The context used for network operations, since the sync runs outside of the request thread.
+     * @param now     True to sync regardless of the interval, e.g. to publish a stored version of a hot file.
+     */
+    private void scheduleHotListSync(Context context, boolean now) {
+        long time = System.currentTimeMillis();
+        long last = lastHotListSync.get();
+        if ((!now && time - last < hotListRefreshSeconds * 1000) || !lastHotListSync.compareAndSet(last, time)) {
+            return;
+        }
+        context.getExecutor().execute(() -> {
+            try {
+                syncHotList(context);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Could not sync hot file list", e);
+            }
+        });
+    }
+
+    /**
+     * Publishes the files accessed on this node above the configured rate to the hot list and pins all listed files
+     * in the blob cache. Listed files that are missing or outdated on this node are fetched, pinned files are fetched
+     * again before they become stale, so reads of hot files never wait for the network. Replicas of files that are
+     * no longer listed are dropped.
+     *
+     * @param context The context used for network operations, since this runs outside of the request thread.
+     * @throws EnvelopeAccessDeniedException    If the service agent is not able to access the hot list envelope
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network
+     * @throws ServiceException                 If the service is not started yet
+     */
+    private void syncHotList(Context context)
+            throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
+        long now = System.currentTimeMillis();
+        // the decayed count of a steady rate per minute is the rate divided by ln 2 with a half-life of a minute
+        float threshold = (float) (hotFileAccessesPerMinute / Math.log(2));
+        Map<String, Long> localVersions = new HashMap<>();
+        for (String identifier : rateSketch.top(maxPinnedFiles, threshold)) {
+            BlobCache.Entry cached = blobCache.peek(identifier);
+            try {
+                localVersions.put(identifier, cached != null ? cached.getMeta().getLastModified()
+                        : fetchFileReal(context, identifier).getLastModified());
+            } catch (EnvelopeNotFoundException | EnvelopeAccessDeniedException | EnvelopeOperationFailedException e) {
+                logger.log(Level.FINE, "Hot file (" + identifier + ") not available", e);
+            }
+        }
+        Map<String, Long> changes = new HashMap<>(hotListChanges);
+        HotList list;
+        if (localVersions.isEmpty() && changes.isEmpty()) {
+            list = readHotList(context);
+        } else {
+            long expires = now + hotFileCooldownSeconds * 1000;
+            list = updateHotList(context, hot -> {
+                boolean changed = hot.expire(now);
+                for (Map.Entry<String, Long> change : changes.entrySet()) {
+                    changed |= change.getValue() == HOT_FILE_DELETED ? hot.remove(change.getKey())
+                            : hot.update(change.getKey(), change.getValue());
+                }
+                for (Map.Entry<String, Long> local : localVersions.entrySet()) {
+                    changed |= hot.refresh(local.getKey(), local.getValue(), expires, maxPinnedFiles);
+                }
+                return changed;
+            });
+            // changes made meanwhile are kept for the next sync
+            changes.forEach(hotListChanges::remove);
+        }
+        Set<String> pinned = new HashSet<>();
+        for (HotList.Entry hot : list.getEntries()) {
+            if (hot.getExpires() <= now) {
+                continue;
+            }
+            String identifier = hot.getIdentifier();
+            BlobCache.Entry cached = blobCache.peek(identifier);
+            if (cached != null && cached.getMeta().getLastModified() < hot.getLastModified()) {
+                // a newer version was stored on another node
+                blobCache.invalidate(identifier);
+                cached = null;
+            }
+            try {
+                long size;
+                if (cached == null || now - cached.getValidated() > blobCacheFreshnessSeconds * 1000 / 2) {
+                    size = fetchFileReal(context, identifier).getFileSize();
+                } else {
+                    size = cached.getSize();
+                }
+                if (blobCache.pin(identifier, size)) {
+                    pinned.add(identifier);
+                }
+            } catch (EnvelopeNotFoundException | EnvelopeAccessDeniedException | EnvelopeOperationFailedException e) {
+                logger.log(Level.FINE, "Could not replicate hot file (" + identifier + ")", e);
+            }
+        }
+        // files that cooled down stay cached as ordinary entries, until they are evicted or become stale
+        for (String identifier : blobCache.getPinned()) {
+            if (!pinned.contains(identifier)) {
+                blobCache.unpin(identifier);
+            }
+        }
+        logger.fine("pinned " + pinned.size() + " hot files, " + localVersions.size() + " hot on this node");
+    }
+
+    private HotList readHotList(Context context)
+            throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
+        String hotListIdentifier = HOTLIST_IDENTIFIER_PREFIX + getAgent().getIdentifier();
+        Agent serviceAgent = getAgent();
+        HotList list;
+        try {
+            Envelope hotListEnv = envelopeExecutor.call(context, c -> c.requestEnvelope(hotListIdentifier,
+                    serviceAgent));
+            list = (HotList) hotListEnv.getContent();
+        } catch (EnvelopeNotFoundException e) {
+            list = new HotList();
+        }
+        hotList = list;
+        return list;
+    }
+
+    /**
+     * Reads, changes and stores the hot list in a single envelope operation.
+     *
+     * @param context The context of the requesting thread.
+     * @param update  Changes the hot list and returns true if it has to be stored.
+     * @return Returns the changed hot list.
+     * @throws EnvelopeAccessDeniedException    If the service agent is not able to access the hot list envelope
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network
+     * @throws ServiceException                 If the service is not started yet
+     */
+    private HotList updateHotList(Context context, Predicate<HotList> update)
+            throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
+        String hotListIdentifier = HOTLIST_IDENTIFIER_PREFIX + getAgent().getIdentifier();
+        Agent serviceAgent = getAgent();
+        HotList written = envelopeExecutor.callOrCreate(context, c -> {
+            Envelope hotListEnv;
+            HotList list;
+            try {
+                hotListEnv = c.requestEnvelope(hotListIdentifier, serviceAgent);
+                list = (HotList) hotListEnv.getContent();
+            } catch (EnvelopeNotFoundException e) {
+                hotListEnv = c.createEnvelope(hotListIdentifier, serviceAgent);
+                list = new HotList();
+            }
+            if (update.test(list)) {
+                hotListEnv.setContent(list);
+                c.storeEnvelope(hotListEnv, serviceAgent);
+            }
+            return list;
+        });
+        hotList = written;
+        return written;
+    }
+
+    /**
+     * Compacts the file index by removing tombstones that are older than the configured retention period.
+     *
+     * @param context The context used for network operations, since this runs outside of the request thread.
+     * @return Returns the number of removed tombstones.
+     * @throws EnvelopeAccessDeniedException    If the service agent is not able to access the index envelope
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network
+     * @throws ServiceException                 If the service is not started yet
+     */
+    private int sweepIndex(Context context)
+            throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
+        String indexIdentifier = getIndexIdentifier();
+        Agent serviceAgent = getAgent();
+        long expired = System.currentTimeMillis() - tombstoneRetentionSeconds * 1000;
+        AtomicInteger removed = new AtomicInteger();
+        StoredFileIndexList swept = envelopeExecutor.callOrCreate(context, c -> {
+            Envelope indexEnv;
+            try {
+                indexEnv = c.requestEnvelope(indexIdentifier, serviceAgent);
+            } catch (EnvelopeNotFoundException e) {
+                return null;
+            }
+            StoredFileIndexList fileIndex = (StoredFileIndexList) indexEnv.getContent();
+            int sizeBefore = fileIndex.size();
+            fileIndex.removeIf(index -> index.isDeleted() && index.getLastModified() < expired);
+            removed.set(sizeBefore - fileIndex.size());
+            if (removed.get() == 0) {
+                return null;
+            }
+            indexEnv.setContent(fileIndex);
+            c.storeEnvelope(indexEnv, serviceAgent);
+            return fileIndex;
+        });
+        if (swept != null) {
+            replaceIndex(CompactIndex.of(swept));
+            logger.info("removed " + removed.get() + " tombstones from file index");
+        }
+        return removed.get();
+    }
+
+    /**
+     * Creates the response for a file with the metadata headers set.
+     *
+     * @param file        The metadata of the file.
+     * @param content     The response entity, either the content bytes or a stream from the blob cache.
+     * @param disposition Either "inline" or "attachment".
+     * @return Returns the response.
+     */
+    private Response fileResponse(StoredFileIndex file, Object content, String disposition) {
+        return fileResponse(file, content, disposition, cachePolicy.forMimeType(file.getMimeType()));
+    }
+
+    private Response fileResponse(StoredFileIndex file, Object content, String disposition, String cacheControl) {
+        Response rejected = admitResponse(downloadBudget, content);
+        if (rejected != null) {
+            return rejected;
+        }
+        // set binary file content as response body
+        ResponseBuilder responseBuilder = Response.ok(content);
+        if (cacheControl != null) {
+            responseBuilder.header(HttpHeaders.CACHE_CONTROL, cacheControl);
+        }
+        if (file.getSha256() != null) {
+            responseBuilder.header(HttpHeaders.ETAG, "\"" + file.getSha256() + "\"");
+        }
+        // set headers
+        responseBuilder.header(HttpHeaders.CONTENT_DISPOSITION, disposition + escapeFilename(file.getName()));
+        responseBuilder.header(HttpHeaders.LAST_MODIFIED, RFC2822FMT.format(new Date(file.getLastModified())));
+        responseBuilder.header(HttpHeaders.CONTENT_TYPE, file.getMimeType());
+        // following some non HTTP standard header fields
+        responseBuilder.header(HEADER_OWNERID, file.getOwnerId());
+        responseBuilder.header(HEADER_CONTENT_DESCRIPTION, file.getDescription());
+        return responseBuilder.build();
+    }
+
+    /**
+     * Reserves the heap budget for a response body until the response is written. Content in memory is held until
+     * then, while cached files are streamed from disk and need no budget.
+     *
+     * @param budget  The budget to reserve the content size from.
+     * @param content The response body.
+     * @return Returns {@code null} if the response may be sent, or a 503 response if the budget is exhausted.
+     */
+    static Response admitResponse(ByteBudget budget, Object content) {
+        if (content instanceof byte[] && !budget.reserveForResponse(((byte[]) content).length)) {
+            return overloaded("Too many downloads in progress. Try again later.");
+        }
+        return null;
+    }
+
+    /**
+     * Serves a file from the blob cache without touching the network.
+     *
+     * @param identifier  The file identifier.
+     * @param disposition Either "inline" or "attachment".
+     * @return Returns the response or {@code null} if the file is not cached.
+     */
+    private Response cachedFileResponse(String identifier, String disposition) {
+        if (blobCache == null) {
+            return null;
+        }
+        BlobCache.Entry entry;
+        try (RequestTrace.Span span = RequestTrace.span("cache")) {
+            entry = blobCache.get(identifier);
+        }
+        if (entry == null) {
+            return null;
+        }
+        StreamingOutput content = blobCache.open(entry);
+        if (content == null) {
+            return null;
+        }
+        return fileResponse(entry.getMeta(), content, disposition);
+    }
+
+    private Response getBlob(String sha256, String ifNoneMatch) {
+        if (!sha256.matches("[0-9a-fA-F]{64}")) {
+            return Response.status(Status.BAD_REQUEST).entity("Invalid SHA-256 hash").build();
+        }
+        String digest = sha256.toLowerCase();
+        // the content behind a hash never changes, so any cached copy the client has is valid
+        if (ifNoneMatch != null && ifNoneMatch.contains(digest)) {
+            return Response.status(Status.NOT_MODIFIED).header(HttpHeaders.ETAG, "\"" + digest + "\"")
+                    .header(HttpHeaders.CACHE_CONTROL, IMMUTABLE_CACHE_CONTROL).build();
+        }
+        try {
+            if (blobCache != null) {
+                BlobCache.Entry entry = blobCache.getByDigest(digest);
+                StreamingOutput content = entry != null ? blobCache.open(entry) : null;
+                if (content != null) {
+                    return fileResponse(entry.getMeta(), content, "inline", IMMUTABLE_CACHE_CONTROL);
+                }
+            }
+            StoredFile file = fetchFileByDigestReal(digest);
+            return fileResponse(file, file.getContent(), "inline", IMMUTABLE_CACHE_CONTROL);
+        } catch (EnvelopeNotFoundException e) {
+            logger.log(Level.INFO, "Blob (" + digest + ") not found!");
+            return Response.status(Status.NOT_FOUND).build();
+        } catch (EnvelopeUnavailableException e) {
+            return unavailable(e);
+        } catch (EnvelopeAccessDeniedException e) {
+            logger.log(Level.INFO, e.toString(), e);
+            return Response.status(Status.FORBIDDEN).entity(e.toString()).build();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Can't read blob (" + digest + ") from network storage! ", e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    private Response downloadFile(String identifier) {
+        RequestTrace.begin("downloadFile", identifier);
+        recordAccess(identifier);
+        try {
+            Response cached = cachedFileResponse(identifier, "attachment");
+            if (cached != null) {
+                return cached;
+            }
+            StoredFile file = fetchFileReal(identifier);
+            return fileResponse(file, file.getContent(), "attachment");
+        } catch (EnvelopeNotFoundException e) {
+            logger.log(Level.INFO, "File (" + identifier + ") not found!", e);
+            return Response.status(Status.NOT_FOUND).build();
+        } catch (EnvelopeUnavailableException e) {
+            return unavailable(e);
+        } catch (EnvelopeAccessDeniedException e) {
+            logger.log(Level.INFO, e.toString(), e);
+            return Response.status(Status.FORBIDDEN).entity(e.toString()).build();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Can't read file (" + identifier + ") content from network storage! ", e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    private Response getFile(List<String> cleanPaths) {
+        String originalIdentifier = String.join("/", cleanPaths);
+        RequestTrace.begin("getFile", originalIdentifier);
+        recordAccess(originalIdentifier);
+        try {
+            Response cached = cachedFileResponse(originalIdentifier, "inline");
+            if (cached != null) {
+                return cached;
+            }
+            StoredFile file = null;
+            ArrayList<String> checkPaths = new ArrayList<>(cleanPaths);
+            try {
+                file = fetchFileReal(originalIdentifier);
+            } catch (EnvelopeNotFoundException e) {
+                try (RequestTrace.Span fallbackSpan = RequestTrace.span("fallback")) {
+                    // paths of a site resolve with its manifest, files stored directly always take precedence
+                    Response site = siteFileResponse(cleanPaths);
+                    if (site != null) {
+                        return site;
+                    }
+                    while (!checkPaths.isEmpty()) {
+                        String identifier = String.join("/", checkPaths);
+                        cached = cachedFileResponse(identifier + "/index.html", "inline");
+                        if (cached != null) {
+                            return cached;
+                        }
+                        try {
+                            file = fetchFileReal(identifier + "/index.html");
+                            break;
+                        } catch (EnvelopeUnavailableException e2) {
+                            throw e2;
+                        } catch (Exception e2) {
+                            checkPaths.remove(checkPaths.size() - 1);
+                        }
+                    }
+                }
+            }
+            if (file == null) {
+                logger.log(Level.INFO, "File (" + originalIdentifier + ") not found!");
+                return Response.status(Status.NOT_FOUND).build();
+            }
+            return fileResponse(file, file.getContent(), "inline");
+        } catch (EnvelopeUnavailableException e) {
+            return unavailable(e);
+        } catch (EnvelopeAccessDeniedException e) {
+            logger.log(Level.INFO, e.toString(), e);
+            return Response.status(Status.FORBIDDEN).entity(e.toString()).build();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Can't read file (" + originalIdentifier + ") content from network storage! ", e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Serves a resized or re-encoded variant of an image. Variants are stored as public envelopes owned by the
+     * service agent, named by the content hash of the source and the variant parameters. So a variant is rendered
+     * once, later requests on any node fetch it like a file, and a changed source gets new variants.
+     *
+     * @param identifier The identifier of the source image.
+     * @param width      The maximum width, 0 for no limit.
+     * @param height     The maximum height, 0 for no limit.
+     * @param format     The image format of the variant, e.g. png or jpeg, or {@code null} for the source format.
+     * @return Returns the variant response.
+     */
+    private Response getVariant(String identifier, int width, int height, String format) {
+        try {
+            // the cached source is enough to name the variant, its content is only needed for rendering
+            BlobCache.Entry cachedSource = blobCache != null ? blobCache.get(identifier) : null;
+            StoredFileIndex source;
+            StoredFile sourceFile = null;
+            if (cachedSource != null && cachedSource.getMeta().getSha256() != null) {
+                source = cachedSource.getMeta();
+            } else {
+                sourceFile = fetchFileReal(identifier);
+                source = sourceFile;
+            }
+            ImageVariants.Spec spec = imageVariants.spec(width, height, format, source.getMimeType());
+            String sourceSha256 = source.getSha256() != null ? source.getSha256() : sha256(sourceFile.getContent());
+            String key = VARIANT_ENVELOPE_BASENAME + spec.key(sourceSha256);
+            Response cached = cachedFileResponse(key, "inline");
+            if (cached != null) {
+                return cached;
+            }
+            StoredFile variant = fetchVariant(key, source, sourceFile, cachedSource, spec);
+            return fileResponse(variant, variant.getContent(), "inline");
+        } catch (IllegalArgumentException e) {
+            return Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build();
+        } catch (RejectedExecutionException e) {
+            logger.log(Level.WARNING, e.toString());
+            return overloaded(e.getMessage());
+        } catch (EnvelopeNotFoundException e) {
+            logger.log(Level.INFO, "File (" + identifier + ") not found!");
+            return Response.status(Status.NOT_FOUND).build();
+        } catch (EnvelopeUnavailableException e) {
+            return unavailable(e);
+        } catch (EnvelopeAccessDeniedException e) {
+            logger.log(Level.INFO, e.toString(), e);
+            return Response.status(Status.FORBIDDEN).entity(e.toString()).build();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Can't create variant of file (" + identifier + ")!", e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    private StoredFile fetchVariant(String key, StoredFileIndex source, StoredFile sourceFile,
+                                    BlobCache.Entry cachedSource, ImageVariants.Spec spec) throws Exception {
+        Context context = Context.get();
+        Agent serviceAgent = getAgent();
+        return variantFetches.execute(key, () -> {
+            StoredFile variant = null;
+            try {
+                variant = (StoredFile) envelopeExecutor.call(context, c -> c.requestEnvelope(key)).getContent();
+            } catch (EnvelopeNotFoundException e) {
+                logger.fine("Variant (" + key + ") not rendered yet");
+            }
+            // variants of replaced sources are emptied, another file with the same content renders them again
+            if (variant == null || variant.getFileSize() == 0) {
+                byte[] content = sourceFile != null ? sourceFile.getContent() : readSource(source, cachedSource);
+                byte[] rendered = imageVariants.render(content, spec);
+                StoredFile created = new StoredFile(key, source.getName(), rendered, source.getLastModified(),
+                        serviceAgent.getIdentifier(), spec.getMimeType(), source.getDescription());
+                created.setSha256(sha256(rendered));
+                variant = envelopeExecutor.callOrCreate(context, c -> {
+                    Envelope env;
+                    try {
+                        env = c.requestEnvelope(key);
+                        StoredFile existing = (StoredFile) env.getContent();
+                        if (existing.getFileSize() > 0) {
+                            // another node rendered the same variant meanwhile
+                            return existing;
+                        }
+                    } catch (EnvelopeNotFoundException e2) {
+                        env = c.createEnvelope(key, serviceAgent);
+                    }
+                    env.setPublic();
+                    env.setContent(created);
+                    c.storeEnvelope(env, serviceAgent);
+                    return created;
+                });
+                scheduleVariantRegistration(context, source.getIdentifier(), key);
+                logger.info("rendered variant (" + key + ") of file (" + source.getIdentifier() + ") with "
+                        + rendered.length + " bytes");
+            }
+            if (blobCache != null) {
+                blobCache.put(variant);
+            }
+            return variant;
+        });
+    }
+
+    private static boolean isImage(StoredFileIndex file) {
+        return file.getMimeType() != null && file.getMimeType().toLowerCase(Locale.ROOT).startsWith("image/");
+    }
+
+    /**
+     * Adds a rendered variant to the variants of its source file in the background, so it can be removed once the
+     * source is replaced or deleted.
+     *
+     * @param context    The context used for network operations, since this runs outside of the request thread.
+     * @param identifier The identifier of the source file.
+     * @param key        The envelope identifier of the variant.
+     */
+    private void scheduleVariantRegistration(Context context, String identifier, String key) {
+        context.getExecutor().execute(() -> {
+            try {
+                updateVariants(context, identifier, keys -> {
+                    keys.add(key);
+                    return Collections.emptyList();
+                });
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Could not register variant (" + key + ") of file (" + identifier + ")", e);
+            }
+        });
+    }
+
+    /**
+     * Removes the variants of a replaced or deleted source file in the background. Variants are named by the content
+     * hash of their source, so they are never requested again unless another file has the same content.
+     *
+     * @param context       The context used for network operations, since this runs outside of the request thread.
+     * @param identifier    The identifier of the source file.
+     * @param currentSha256 The content hash of the current version, its variants are kept, or {@code null} if the
+     *                      file was deleted.
+     */
+    private void scheduleVariantCleanup(Context context, String identifier, String currentSha256) {
+        context.getExecutor().execute(() -> {
+            try {
+                String current = currentSha256 != null ? VARIANT_ENVELOPE_BASENAME + currentSha256 + "-" : null;
+                List<String> stale = updateVariants(context, identifier, keys -> {
+                    List<String> removed = new ArrayList<>();
+                    keys.removeIf(key -> {
+                        if (current != null && key.startsWith(current)) {
+                            return false;
+                        }
+                        removed.add(key);
+                        return true;
+                    });
+                    return removed;
+                });
+                for (String key : stale) {
+                    clearVariant(context, key);
+                }
+                if (!stale.isEmpty()) {
+                    logger.info("removed " + stale.size() + " variants of file (" + identifier + ")");
+                }
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Could not remove variants of file (" + identifier + ")", e);
+            }
+        });
+    }
+
+    private interface VariantsUpdate {
+
+        List<String> apply(Set<String> keys);
+
+    }
+
+    /**
+     * Updates the envelope identifiers of the rendered variants of a source file.
+     *
+     * @param context    The context used for network operations.
+     * @param identifier The identifier of the source file.
+     * @param update     Changes the set of variants and returns the removed variants.
+     * @return Returns the removed variants.
+     */
+    private List<String> updateVariants(Context context, String identifier, VariantsUpdate update)
+            throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
+        String variantsIdentifier = VARIANTS_ENVELOPE_BASENAME + identifier;
+        Agent serviceAgent = getAgent();
+        return envelopeExecutor.callOrCreate(context, c -> {
+            Envelope variantsEnv;
+            HashSet<String> keys = new HashSet<>();
+            try {
+                variantsEnv = c.requestEnvelope(variantsIdentifier, serviceAgent);
+                for (Object key : (Set<?>) variantsEnv.getContent()) {
+                    keys.add((String) key);
+                }
+            } catch (EnvelopeNotFoundException e) {
+                variantsEnv = c.createEnvelope(variantsIdentifier, serviceAgent);
+            }
+            int size = keys.size();
+            List<String> removed = update.apply(keys);
+            if (keys.size() != size || !removed.isEmpty()) {
+                variantsEnv.setContent(keys);
+                c.storeEnvelope(variantsEnv, serviceAgent);
+            }
+            return removed;
+        });
+    }
+
+    /**
+     * Overwrites a variant with empty content, the service agent owns it and can't remove the envelope itself.
+     */
+    private void clearVariant(Context context, String key)
+            throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
+        Agent serviceAgent = getAgent();
+        envelopeExecutor.callOrCreate(context, c -> {
+            Envelope env;
+            try {
+                env = c.requestEnvelope(key, serviceAgent);
+            } catch (EnvelopeNotFoundException e) {
+                return null;
+            }
+            StoredFile variant = (StoredFile) env.getContent();
+            if (variant.getFileSize() == 0) {
+                return null;
+            }
+            StoredFile cleared = new StoredFile(key, variant.getName(), new byte[0], System.currentTimeMillis(),
+                    variant.getOwnerId(), variant.getMimeType(), variant.getDescription());
+            env.setContent(cleared);
+            c.storeEnvelope(env, serviceAgent);
+            return null;
+        });
+    }
+
+    private byte[] readSource(StoredFileIndex source, BlobCache.Entry cachedSource) throws Exception {
+        try {
+            return blobCache.read(cachedSource);
+        } catch (IOException e) {
+            // evicted meanwhile, the content in the network must still match the variant name
+            StoredFile file = fetchFileReal(source.getIdentifier());
+            if (!source.getSha256().equals(file.getSha256())) {
+                throw new EnvelopeUnavailableException("File (" + source.getIdentifier() + ") changed meanwhile");
+            }
+            return file.getContent();
+        }
+    }
+
+    /**
+     * Resolves a path with the manifest of the site named by its first segment.
+     *
+     * @param cleanPaths The path segments of the request.
+     * @return Returns the response or {@code null} if there is no such site or the site does not contain the path.
+     */
+    private Response siteFileResponse(List<String> cleanPaths) throws EnvelopeAccessDeniedException,
+            EnvelopeOperationFailedException {
+        if (cleanPaths.isEmpty()) {
+            return null;
+        }
+        String siteName = cleanPaths.get(0);
+        Optional<SiteManifest> manifest;
+        try (RequestTrace.Span span = RequestTrace.span("site")) {
+            manifest = loadSite(siteName);
+        }
+        if (manifest == null || manifest.isEmpty()) {
+            return null;
+        }
+        StoredFileIndex entry = manifest.get().resolve(String.join("/", cleanPaths.subList(1, cleanPaths.size())));
+        if (entry == null) {
+            return null;
+        }
+        Response cached = cachedFileResponse(entry.getIdentifier(), "inline");
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            StoredFile file = fetchFileReal(entry.getIdentifier());
+            return fileResponse(file, file.getContent(), "inline");
+        } catch (EnvelopeNotFoundException e) {
+            logger.log(Level.INFO, "File (" + entry.getIdentifier() + ") of site " + siteName + " not found!");
+            return null;
+        }
+    }
+
+    private Optional<SiteManifest> loadSite(String siteName) throws EnvelopeAccessDeniedException,
+            EnvelopeOperationFailedException {
+        Context context = Context.get();
+        try {
+            return siteCache.get(siteName, () -> {
+                try {
+                    Envelope env = envelopeExecutor.call(context,
+                            c -> c.requestEnvelope(SITE_ENVELOPE_BASENAME + siteName));
+                    return (SiteManifest) env.getContent();
+                } catch (EnvelopeNotFoundException e) {
+                    return null;
+                }
+            });
+        } catch (EnvelopeAccessDeniedException | EnvelopeOperationFailedException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new EnvelopeOperationFailedException("Loading site " + siteName + " failed", e);
+        }
+    }
+
+    /**
+     * This method is intended to be used by other services for invocation. It deploys all files with identifiers
+     * below the site name as static site. Afterwards each path of the site is resolved with a single lookup in the
+     * site manifest, which is cached on each node. The publisher must own all files of the site, directly or as
+     * member of the owning group. Only the publisher of a site may publish it again.
+     *
+     * @param siteName  The name of the site, which is the first path segment of its files.
+     * @param fallbacks Fallback rules that map path prefixes to the file served for unknown paths below them, e.g.
+     *                  {@code "" -> "index.html"} for a single page application. May be empty.
+     * @param files     Identifiers of files below the site name that are excluded from the file index and should be
+     *                  part of the site anyway. May be empty.
+     * @return Returns the manifest as Map with the fields name, ownerId, lastModified, paths and fallbacks.
+     * @throws IllegalArgumentException         If the site name is invalid, the site has no files or a fallback
+     *                                          target is not part of the site.
+     * @throws EnvelopeAccessDeniedException    If the main agent is not allowed to publish the site or does not own
+     *                                          all of its files.
+     * @throws EnvelopeNotFoundException        If one of the given files does not exist.
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network.
+     * @throws ServiceException                 If the service is not started yet
+     */
+    public Map<String, Object> publishSite(String siteName, Map<String, String> fallbacks, List<String> files)
+            throws IllegalArgumentException, EnvelopeAccessDeniedException, EnvelopeNotFoundException,
+            EnvelopeOperationFailedException, ServiceException {
+        if (siteName == null || siteName.isEmpty() || siteName.contains("/")) {
+            throw new IllegalArgumentException("Invalid site name (" + siteName + "). Must be a single path segment.");
+        }
+        Context context = Context.get();
+        Agent owner = context.getMainAgent();
+        String prefix = siteName + "/";
+        SiteManifest manifest = new SiteManifest(siteName, owner.getIdentifier(), new Date().getTime());
+        for (StoredFileIndex entry : getFileIndexReal().withPrefix(prefix)) {
+            manifest.addFile(entry.getIdentifier().substring(prefix.length()), entry);
+        }
+        for (String identifier : files) {
+            if (!identifier.startsWith(prefix)) {
+                throw new IllegalArgumentException("File (" + identifier + ") is not part of site " + siteName);
+            }
+            // the manifest holds only metadata, not the content
+            StoredFile file = fetchFileReal(identifier);
+            manifest.addFile(identifier.substring(prefix.length()), indexEntry(file));
+        }
+        if (manifest.size() == 0) {
+            throw new IllegalArgumentException("Site " + siteName + " has no files");
+        }
+        Set<String> owners = new HashSet<>();
+        for (StoredFileIndex entry : manifest.getFiles()) {
+            owners.add(entry.getOwnerId());
+        }
+        for (String ownerId : owners) {
+            if (!mayActFor(context, ownerId)) {
+                throw new EnvelopeAccessDeniedException("Site " + siteName + " contains files of agent (" + ownerId
+                        + "), which the publisher may not act for");
+            }
+        }
+        for (Map.Entry<String, String> fallback : fallbacks.entrySet()) {
+            manifest.addFallback(fallback.getKey(), fallback.getValue());
+        }
+        envelopeExecutor.callOrCreate(context, c -> {
+            Envelope siteEnv;
+            try {
+                siteEnv = c.requestEnvelope(SITE_ENVELOPE_BASENAME + siteName);
+            } catch (EnvelopeNotFoundException e) {
+                siteEnv = c.createEnvelope(SITE_ENVELOPE_BASENAME + siteName, owner);
+            }
+            siteEnv.setPublic();
+            siteEnv.setContent(manifest);
+            c.storeEnvelope(siteEnv, owner);
+            return null;
+        });
+        siteCache.put(siteName, manifest);
+        logger.info("published site " + siteName + " with " + manifest.size() + " paths");
+        return manifest.toJsonObject();
+    }
+
+    /**
+     * @param context The context of the requesting agent.
+     * @param ownerId The owner of a file.
+     * @return Returns true if the owner is the main agent or a group the main agent is a member of.
+     * @throws EnvelopeOperationFailedException If the owner could not be resolved because of an error on the node.
+     */
+    private boolean mayActFor(Context context, String ownerId) throws EnvelopeOperationFailedException {
+        if (ownerId == null) {
+            return false;
+        }
+        if (ownerId.equals(context.getMainAgent().getIdentifier())) {
+            return true;
+        }
+        try {
+            return agentCache.get(context, ownerId) instanceof GroupAgent;
+        } catch (AgentAccessDeniedException | AgentNotFoundException e) {
+            return false;
+        } catch (AgentOperationFailedException e) {
+            throw new EnvelopeOperationFailedException("Could not resolve owner (" + ownerId + ")", e);
+        }
+    }
+
+    /**
+     * This method is intended to be used by other services for invocation. It returns the manifest of a site.
+     *
+     * @param siteName The name of the site.
+     * @return Returns the manifest as Map with the fields name, ownerId, lastModified, paths and fallbacks.
+     * @throws EnvelopeAccessDeniedException    If the main agent is not able to access the envelope.
+     * @throws EnvelopeNotFoundException        If the site does not exist.
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network.
+     */
+    public Map<String, Object> getSite(String siteName)
+            throws EnvelopeAccessDeniedException, EnvelopeNotFoundException, EnvelopeOperationFailedException {
+        Optional<SiteManifest> manifest = loadSite(siteName);
+        if (manifest.isEmpty()) {
+            throw new EnvelopeNotFoundException("Site " + siteName + " does not exist");
+        }
+        return manifest.get().toJsonObject();
+    }
+
+    private Response publishSite(String siteName, String body) {
+        try {
+            HashMap<String, String> fallbacks = new HashMap<>();
+            ArrayList<String> files = new ArrayList<>();
+            if (body != null && !body.isBlank()) {
+                Object parsed = new JSONParser(JSONParser.MODE_PERMISSIVE).parse(body);
+                if (!(parsed instanceof Map)) {
+                    return Response.status(Status.BAD_REQUEST).entity("Body must be a JSON object").build();
+                }
+                Object rules = ((Map<?, ?>) parsed).get("fallbacks");
+                if (rules instanceof Map) {
+                    for (Map.Entry<?, ?> rule : ((Map<?, ?>) rules).entrySet()) {
+                        fallbacks.put(String.valueOf(rule.getKey()), String.valueOf(rule.getValue()));
+                    }
+                }
+                Object extra = ((Map<?, ?>) parsed).get("files");
+                if (extra instanceof List) {
+                    for (Object identifier : (List<?>) extra) {
+                        files.add(String.valueOf(identifier));
+                    }
+                }
+            }
+            Map<String, Object> manifest = publishSite(siteName, fallbacks, files);
+            return Response.ok(JSONObject.toJSONString(manifest), MediaType.APPLICATION_JSON).build();
+        } catch (ParseException | IllegalArgumentException e) {
+            return Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build();
+        } catch (EnvelopeNotFoundException e) {
+            return Response.status(Status.NOT_FOUND).entity(e.getMessage()).build();
+        } catch (EnvelopeUnavailableException e) {
+            return unavailable(e);
+        } catch (EnvelopeAccessDeniedException e) {
+            logger.log(Level.INFO, e.toString(), e);
+            return Response.status(Status.FORBIDDEN).entity(e.toString()).build();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Publishing site " + siteName + " failed!", e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR)
+                    .entity("Publishing site " + siteName + " failed! See log for details.").build();
+        }
+    }
+
+    /**
+     * Creates the response for requests that failed, because the network did not answer in time or too many envelope
+     * operations are pending on this node.
+     *
+     * @param e The exception that caused the failure.
+     * @return Returns a 503 response with a Retry-After header.
+     */
+    private static Response unavailable(EnvelopeUnavailableException e) {
+        logger.log(Level.WARNING, e.toString());
+        return overloaded(e.getMessage());
+    }
+
+    /**
+     * Creates the response for requests that were rejected, because this node is busy.
+     *
+     * @param message The message for the client.
+     * @return Returns a 503 response, which asks the client to retry after a few seconds.
+     */
+    static Response overloaded(String message) {
+        return Response.status(Status.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, 5).entity(message).build();
+    }
+
+    private String escapeFilename(String filename) {
+        String result = "";
+        if (filename != null) {
+            result = ";filename=\"" + filename + "\""; // this is the "old" way
+            try {
+                // this is for modern browsers
+                result += ";filename*=UTF-8''" + URLEncoder.encode(filename, "UTF-8").replace("+", "%20");
+            } catch (UnsupportedEncodingException e) {
+                // if this fails, we still have the "old" way
+                logger.log(Level.WARNING, e.toString(), e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks the syntax of a file identifier given by a client.
+     *
+     * @param identifier The trimmed identifier to check.
+     * @return Returns an error message or {@code null} if the identifier is valid.
+     */
+    private static String validateIdentifier(String identifier) {
+        if (identifier.contains("//")) {
+            return "Invalid file identifier (" + identifier + "). Must not contain double slashes.";
+        } else if (identifier.startsWith("/")) {
+            return "Invalid file identifier (" + identifier + "). Must not start with slash.";
+        } else if (identifier.endsWith("/")) {
+            return "Invalid file identifier (" + identifier + "). Must not end with slash.";
+        }
+        return null;
+    }
+
+    private Response uploadFile(String identifier, FormDataContentDisposition fileContentHeader,
+                                FormDataBodyPart bodyPart, InputStream fileContentStream, long contentLength, String shareWithGroup, String description,
+                                String excludeFromIndex, boolean enforceIdentifier) {
+        if (fileContentStream == null) {
+            return Response.status(Status.BAD_REQUEST).entity("File upload failed! No form data at all.").build();
+        }
+        RequestTrace.begin("uploadFile", identifier);
+        // heap budget reserved for this upload, released when the request is done
+        long reserved = 0;
+        try {
+            String filename = null;
+            if (fileContentHeader != null) {
+                filename = fileContentHeader.getFileName();
+            }
+
+            // infer MIME type
+            String mimeType = MimeTypes.get(filename);
+            if (mimeType == MimeTypes.DEFAULT && bodyPart != null) {
+                MediaType type = bodyPart.getMediaType();
+                if (type != null) {
+                    mimeType = type.toString();
+                }
+            }
+            // read the file content into one array, which is admitted against the heap budget before it is allocated
+            byte[] filecontent;
+            try (RequestTrace.Span readSpan = RequestTrace.span("read")) {
+                long maxLength = MAX_FILE_SIZE_MB * 1000000;
+                // the announced request length is an upper bound of the file size, multipart bodies add form fields
+                byte[] buffer = new byte[0];
+                int length = 0;
+                int capacity = contentLength > 0 ? (int) Math.min(contentLength, maxLength + 1) : 64 * 1024;
+                while (true) {
+                    if (length == buffer.length) {
+                        // a body that exactly fills the buffer ends here, so look ahead before growing it
+                        int next = length > 0 ? fileContentStream.read() : 0;
+                        if (next == -1) {
+                            break;
+                        }
+                        if (!uploadBudget.reserve(capacity)) {
+                            return overloaded("Too many uploads in progress. Try again later.");
+                        }
+                        reserved += capacity;
+                        byte[] previous = buffer;
+                        buffer = Arrays.copyOf(previous, capacity);
+                        uploadBudget.release(previous.length);
+                        reserved -= previous.length;
+                        // the request has no or a wrong length, grow exponentially
+                        capacity = (int) Math.min((long) capacity * 2, maxLength + 1);
+                        if (length > 0) {
+                            buffer[length++] = (byte) next;
+                        }
+                    }
+                    int nRead = fileContentStream.read(buffer, length, buffer.length - length);
+                    if (nRead == -1) {
+                        break;
+                    }
+                    length += nRead;
+                    if (length > maxLength) {
+                        return Response.status(Status.REQUEST_ENTITY_TOO_LARGE)
+                                .entity("Given request body exceeds limit of " + MAX_FILE_SIZE_MB + " MB").build();
+                    }
+                }
+                if (length == buffer.length) {
+                    filecontent = buffer;
+                } else {
+                    // trim to the file size, the copy is admitted before the larger buffer is dropped
+                    if (!uploadBudget.reserve(length)) {
+                        return overloaded("Too many uploads in progress. Try again later.");
+                    }
+                    reserved += length;
+                    filecontent = Arrays.copyOf(buffer, length);
+                    uploadBudget.release(buffer.length);
+                    reserved -= buffer.length;
+                }
+            }
+            // validate input
+            if (filecontent.length < 1 || (filecontent.length == "undefined".length()
+                    && new String(filecontent, StandardCharsets.UTF_8).equalsIgnoreCase("undefined"))) {
+                return Response.status(Status.BAD_REQUEST)
+                        .entity("File (" + filename
+                                + ") upload failed! No content provided. Add field 'filecontent' to your form.")
+                        .build();
+            }
+            logger.info("upload request for (" + filename + ") with mime type '" + mimeType + "' and size "
+                    + filecontent.length + " bytes");
+            if (identifier != null) {
+                // these data belong to the (optional) identifier text input form element
+                identifier = identifier.trim();
+                // validate identifier
+                String invalid = validateIdentifier(identifier);
+                if (invalid != null) {
+                    return Response.status(Status.BAD_REQUEST).entity(invalid).build();
+                }
+            }
+            // optional hide from index
+            boolean listFileOnIndex = true;
+            if ("on".equalsIgnoreCase(excludeFromIndex) || "true".equalsIgnoreCase(excludeFromIndex)) {
+                listFileOnIndex = false;
+            }
+            // enforce identifier for PUT operations
+            if (enforceIdentifier && (identifier == null || identifier.isEmpty())) {
+                return Response.status(Status.BAD_REQUEST).entity("No identfier provided").build();
+            }
+            // if the form doesn't especially describe a identifier, use (hashed?) filename as fallback
+            if ((identifier == null || identifier.isEmpty()) && filename != null && !filename.isEmpty()) {
+                logger.info("No file identifier provided using hashed filename as fallback");
+                identifier = Long.toString(SimpleTools.longHash(filename));
+            }
+            int code = HttpURLConnection.HTTP_OK;
+            try {
+                boolean created = storeFile(identifier, filename, filecontent, mimeType, shareWithGroup, description,
+                        listFileOnIndex);
+                if (created) {
+                    code = HttpURLConnection.HTTP_CREATED;
+                }
+            } catch (IllegalArgumentException e) {
+                logger.log(Level.SEVERE, "File upload failed!", e);
+                return Response.status(Status.BAD_REQUEST).entity(e.toString()).build();
+            } catch (EnvelopeUnavailableException e) {
+                return unavailable(e);
+            } catch (EnvelopeAccessDeniedException e) {
+                logger.log(Level.SEVERE, "File upload failed!", e);
+                return Response.status(Status.FORBIDDEN).entity("403 - Forbidden\n" + e.toString() + "\nFile ("
+                        + identifier + ") upload failed! See log for details.").build();
+            }
+            return Response.status(code).entity(identifier).build();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "File upload failed!", e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR)
+                    .entity("File (" + identifier + ") upload failed! See log for details.").build();
+        } finally {
+            uploadBudget.release(reserved);
+        }
+    }
+
+    private Response createUploadSession(String identifier, long size, String filename, String mimeType,
+                                         String shareWithGroup, String description, String excludeFromIndex) {
+        if (identifier == null || identifier.trim().isEmpty()) {
+            return Response.status(Status.BAD_REQUEST).entity("No identfier provided").build();
+        }
+        identifier = identifier.trim();
+        String invalid = validateIdentifier(identifier);
+        if (invalid != null) {
+            return Response.status(Status.BAD_REQUEST).entity(invalid).build();
+        }
+        if (size < 1) {
+            return Response.status(Status.BAD_REQUEST).entity("Upload size must be at least one byte").build();
+        } else if (size > MAX_FILE_SIZE_MB * 1000000) {
+            return Response.status(Status.REQUEST_ENTITY_TOO_LARGE)
+                    .entity("Announced upload size exceeds limit of " + MAX_FILE_SIZE_MB + " MB").build();
+        }
+        // drop abandoned sessions before the limit is checked
+        long timeoutMillis = uploadSessionTimeoutSeconds * 1000;
+        for (UploadSession session : uploadSessions.values()) {
+            if (session.isExpired(timeoutMillis)) {
+                discardUploadSession(session);
+            }
+        }
+        if (uploadSessions.size() >= maxUploadSessions) {
+            return Response.status(Status.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, 60)
+                    .entity("Too many open upload sessions. Try again later.").build();
+        }
+        // the session buffer is allocated at once, so the whole size is admitted up front
+        if (!uploadBudget.reserve(size)) {
+            return overloaded("Too many uploads in progress. Try again later.");
+        }
+        if (mimeType == null || mimeType.isEmpty()) {
+            mimeType = MimeTypes.get(filename);
+        }
+        boolean listFileOnIndex = !("on".equalsIgnoreCase(excludeFromIndex) || "true".equalsIgnoreCase(excludeFromIndex));
+        UploadSession session = new UploadSession(Context.get().getMainAgent().getIdentifier(), identifier, filename,
+                mimeType, shareWithGroup, description, listFileOnIndex, (int) size);
+        uploadSessions.put(session.getSessionId(), session);
+        logger.info("created upload session (" + session.getSessionId() + ") for file (" + identifier + ") with size "
+                + size + " bytes");
+        return Response.status(Status.CREATED).entity(session.toJsonObject().toJSONString())
+                .type(MediaType.APPLICATION_JSON).build();
+    }
+
+    /**
+     * Removes an upload session and releases its heap budget. Does nothing if the session was already removed.
+     *
+     * @param session The session to discard.
+     */
+    private void discardUploadSession(UploadSession session) {
+        if (uploadSessions.remove(session.getSessionId(), session)) {
+            uploadBudget.release(session.getContent().length);
+        }
+    }
+
+    /**
+     * Looks up an upload session of the current main agent.
+     *
+     * @param sessionId The session id as returned on session creation.
+     * @return Returns the session or {@code null} if there is no such session for the current agent.
+     */
+    private UploadSession lookupUploadSession(String sessionId) {
+        UploadSession session = uploadSessions.get(sessionId);
+        if (session == null) {
+            return null;
+        } else if (session.isExpired(uploadSessionTimeoutSeconds * 1000)) {
+            discardUploadSession(session);
+            return null;
+        } else if (!session.getAgentId().equals(Context.get().getMainAgent().getIdentifier())) {
+            return null;
+        }
+        return session;
+    }
+
+    private Response uploadChunk(String sessionId, long offset, InputStream chunk) {
+        UploadSession session = lookupUploadSession(sessionId);
+        if (session == null) {
+            return Response.status(Status.NOT_FOUND).entity("Upload session (" + sessionId + ") not found").build();
+        }
+        if (chunk == null) {
+            return Response.status(Status.BAD_REQUEST).entity("No chunk content provided").build();
+        }
+        try {
+            session.write(offset, chunk);
+            return Response.ok(session.toJsonObject().toJSONString(), MediaType.APPLICATION_JSON).build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build();
+        } catch (IllegalStateException e) {
+            return Response.status(Status.CONFLICT).entity(e.getMessage()).build();
+        } catch (Exception e) {
+            // the range of this chunk is not marked as received, so the client can simply retry it
+            logger.log(Level.WARNING, "Chunk upload for session (" + sessionId + ") failed!", e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Chunk upload failed! See log for details.")
+                    .build();
+        }
+    }
+
+    private Response getUploadSession(String sessionId) {
+        UploadSession session = lookupUploadSession(sessionId);
+        if (session == null) {
+            return Response.status(Status.NOT_FOUND).entity("Upload session (" + sessionId + ") not found").build();
+        }
+        session.touch();
+        return Response.ok(session.toJsonObject().toJSONString(), MediaType.APPLICATION_JSON).build();
+    }
+
+    private Response commitUploadSession(String sessionId) {
+        UploadSession session = lookupUploadSession(sessionId);
+        if (session == null) {
+            return Response.status(Status.NOT_FOUND).entity("Upload session (" + sessionId + ") not found").build();
+        } else if (!session.isComplete()) {
+            return Response.status(Status.CONFLICT).entity(session.toJsonObject().toJSONString())
+                    .type(MediaType.APPLICATION_JSON).build();
+        } else if (!session.markCommitted()) {
+            return Response.status(Status.CONFLICT)
+                    .entity("Upload session (" + sessionId + ") is already committed or still receives a chunk")
+                    .build();
+        }
+        String identifier = session.getIdentifier();
+        try {
+            boolean created = storeFile(identifier, session.getFilename(), session.getContent(),
+                    session.getMimeType(), session.getShareWithGroup(), session.getDescription(),
+                    session.isListFileOnIndex());
+            discardUploadSession(session);
+            return Response.status(created ? Status.CREATED : Status.OK).entity(identifier).build();
+        } catch (IllegalArgumentException e) {
+            session.resetCommitted();
+            logger.log(Level.SEVERE, "File upload failed!", e);
+            return Response.status(Status.BAD_REQUEST).entity(e.toString()).build();
+        } catch (EnvelopeUnavailableException e) {
+            session.resetCommitted();
+            return unavailable(e);
+        } catch (EnvelopeAccessDeniedException e) {
+            session.resetCommitted();
+            logger.log(Level.SEVERE, "File upload failed!", e);
+            return Response.status(Status.FORBIDDEN).entity("403 - Forbidden\n" + e.toString() + "\nFile ("
+                    + identifier + ") upload failed! See log for details.").build();
+        } catch (Exception e) {
+            session.resetCommitted();
+            logger.log(Level.SEVERE, "File upload failed!", e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR)
+                    .entity("File (" + identifier + ") upload failed! See log for details.").build();
+        }
+    }
+
+    private Response abortUploadSession(String sessionId) {
+        UploadSession session = lookupUploadSession(sessionId);
+        if (session == null) {
+            return Response.status(Status.NOT_FOUND).entity("Upload session (" + sessionId + ") not found").build();
+        }
+        discardUploadSession(session);
+        return Response.noContent().build();
+    }
+
+    /**
+     * This method is designed to be used with RMI calls to this service. It returns the block signatures of a stored
+     * file, which a client uses to compute a delta update with {@link BlockDelta#diff(Map, byte[])}.
+     *
+     * @param identifier The file identifier.
+     * @param blockSize  The block size in bytes, or zero for the configured default.
+     * @return Returns the signatures with the fields blockSize, version, size and blocks.
+     * @throws EnvelopeAccessDeniedException    If the main agent is not able to access the envelope.
+     * @throws EnvelopeNotFoundException        If the file does not exist.
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network.
+     */
+    public Map<String, Object> getBlockSignatures(String identifier, int blockSize)
+            throws EnvelopeAccessDeniedException, EnvelopeNotFoundException, EnvelopeOperationFailedException {
+        StoredFile file = fetchFileReal(identifier);
+        return BlockDelta.signatures(file.getContent(), blockSize > 0 ? blockSize : deltaBlockSize,
+                file.getLastModified());
+    }
+
+    /**
+     * This method is designed to be used with RMI calls to this service. It rebuilds a stored file from its current
+     * content and delta instructions and stores the result. Name, mime type, description, owner and index listing of
+     * the file are kept.
+     *
+     * @param identifier  The file identifier.
+     * @param baseVersion The version from the signatures the delta was computed against.
+     * @param blockSize   The block size of the signatures.
+     * @param ops         The delta instructions as returned by {@link BlockDelta#diff(Map, byte[])}.
+     * @param sha256      An optional hex encoded SHA-256 hash of the new content to verify the result.
+     * @return Returns the size of the new content.
+     * @throws IllegalArgumentException         If the delta is invalid or the result does not match the hash.
+     * @throws IllegalStateException            If the file was changed since the signatures were fetched.
+     * @throws AgentAccessDeniedException       If the main agent is neither the owner nor a member of the owning group.
+     * @throws AgentOperationFailedException    If an error occurred on the node.
+     * @throws EnvelopeAccessDeniedException    If the main agent is not able to access the envelope.
+     * @throws EnvelopeNotFoundException        If the file does not exist.
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network.
+     * @throws ServiceException                 If the service is not started yet
+     */
+    public long applyDelta(String identifier, long baseVersion, int blockSize, ArrayList<Map<String, Object>> ops,
+                           String sha256) throws IllegalArgumentException, IllegalStateException,
+            AgentAccessDeniedException, AgentOperationFailedException, EnvelopeAccessDeniedException,
+            EnvelopeNotFoundException, EnvelopeOperationFailedException, ServiceException {
+        StoredFile base = fetchFileReal(identifier);
+        if (base.getLastModified() != baseVersion) {
+            throw new IllegalStateException("File (" + identifier + ") was changed. Fetch new signatures.");
+        }
+        // keep the owner of the current version, only the owner or a member of the owning group may replace it
+        Context context = Context.get();
+        String shareWithGroup = null;
+        if (!context.getMainAgent().getIdentifier().equals(base.getOwnerId())) {
+            Agent owner;
+            try {
+                owner = agentCache.get(context, base.getOwnerId());
+            } catch (AgentNotFoundException e) {
+                throw new AgentAccessDeniedException("Owner (" + base.getOwnerId() + ") of file (" + identifier
+                        + ") not found");
+            }
+            if (!(owner instanceof GroupAgent)) {
+                throw new AgentAccessDeniedException("File (" + identifier + ") is owned by another agent");
+            }
+            shareWithGroup = owner.getIdentifier();
+        }
+        byte[] content = BlockDelta.apply(base.getContent(), blockSize, ops, MAX_FILE_SIZE_MB * 1000000);
+        if (sha256 != null && !sha256.isEmpty() && !sha256.equalsIgnoreCase(sha256(content))) {
+            throw new IllegalArgumentException("Rebuilt content does not match the given SHA-256 hash");
+        }
+        // keep the index listing of the current version
+        boolean listed = getFileIndexReal().containsIdentifier(identifier);
+        storeFile(identifier, base.getName(), content, base.getMimeType(), shareWithGroup, base.getDescription(),
+                listed);
+        return content.length;
+    }
+
+    private Response applyDelta(String identifier, String body) {
+        try {
+            Object parsed = new JSONParser(JSONParser.MODE_PERMISSIVE).parse(body);
+            if (!(parsed instanceof Map) || !(((Map<?, ?>) parsed).get("ops") instanceof List)) {
+                return Response.status(Status.BAD_REQUEST).entity("Delta must be a JSON object with field 'ops'")
+                        .build();
+            }
+            Map<?, ?> delta = (Map<?, ?>) parsed;
+            Object version = delta.get("baseVersion");
+            Object blockSize = delta.get("blockSize");
+            if (!(version instanceof Number) || !(blockSize instanceof Number)) {
+                return Response.status(Status.BAD_REQUEST).entity("Fields 'baseVersion' and 'blockSize' required")
+                        .build();
+            }
+            ArrayList<Map<String, Object>> ops = new ArrayList<>();
+            for (Object op : (List<?>) delta.get("ops")) {
+                if (!(op instanceof Map)) {
+                    return Response.status(Status.BAD_REQUEST).entity("Invalid delta instruction " + op).build();
+                }
+                @SuppressWarnings("unchecked")
+                Map<String, Object> map = (Map<String, Object>) op;
+                ops.add(map);
+            }
+            Object sha256 = delta.get("sha256");
+            long size = applyDelta(identifier, ((Number) version).longValue(), ((Number) blockSize).intValue(), ops,
+                    sha256 instanceof String ? (String) sha256 : null);
+            logger.info("delta update for (" + identifier + ") with " + ops.size() + " instructions, new size "
+                    + size + " bytes");
+            return Response.ok(identifier).build();
+        } catch (ParseException | IllegalArgumentException e) {
+            return Response.status(Status.BAD_REQUEST).entity(e.toString()).build();
+        } catch (IllegalStateException e) {
+            return Response.status(Status.CONFLICT).entity(e.getMessage()).build();
+        } catch (EnvelopeNotFoundException e) {
+            return Response.status(Status.NOT_FOUND).build();
+        } catch (EnvelopeUnavailableException e) {
+            return unavailable(e);
+        } catch (AgentAccessDeniedException | EnvelopeAccessDeniedException e) {
+            logger.log(Level.INFO, e.toString(), e);
+            return Response.status(Status.FORBIDDEN).entity(e.toString()).build();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Delta update of file (" + identifier + ") failed!", e);
+            return Response.status(Status.INTERNAL_SERVER_ERROR)
+                    .entity("Delta update of file (" + identifier + ") failed! See log for details.").build();
+        }
+    }
+
+    /**
+     * Computes the hex encoded SHA-256 hash of the given content.
+     *
+     * @param content The content to hash.
+     * @return Returns the hash as lower case hex string.
+     */
+    private static String sha256(byte[] content) {
+        try {
+            return BlockDelta.toHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public ArrayList<Map<String, Object>> getFileIndex()
+            throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
+        ArrayList<Map<String, Object>> result = new ArrayList<>();
+        for (StoredFileIndex index : getFileIndexReal()) {
+            result.add(index.toMap());
+        }
+        return result;
+    }
+
+    private CompactIndex getFileIndexReal()
+            throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
+        return getFileIndexReal(Context.get());
+    }
+
+    /**
+     * Reads the file index. The index is kept on this node in compact form for the configured time, writes on this
+     * node replace the kept index immediately.
+     *
+     * @param context The context of the requesting thread.
+     * @return Returns the file index without deleted entries, sorted by identifier.
+     * @throws EnvelopeAccessDeniedException    If the service agent is not able to access the index
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network
+     * @throws ServiceException                 If the service is not started yet
+     */
+    private CompactIndex getFileIndexReal(Context context)
+            throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
+        CachedIndex cached = cachedIndex;
+        if (cached != null && System.currentTimeMillis() - cached.loaded <= indexCacheSeconds * 1000) {
+            return cached.index;
+        }
+        String indexIdentifier = getIndexIdentifier();
+        Agent serviceAgent = getAgent();
+        try (RequestTrace.Span span = RequestTrace.span("index")) {
+            // concurrent index reads share one fetch
+            return indexFetches.execute(indexIdentifier, () -> {
+                long generation = indexGeneration.get();
+                CompactIndex index;
+                try {
+                    Envelope storedIndex = envelopeExecutor.callHedged(context,
+                            c -> c.requestEnvelope(indexIdentifier, serviceAgent));
+                    // deleted files are only kept as tombstones until the next sweep, the compact index skips them
+                    index = CompactIndex.of((StoredFileIndexList) storedIndex.getContent());
+                } catch (EnvelopeNotFoundException e) {
+                    index = CompactIndex.of(Collections.emptyList());
+                }
+                cacheIndex(generation, index);
+                return index;
+            });
+        } catch (EnvelopeAccessDeniedException | EnvelopeOperationFailedException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new EnvelopeOperationFailedException("Could not read file index", e);
+        }
+    }
+
+    /**
+     * Keeps a read file index on this node, unless the index was written on this node while it was read.
+     *
+     * @param generation The generation of the index before it was read.
+     * @param index      The read index.
+     */
+    private void cacheIndex(long generation, CompactIndex index) {
+        if (indexCacheSeconds > 0 && indexGeneration.compareAndSet(generation, generation + 1)) {
+            cachedIndex = new CachedIndex(index, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Keeps the index written by this node, replacing any concurrently read index.
+     *
+     * @param index The written index.
+     */
+    private void replaceIndex(CompactIndex index) {
+        indexGeneration.incrementAndGet();
+        cachedIndex = indexCacheSeconds > 0 ? new CachedIndex(index, System.currentTimeMillis()) : null;
+    }
+
+    private String getIndexIdentifier() throws ServiceException {
+        return INDEX_IDENTIFIER_PREFIX + getAgent().getIdentifier();
+    }
+
+    private String getOwnerIndexIdentifier(String ownerId) throws ServiceException {
+        return getIndexIdentifier() + OWNER_INDEX_INFIX + ownerId;
+    }
+
+    /**
+     * This method is intended to be used by other services for invocation. It lists the files of a single owner,
+     * e.g. the calling agent or a group files are shared with, without reading the whole file index.
+     *
+     * @param ownerId The agent id of the owner, empty for the calling agent.
+     * @param offset  The position of the first listed file.
+     * @param limit   The maximum number of listed files, 0 for no limit.
+     * @return Returns a page of the index entries of the owner, sorted like the file index.
+     * @throws IllegalArgumentException         If offset or limit are negative
+     * @throws EnvelopeAccessDeniedException    If the service agent is not able to access the index
+     * @throws EnvelopeOperationFailedException If an error occurred at the node or in the network
+     * @throws ServiceException                 If the service is not started yet
+     */
+    public ArrayList<Map<String, Object>> getOwnerFileIndex(String ownerId, int offset, int limit)
+            throws IllegalArgumentException, EnvelopeAccessDeniedException, EnvelopeOperationFailedException,
+            ServiceException {
+        if (ownerId == null || ownerId.isEmpty()) {
+            ownerId = Context.get().getMainAgent().getIdentifier();
+        }
+        ArrayList<Map<String, Object>> result = new ArrayList<>();
+        for (StoredFileIndex index : page(getOwnerIndexReal(Context.get(), ownerId), offset, limit)) {
+            result.add(index.toMap());
+        }
+        return result;
+    }
+
+    private static List<StoredFileIndex> page(List<StoredFileIndex> index, int offset, int limit)
+            throws IllegalArgumentException {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("offset and limit must not be negative");
+        }
+        int from = Math.min(offset, index.size());
+        int to = limit == 0 ? index.size() : (int) Math.min(index.size(), (long) from + limit);
+        return index.subList(from, to);
+    }
+
+    private StoredFileIndexList getOwnerIndexReal(Context context, String ownerId)
+            throws EnvelopeAccessDeniedException, EnvelopeOperationFailedException, ServiceException {
+        String partitionIdentifier = getOwnerIndexIdentifier(ownerId);
+        Agent serviceAgent = getAgent();
+        try (RequestTrace.Span span = RequestTrace.span("index.owner")) {
+            // concurrent reads share one fetch, the returned list must not be modified
+            return partitionFetches.execute(partitionIdentifier, () -> {
+                if (staleOwnerIndexes.contains(ownerId)) {
+                    scheduleOwnerIndexUpdate(context, ownerId, Collections.emptyList(), Collections.emptySet());
+                    return ownerEntries(getFileIndexReal(context), ownerId);
+                }
+                StoredFileIndexList partition;
+                try {
+                    Envelope partitionEnv = envelopeExecutor.call(context,
+                            c -> c.requestEnvelope(partitionIdentifier, serviceAgent));
+                    partition = (StoredFileIndexList) partitionEnv.getContent();
+                } catch (EnvelopeNotFoundException e) {
+                    // owners without stores since partitions were introduced have no partition yet
+                    return ownerEntries(getFileIndexReal(context), ownerId);
+                }
+                partition.removeIf(StoredFileIndex::isDeleted);
+                partition.sort(StoredFileIndexComparator.INSTANCE);
+                return partition;
+            });
+        } catch (EnvelopeAccessDeniedException | EnvelopeOperationFailedException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new EnvelopeOperationFailedException("Could not read file index of owner (" + ownerId + ")", e);
+        }
+    }
+
+    private static StoredFileIndexList ownerEntries(CompactIndex fileIndex, String ownerId) {
+        StoredFileIndexList partition = new StoredFileIndexList();
+        for (int i = 0; i < fileIndex.size(); i++) {
+            if (ownerId.equals(fileIndex.getOwnerId(i))) {
+                partition.add(fileIndex.get(i));
+            }
+        }
+        return partition;
+    }
+
+    private List<String> getCleanPaths(List<PathSegment> paths) {
+        List<String> cleanPaths = new ArrayList<>();
+        for (PathSegment seg : paths) {
+            if (seg != null) {
+                String path = seg.getPath();
+                if (path != null && !path.isEmpty()) {
+                    cleanPaths.add(path);
+                }
+            }
+        }
+        return cleanPaths;
+    }
+
+    @Api(
+            tags = {"files"})
+    @SwaggerDefinition(
+            info = @Info(
+                    title = "las2peer File Service",
+                    version = API_VERSION,
+                    description = "A las2peer file service for demonstration purposes.",
+                    contact = @Contact(
+                            name = "ACIS Group",
+                            url = "https://las2peer.org/",
+                            email = "cuje@dbis.rwth-aachen.de"),
+                    license = @License(
+                            name = "ACIS License (BSD3)",
+                            url = "https://github.com/rwth-acis/las2peer-FileService/blob/master/LICENSE")))
+    @Path(RESOURCE_FILES_BASENAME)
+    public static class ResourceFiles {
+
+        /**
+         * This web API method deletes a file from the las2peer network. The file content is replaced by an empty
+         * tombstone and the file is removed from the file index.
+         *
+         * @param paths A list path segments or at least a single identifier to identify the file.
+         * @return Returns an HTTP status code and message with the result of the delete request.
+         */
+        @DELETE
+        @Path("/{paths: .+}")
+        @Produces(MediaType.TEXT_PLAIN)
+        @ApiResponses(
+                value = {@ApiResponse(
+                        code = HttpURLConnection.HTTP_NO_CONTENT,
+                        message = "File successfully deleted"),
+                        @ApiResponse(
+                                code = HttpURLConnection.HTTP_FORBIDDEN,
+                                message = "Only the owner of the file may delete it"),
+                        @ApiResponse(
+                                code = HttpURLConnection.HTTP_NOT_FOUND,
+                                message = "File not found")})
+        public Response deleteFile(@PathParam("paths") List<PathSegment> paths) {
+            FileService service = (FileService) Context.getCurrent().getService();
+            String identifier = String.join("/", service.getCleanPaths(paths));
+            try {
+                if (service.deleteFile(identifier)) {
+                    return Response.noContent().build();
+                }
+                return Response.status(Status.NOT_FOUND).build();
+            } catch (EnvelopeUnavailableException e) {
+                return unavailable(e);
+            } catch (AgentAccessDeniedException | EnvelopeAccessDeniedException e) {
+                logger.log(Level.INFO, e.toString(), e);
+                return Response.status(Status.FORBIDDEN).entity(e.toString()).build();
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Can't delete file (" + identifier + ")!", e);
+                return Response.status(Status.INTERNAL_SERVER_ERROR)
+                        .entity("File (" + identifier + ") delete failed! See log for details.").build();
+            }
+        }
+
+        /**
+         * This web API method downloads a file from the las2peer network. The file content is returned as binary
+         * content. For images a resized or re-encoded variant can be requested, e.g. {@code ?w=200&format=jpeg}.
+         *
+         * @param paths  A list path segments or at least a single identifier to identify the file.
+         * @param width  An optional maximum width of an image variant.
+         * @param height An optional maximum height of an image variant.
+         * @param format An optional image format of an image variant, e.g. png or jpeg.
+         * @return Returns the file content as inline element for website integration or an error response if an error
+         * occurred.
+         */
+        @GET
+        @Path("/{paths: .+}")
+        public Response getFile(@PathParam("paths") List<PathSegment> paths, @QueryParam("w") int width,
+                                @QueryParam("h") int height, @QueryParam("format") String format) {
+            if (paths.size() < 1) {
+                throw new BadRequestException("No file identifier given");
+            }
+            FileService service = (FileService) Context.getCurrent().getService();
+            if (width != 0 || height != 0 || (format != null && !format.isEmpty())) {
+                return service.getVariant(String.join("/", service.getCleanPaths(paths)), width, height, format);
+            }
+            return service.getFile(service.getCleanPaths(paths));
+        }
+
+        /**
+         * This method uploads a file to the las2peer network.
+         * form/request element.
+         *
+         * @param fileContentHeader The header of the submitted file used to determine the filename.
+         * @param bodyPart          The body part of the submitted file used to determine the mime type.
+         * @param fileContent       The actual submitted file content.
+         * @param contentLength     The length of the request body, -1 if unknown.
+         * @param shareWithGroup    The given value is interpreted as agent id and the agent gets exclusively read
+         *                          permission.
+         * @param description       A descriptive text used to describe the file.
+         * @param excludeFromIndex  If set to "true" or "on" as most browsers do the file is NOT listed in the global
+         *                          file index.
+         * @return Returns an HTTP status code and message with the result of the upload request.
+         */
+        @POST
+        @Produces(MediaType.TEXT_PLAIN)
+        @ApiResponses(
+                value = {@ApiResponse(
+                        code = HttpURLConnection.HTTP_CREATED,
+                        message = "File successfully created. Returns identifier.",
+                        response = String.class),
+                        @ApiResponse(
+                                code = HttpURLConnection.HTTP_BAD_REQUEST,
+                                message = "File upload failed!"),
+                        @ApiResponse(
+                                code = HttpURLConnection.HTTP_INTERNAL_ERROR,
+                                message = "File upload failed!")})
+        public Response postFile(@FormDataParam(UPLOAD_FILE) FormDataContentDisposition fileContentHeader,
+                                 @FormDataParam(UPLOAD_FILE) FormDataBodyPart bodyPart,
+                                 @FormDataParam(UPLOAD_FILE) InputStream fileContent,
+                                 @HeaderParam(HttpHeaders.CONTENT_LENGTH) @DefaultValue("-1") long contentLength,
+                                 @FormDataParam(UPLOAD_SHARE_WITH_GROUP) String shareWithGroup,
+                                 @FormDataParam(UPLOAD_DESCRIPTION) String description,
+                                 @FormDataParam(UPLOAD_EXCLUDE_FROM_INDEX) String excludeFromIndex) {
+            FileService service = (FileService) Context.getCurrent().getService();
+            UUID uuid = UUID.randomUUID();
+            return service.uploadFile(uuid.toString(), fileContentHeader, bodyPart, fileContent, contentLength, shareWithGroup, description, excludeFromIndex, false);
+        }
+
+        /**
+         * This method uploads a file to the las2peer network.
+         *
+         * @param identifier        Value of the {@value i5.las2peer.services.fileService.FileService#UPLOAD_IDENTIFIER}-tagged
+         *                          form/request element.
+         * @param fileContentHeader The header of the submitted file used to determine the filename.
+         * @param bodyPart          The body part of the submitted file used to determine the mime type.
+         * @param fileContent       The actual submitted file content.
+         * @param contentLength     The length of the request body, -1 if unknown.
+         * @param shareWithGroup    The given value is interpreted as agent id and the agent gets exclusively read
+         *                          permission.
+         * @param description       A descriptive text used to describe the file.
+         * @param excludeFromIndex  If set to "true" or "on" as most browsers do the file is NOT listed in the global
+         *                          file index.
+         * @return Returns an HTTP status code and message with the result of the upload request.
+         */
+        @PUT
+        @Produces(MediaType.TEXT_PLAIN)
+        @ApiResponses(
+                value = {@ApiResponse(
+                        code = HttpURLConnection.HTTP_CREATED,
+                        message = "File successfully created"),
+                        @ApiResponse(
+                                code = HttpURLConnection.HTTP_BAD_REQUEST,
+                                message = "File upload failed!"),
+                        @ApiResponse(
+                                code = HttpURLConnection.HTTP_INTERNAL_ERROR,
+                                message = "File upload failed!")})
+        public Response putFile(@FormDataParam(UPLOAD_IDENTIFIER) String identifier,
+                                @FormDataParam(UPLOAD_FILE) FormDataContentDisposition fileContentHeader,
+                                @FormDataParam(UPLOAD_FILE) FormDataBodyPart bodyPart,
+                                @FormDataParam(UPLOAD_FILE) InputStream fileContent,
+                                @HeaderParam(HttpHeaders.CONTENT_LENGTH) @DefaultValue("-1") long contentLength,
+                                @FormDataParam(UPLOAD_SHARE_WITH_GROUP) String shareWithGroup,
+                                @FormDataParam(UPLOAD_DESCRIPTION) String description,
+                                @FormDataParam(UPLOAD_EXCLUDE_FROM_INDEX) String excludeFromIndex) {
+            FileService service = (FileService) Context.getCurrent().getService();
+            // a file identifier is a enforced for put operation
+            return service.uploadFile(identifier, fileContentHeader, bodyPart, fileContent, contentLength, shareWithGroup,
+                    description, excludeFromIndex, false);
+        }
+
+    }
+
+    @Api(
+            tags = {"download"})
+    @SwaggerDefinition(
+            info = @Info(
+                    title = "las2peer File Service",
+                    version = API_VERSION,
+                    description = "A las2peer file service for demonstration purposes.",
+                    contact = @Contact(
+                            name = "ACIS Group",
+                            url = "https://las2peer.org/",
+                            email = "cuje@dbis.rwth-aachen.de"),
+                    license = @License(
+                            name = "ACIS License (BSD3)",
+                            url = "https://github.com/rwth-acis/las2peer-FileService/blob/master/LICENSE")))
+    @Path(RESOURCE_DOWNLOAD_BASENAME)
+    public static class ResourceDownload {
+
+        /**
+         * This web API method downloads a file from the las2peer network. The file content is returned as binary
+         * content.
+         *
+         * @param paths A list path segments or at least a single identifier to identify the file.
+         * @return Returns the file content or an error response if an error occurred.
+         */
+        @GET
+        @Path(RESOURCE_DOWNLOAD_BASENAME + "/{paths: .+}")
+        public Response downloadFile(@PathParam("paths") List<PathSegment> paths) {
+            if (paths.size() < 1) {
+                throw new BadRequestException("No file identifier given");
+            }
+            FileService service = (FileService) Context.getCurrent().getService();
+            String identifier = String.join("/", service.getCleanPaths(paths));
+            return service.downloadFile(identifier);
+        }
+
+    }
+
+    @Api(
+            tags = {"index"})
+    @SwaggerDefinition(
+            info = @Info(
+                    title = "las2peer File Service",
+                    version = API_VERSION,
+                    description = "A las2peer file service for demonstration purposes.",
+                    contact = @Contact(
+                            name = "ACIS Group",
+                            url = "https://las2peer.org/",
+                            email = "cuje@dbis.rwth-aachen.de"),
+                    license = @License(
+                            name = "ACIS License (BSD3)",
+                            url = "https://github.com/rwth-acis/las2peer-FileService/blob/master/LICENSE")))
+    @Path("")
+    public static class ResourceIndex {
+
+        @GET
+        @Path(RESOURCE_INDEX_JSON)
+        @Produces(MediaType.APPLICATION_JSON)
+        public Response getFileIndexJson() {
+            FileService service = (FileService) Context.getCurrent().getService();
+            RequestTrace.begin("getFileIndexJson", null);
+            try {
+                CompactIndex fileIndex = service.getFileIndexReal();
+                // transform index list into JSON
+                try (RequestTrace.Span span = RequestTrace.span("render")) {
+                    JSONArray indexJson = new JSONArray();
+                    for (StoredFileIndex index : fileIndex) {
+                        indexJson.add(index.toJsonObject());
+                    }
+                    return Response.ok(indexJson.toJSONString(), MediaType.APPLICATION_JSON).build();
+                }
+            } catch (EnvelopeUnavailableException e) {
+                return unavailable(e);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Could not read file index!", e);
+                return Response.status(Status.INTERNAL_SERVER_ERROR)
+                        .entity("Could not read file index! See log for details.").build();
+            }
+        }
+
+        /**
+         * This web API method lists the files of a single owner. Large listings are paged, the offset of the next page
+         * is returned in the Next-Offset header.
+         *
+         * @param ownerId The agent id of the owner, e.g. a group, by default the requesting agent.
+         * @param offset  The position of the first listed file.
+         * @param limit   The optional maximum number of listed files.
+         * @return Returns the index entries of the owner as JSON array.
+         */
+        @GET
+        @Path(RESOURCE_OWNER_INDEX_JSON)
+        @Produces(MediaType.APPLICATION_JSON)
+        public Response getOwnerFileIndexJson(@QueryParam("owner") String ownerId, @QueryParam("offset") int offset,
+                                              @QueryParam("limit") int limit) {
+            FileService service = (FileService) Context.getCurrent().getService();
+            RequestTrace.begin("getOwnerFileIndexJson", ownerId);
+            if (ownerId == null || ownerId.isEmpty()) {
+                ownerId = Context.get().getMainAgent().getIdentifier();
+            }
+            try {
+                StoredFileIndexList fileIndex = service.getOwnerIndexReal(Context.get(), ownerId);
+                List<StoredFileIndex> page = page(fileIndex, offset, limit);
+                JSONArray indexJson = new JSONArray();
+                for (StoredFileIndex index : page) {
+                    indexJson.add(index.toJsonObject());
+                }
+                ResponseBuilder response = Response.ok(indexJson.toJSONString(), MediaType.APPLICATION_JSON);
+                if (offset + page.size() < fileIndex.size()) {
+                    response.header(HEADER_NEXT_OFFSET, offset + page.size());
+                }
+                return response.build();
+            } catch (IllegalArgumentException e) {
+                return Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build();
+            } catch (EnvelopeUnavailableException e) {
+                return unavailable(e);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Could not read file index of owner (" + ownerId + ")!", e);
+                return Response.status(Status.INTERNAL_SERVER_ERROR)
+                        .entity("Could not read file index! See log for details.").build();
+            }
+        }
+
+        @GET
+        @Path(RESOURCE_INDEX_HTML)
+        @Produces(MediaType.TEXT_HTML)
+        public Response getFileIndexHtml() {
+            FileService service = (FileService) Context.getCurrent().getService();
+            RequestTrace.begin("getFileIndexHtml", null);
+            try {
+                CompactIndex fileIndex = service.getFileIndexReal();
+                // transform index list into HTML
+                RequestTrace.Span renderSpan = RequestTrace.span("render");
+                StringBuilder sb = new StringBuilder();
+                sb.append("<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 3.2 Final//EN\">\n");
+                sb.append("<html>\n");
+                sb.append("\t<head>\n");
+                sb.append("\t\t<meta charset=\"utf-8\">");
+                sb.append("\t\t<title>").append(service.getAgent().getServiceNameVersion().toString())
+                        .append("</title>\n");
+                sb.append("</head>\n");
+                sb.append("<body>\n");
+                sb.append("<h1>Index of " + service.getAgent().getServiceNameVersion().toString() + "</h1>\n");
+                sb.append("<table>\n");
+                sb.append("<tr>").append("<th>Identifier</th><th></th><th>Name</th>").append("<th>Last modified</th>")
+                        .append("<th>Size</th>").append("<th>Description</th>").append("<th></th>").append("</tr>");
+                sb.append("<tr><th colspan=\"7\"><hr></th></tr>\n");
+                for (StoredFileIndex index : fileIndex) {
+                    sb.append("<tr>");
+                    String basename = cleanSlashes(RESOURCE_FILES_BASENAME).substring(1);
+                    String identifier = cleanSlashes(index.getIdentifier());
+                    sb.append("<td><a href=\"" + basename + identifier + "\">" + identifier + "</a></td>");
+                    String download = cleanSlashes(RESOURCE_DOWNLOAD_BASENAME).substring(1);
+                    sb.append("<td><a href=\"" + download + identifier + "\">[&#8595;]</a></td>");
+                    String strName = index.getName();
+                    if (strName == null) {
+                        strName = "";
+                    }
+                    sb.append("<td>" + strName + "</td>");
+                    sb.append("<td>" + HTML_DATE_FMT.format(new Date(index.getLastModified())) + "</td>");
+                    sb.append("<td align=\"right\">" + humanReadableByteCount(index.getFileSize(), true) + "</td>");
+                    String description = index.getDescription();
+                    if (description == null) {
+                        description = "";
+                    }
+                    // escape HTML special characters in file description
+                    sb.append("<td>" + StringEscapeUtils.escapeHtml4(description) + "</td>");
+                    sb.append("</tr>\n");
+                }
+                sb.append("</table>\n").append("</body>\n");
+                sb.append("</html>\n");
+                renderSpan.close();
+                return Response.ok(sb.toString(), MediaType.TEXT_HTML).build();
+            } catch (EnvelopeUnavailableException e) {
+                return unavailable(e);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Could not read file index!", e);
+                return Response.status(Status.INTERNAL_SERVER_ERROR)
+                        .entity("Could not read file index! See log for details.").build();
+            }
+        }
+
+    }
+
+    @Api(
+            tags = {"uploads"})
+    @SwaggerDefinition(
+            info = @Info(
+                    title = "las2peer File Service",
+                    version = API_VERSION,
+                    description = "A las2peer file service for demonstration purposes.",
+                    contact = @Contact(
+                            name = "ACIS Group",
+                            url = "https://las2peer.org/",
+                            email = "cuje@dbis.rwth-aachen.de"),
+                    license = @License(
+                            name = "ACIS License (BSD3)",
+                            url = "https://github.com/rwth-acis/las2peer-FileService/blob/master/LICENSE")))
+    @Path(RESOURCE_UPLOADS_BASENAME)
+    public static class ResourceUploads {
+
+        /**
+         * This method creates a chunked upload session. The content is then uploaded in chunks and finally stored
+         * with a commit request. Sessions are kept in the memory of this node only.
+         *
+         * @param identifier       A required unique name or hash value to identify this file.
+         * @param size             The total size of the file in bytes.
+         * @param filename         An optional human readable filename.
+         * @param mimeType         The optional mime type for this file. Inferred from the filename if not set.
+         * @param shareWithGroup   The given value is interpreted as agent id and the agent gets exclusively read
+         *                         permission.
+         * @param description      A descriptive text used to describe the file.
+         * @param excludeFromIndex If set to "true" or "on" the file is NOT listed in the global file index.
+         * @return Returns the new session as JSON object.
+         */
+        @POST
+        @Produces(MediaType.APPLICATION_JSON)
+        @ApiResponses(
+                value = {@ApiResponse(
+                        code = HttpURLConnection.HTTP_CREATED,
+                        message = "Upload session created. Returns the session as JSON."),
+                        @ApiResponse(
+                                code = HttpURLConnection.HTTP_BAD_REQUEST,
+                                message = "Invalid identifier or size"),
+                        @ApiResponse(
+                                code = HttpURLConnection.HTTP_UNAVAILABLE,
+                                message = "Too many open upload sessions")})
+        public Response createSession(@QueryParam(UPLOAD_IDENTIFIER) String identifier,
+                                      @QueryParam("size") long size,
+                                      @QueryParam("name") String filename,
+                                      @QueryParam("mimetype") String mimeType,
+                                      @QueryParam(UPLOAD_SHARE_WITH_GROUP) String shareWithGroup,
+                                      @QueryParam(UPLOAD_DESCRIPTION) String description,
+                                      @QueryParam(UPLOAD_EXCLUDE_FROM_INDEX) String excludeFromIndex) {
+            FileService service = (FileService) Context.getCurrent().getService();
+            return service.createUploadSession(identifier, size, filename, mimeType, shareWithGroup, description,
+                    excludeFromIndex);
+        }
+
+        /**
+         * This method uploads a chunk of the file. Chunks can be uploaded in any order, in parallel and repeatedly
+         * until the session is committed.
+         *
+         * @param sessionId The upload session id.
+         * @param offset    The offset of the first chunk byte in the file.
+         * @param chunk     The raw chunk content.
+         * @return Returns the session including all received byte ranges as JSON object.
+         */
+        @PUT
+        @Path("/{session}")
+        @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+        @Produces(MediaType.APPLICATION_JSON)
+        public Response uploadChunk(@PathParam("session") String sessionId, @QueryParam("offset") long offset,
+                                    InputStream chunk) {
+            FileService service = (FileService) Context.getCurrent().getService();
+            return service.uploadChunk(sessionId, offset, chunk);
+        }
+
+        /**
+         * This method returns the state of an upload session.
+         *
+         * @param sessionId The upload session id.
+         * @return Returns the session including all received byte ranges as JSON object.
+         */
+        @GET
+        @Path("/{session}")
+        @Produces(MediaType.APPLICATION_JSON)
+        public Response getSession(@PathParam("session") String sessionId) {
+            FileService service = (FileService) Context.getCurrent().getService();
+            return service.getUploadSession(sessionId);
+        }
+
+        /**
+         * This method stores the completely uploaded file in the las2peer network and closes the session.
+         *
+         * @param sessionId The upload session id.
+         * @return Returns an HTTP status code and the file identifier or the session state if chunks are missing.
+         */
+        @POST
+        @Path("/{session}/commit")
+        @Produces(MediaType.TEXT_PLAIN)
+        @ApiResponses(
+                value = {@ApiResponse(
+                        code = HttpURLConnection.HTTP_CREATED,
+                        message = "File successfully created. Returns identifier.",
+                        response = String.class),
+                        @ApiResponse(
+                                code = HttpURLConnection.HTTP_CONFLICT,
+                                message = "Upload incomplete, already committed or still receiving a chunk")})
+        public Response commitSession(@PathParam("session") String sessionId) {
+            FileService service = (FileService) Context.getCurrent().getService();
+            return service.commitUploadSession(sessionId);
+        }
+
+        /**
+         * This method aborts an upload session and discards all uploaded chunks.
+         *
+         * @param sessionId The upload session id.
+         * @return Returns an HTTP status code with the result of the request.
+         */
+        @DELETE
+        @Path("/{session}")
+        public Response abortSession(@PathParam("session") String sessionId) {
+            FileService service = (FileService) Context.getCurrent().getService();
+            return service.abortUploadSession(sessionId);
+        }
+
+    }
+
+    @Api(
+            tags = {"delta"})
+    @SwaggerDefinition(
+            info = @Info(
+                    title = "las2peer File Service",
+                    version = API_VERSION,
                     description = "A las2peer file service for demonstration purposes.",
                     contact = @Contact(
                             name = "ACIS Group",
@@ -513,122 +3618,181 @@ public class FileService extends RESTService {
                     license = @License(
                             name = "ACIS License (BSD3)",
                             url = "https://github.com/rwth-acis/las2peer-FileService/blob/master/LICENSE")))
-    @Path(RESOURCE_FILES_BASENAME)
-    public static class ResourceFiles {
-
-        /**
-         * This operation is not yet supported by las2peer.
-         *
-         * @param identifier A required unique name or hash value to identify this file.
-         * @return Returns an HTTP status code and message with the result of the upload request.
-         */
-        @DELETE
-        @Path("/{identifier}")
-        @Produces(MediaType.TEXT_PLAIN)
-        public Response deleteFile(@PathParam("identifier") String identifier) {
-            return Response.status(Status.NOT_IMPLEMENTED).build();
-        }
+    @Path(RESOURCE_DELTA_BASENAME)
+    public static class ResourceDelta {
 
         /**
-         * This web API method downloads a file from the las2peer network. The file content is returned as binary
-         * content.
+         * This web API method returns the block signatures of a stored file. A client compares its new content
+         * against them and uploads only the changed blocks.
          *
-         * @param paths A list path segments or at least a single identifier to identify the file.
-         * @return Returns the file content as inline element for website integration or an error response if an error
-         * occurred.
+         * @param paths     A list path segments or at least a single identifier to identify the file.
+         * @param blockSize An optional block size in bytes.
+         * @return Returns the signatures as JSON object with the fields blockSize, version, size and blocks.
          */
         @GET
         @Path("/{paths: .+}")
-        public Response getFile(@PathParam("paths") List<PathSegment> paths) {
-            if (paths.size() < 1) {
-                throw new BadRequestException("No file identifier given");
-            }
+        @Produces(MediaType.APPLICATION_JSON)
+        public Response getSignatures(@PathParam("paths") List<PathSegment> paths,
+                                      @QueryParam("blocksize") int blockSize) {
             FileService service = (FileService) Context.getCurrent().getService();
-            return service.getFile(service.getCleanPaths(paths));
+            String identifier = String.join("/", service.getCleanPaths(paths));
+            try {
+                Map<String, Object> signatures = service.getBlockSignatures(identifier, blockSize);
+                return Response.ok(JSONObject.toJSONString(signatures), MediaType.APPLICATION_JSON).build();
+            } catch (EnvelopeNotFoundException e) {
+                return Response.status(Status.NOT_FOUND).build();
+            } catch (EnvelopeUnavailableException e) {
+                return unavailable(e);
+            } catch (EnvelopeAccessDeniedException e) {
+                logger.log(Level.INFO, e.toString(), e);
+                return Response.status(Status.FORBIDDEN).entity(e.toString()).build();
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Can't compute signatures of file (" + identifier + ")!", e);
+                return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+            }
         }
 
         /**
-         * This method uploads a file to the las2peer network.
-         * form/request element.
+         * This web API method updates a stored file with a delta. The body is a JSON object with the fields
+         * baseVersion and blockSize as returned with the signatures, the delta instructions in ops and optionally the
+         * hex encoded SHA-256 hash of the new content in sha256.
          *
-         * @param fileContentHeader The header of the submitted file used to determine the filename.
-         * @param bodyPart          The body part of the submitted file used to determine the mime type.
-         * @param fileContent       The actual submitted file content.
-         * @param shareWithGroup    The given value is interpreted as agent id and the agent gets exclusively read
-         *                          permission.
-         * @param description       A descriptive text used to describe the file.
-         * @param excludeFromIndex  If set to "true" or "on" as most browsers do the file is NOT listed in the global
-         *                          file index.
-         * @return Returns an HTTP status code and message with the result of the upload request.
+         * @param paths A list path segments or at least a single identifier to identify the file.
+         * @param body  The delta as JSON object.
+         * @return Returns an HTTP status code and the file identifier.
          */
         @POST
+        @Path("/{paths: .+}")
+        @Consumes(MediaType.APPLICATION_JSON)
         @Produces(MediaType.TEXT_PLAIN)
         @ApiResponses(
                 value = {@ApiResponse(
-                        code = HttpURLConnection.HTTP_CREATED,
-                        message = "File successfully created. Returns identifier.",
-                        response = String.class),
+                        code = HttpURLConnection.HTTP_OK,
+                        message = "File successfully updated. Returns identifier."),
                         @ApiResponse(
                                 code = HttpURLConnection.HTTP_BAD_REQUEST,
-                                message = "File upload failed!"),
+                                message = "Invalid delta"),
                         @ApiResponse(
-                                code = HttpURLConnection.HTTP_INTERNAL_ERROR,
-                                message = "File upload failed!")})
-        public Response postFile(@FormDataParam(UPLOAD_FILE) FormDataContentDisposition fileContentHeader,
-                                 @FormDataParam(UPLOAD_FILE) FormDataBodyPart bodyPart,
-                                 @FormDataParam(UPLOAD_FILE) InputStream fileContent,
-                                 @FormDataParam(UPLOAD_SHARE_WITH_GROUP) String shareWithGroup,
-                                 @FormDataParam(UPLOAD_DESCRIPTION) String description,
-                                 @FormDataParam(UPLOAD_EXCLUDE_FROM_INDEX) String excludeFromIndex) {
+                                code = HttpURLConnection.HTTP_CONFLICT,
+                                message = "File was changed since the signatures were fetched")})
+        public Response postDelta(@PathParam("paths") List<PathSegment> paths, String body) {
             FileService service = (FileService) Context.getCurrent().getService();
-            UUID uuid = UUID.randomUUID();
-            return service.uploadFile(uuid.toString(), fileContentHeader, bodyPart, fileContent, shareWithGroup, description, excludeFromIndex, false);
+            String identifier = String.join("/", service.getCleanPaths(paths));
+            return service.applyDelta(identifier, body);
+        }
+
+    }
+
+    @Api(
+            tags = {"blob"})
+    @SwaggerDefinition(
+            info = @Info(
+                    title = "las2peer File Service",
+                    version = API_VERSION,
+                    description = "A las2peer file service for demonstration purposes.",
+                    contact = @Contact(
+                            name = "ACIS Group",
+                            url = "https://las2peer.org/",
+                            email = "cuje@dbis.rwth-aachen.de"),
+                    license = @License(
+                            name = "ACIS License (BSD3)",
+                            url = "https://github.com/rwth-acis/las2peer-FileService/blob/master/LICENSE")))
+    @Path(RESOURCE_BLOB_BASENAME)
+    public static class ResourceBlob {
+
+        /**
+         * This web API method returns a file by the SHA-256 hash of its content. The response never changes and is
+         * marked as immutable, so browsers, proxies and CDNs can cache it for a year.
+         *
+         * @param sha256      The hex encoded SHA-256 hash of the file content, as listed in the file index.
+         * @param ifNoneMatch The ETag of a cached copy, answered with 304 without any lookup.
+         * @return Returns the file content.
+         */
+        @GET
+        @Path("/{sha256}")
+        public Response getBlob(@PathParam("sha256") String sha256,
+                                @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
+            FileService service = (FileService) Context.getCurrent().getService();
+            return service.getBlob(sha256, ifNoneMatch);
         }
 
+    }
+
+    @Api(
+            tags = {"sites"})
+    @SwaggerDefinition(
+            info = @Info(
+                    title = "las2peer File Service",
+                    version = API_VERSION,
+                    description = "A las2peer file service for demonstration purposes.",
+                    contact = @Contact(
+                            name = "ACIS Group",
+                            url = "https://las2peer.org/",
+                            email = "cuje@dbis.rwth-aachen.de"),
+                    license = @License(
+                            name = "ACIS License (BSD3)",
+                            url = "https://github.com/rwth-acis/las2peer-FileService/blob/master/LICENSE")))
+    @Path(RESOURCE_SITES_BASENAME)
+    public static class ResourceSites {
+
         /**
-         * This method uploads a file to the las2peer network.
+         * This web API method publishes all files below the site name as static site. The optional JSON body may
+         * contain fallback rules in fallbacks, e.g. {@code {"fallbacks": {"": "index.html"}}}, and identifiers of
+         * files excluded from the index in files.
          *
-         * @param identifier        Value of the {@value i5.las2peer.services.fileService.FileService#UPLOAD_IDENTIFIER}-tagged
-         *                          form/request element.
-         * @param fileContentHeader The header of the submitted file used to determine the filename.
-         * @param bodyPart          The body part of the submitted file used to determine the mime type.
-         * @param fileContent       The actual submitted file content.
-         * @param shareWithGroup    The given value is interpreted as agent id and the agent gets exclusively read
-         *                          permission.
-         * @param description       A descriptive text used to describe the file.
-         * @param excludeFromIndex  If set to "true" or "on" as most browsers do the file is NOT listed in the global
-         *                          file index.
-         * @return Returns an HTTP status code and message with the result of the upload request.
+         * @param siteName The name of the site.
+         * @param body     The optional publish options as JSON object.
+         * @return Returns the site manifest as JSON object.
          */
         @PUT
-        @Produces(MediaType.TEXT_PLAIN)
+        @Path("/{site}")
+        @Produces(MediaType.APPLICATION_JSON)
         @ApiResponses(
                 value = {@ApiResponse(
-                        code = HttpURLConnection.HTTP_CREATED,
-                        message = "File successfully created"),
+                        code = HttpURLConnection.HTTP_OK,
+                        message = "Site published. Returns the manifest."),
                         @ApiResponse(
                                 code = HttpURLConnection.HTTP_BAD_REQUEST,
-                                message = "File upload failed!"),
+                                message = "Invalid site name, no files or invalid fallback rule"),
                         @ApiResponse(
-                                code = HttpURLConnection.HTTP_INTERNAL_ERROR,
-                                message = "File upload failed!")})
-        public Response putFile(@FormDataParam(UPLOAD_IDENTIFIER) String identifier,
-                                @FormDataParam(UPLOAD_FILE) FormDataContentDisposition fileContentHeader,
-                                @FormDataParam(UPLOAD_FILE) FormDataBodyPart bodyPart,
-                                @FormDataParam(UPLOAD_FILE) InputStream fileContent,
-                                @FormDataParam(UPLOAD_SHARE_WITH_GROUP) String shareWithGroup,
-                                @FormDataParam(UPLOAD_DESCRIPTION) String description,
-                                @FormDataParam(UPLOAD_EXCLUDE_FROM_INDEX) String excludeFromIndex) {
+                                code = HttpURLConnection.HTTP_FORBIDDEN,
+                                message = "Site was published by another agent")})
+        public Response putSite(@PathParam("site") String siteName, String body) {
             FileService service = (FileService) Context.getCurrent().getService();
-            // a file identifier is a enforced for put operation
-            return service.uploadFile(identifier, fileContentHeader, bodyPart, fileContent, shareWithGroup, description,
-                    excludeFromIndex, false);
+            return service.publishSite(siteName, body);
+        }
+
+        /**
+         * This web API method returns the manifest of a site.
+         *
+         * @param siteName The name of the site.
+         * @return Returns the site manifest as JSON object.
+         */
+        @GET
+        @Path("/{site}")
+        @Produces(MediaType.APPLICATION_JSON)
+        public Response getSite(@PathParam("site") String siteName) {
+            FileService service = (FileService) Context.getCurrent().getService();
+            try {
+                Map<String, Object> manifest = service.getSite(siteName);
+                return Response.ok(JSONObject.toJSONString(manifest), MediaType.APPLICATION_JSON).build();
+            } catch (EnvelopeNotFoundException e) {
+                return Response.status(Status.NOT_FOUND).build();
+            } catch (EnvelopeUnavailableException e) {
+                return unavailable(e);
+            } catch (EnvelopeAccessDeniedException e) {
+                logger.log(Level.INFO, e.toString(), e);
+                return Response.status(Status.FORBIDDEN).entity(e.toString()).build();
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Can't read site " + siteName + "!", e);
+                return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+            }
         }
 
     }
 
     @Api(
-            tags = {"download"})
+            tags = {"bulk"})
     @SwaggerDefinition(
             info = @Info(
                     title = "las2peer File Service",
@@ -641,31 +3805,52 @@ public class FileService extends RESTService {
                     license = @License(
                             name = "ACIS License (BSD3)",
                             url = "https://github.com/rwth-acis/las2peer-FileService/blob/master/LICENSE")))
-    @Path(RESOURCE_DOWNLOAD_BASENAME)
-    public static class ResourceDownload {
+    @Path(RESOURCE_BULK_BASENAME)
+    public static class ResourceBulk {
 
         /**
-         * This web API method downloads a file from the las2peer network. The file content is returned as binary
-         * content.
+         * This web API method exports stored files with their metadata as ZIP archive. Large stores are exported in
+         * pages, the offset of the next page is returned in the Next-Offset header.
          *
-         * @param paths A list path segments or at least a single identifier to identify the file.
-         * @return Returns the file content or an error response if an error occurred.
+         * @param offset The position in the file index of the first exported file.
+         * @param limit  The optional maximum number of files.
+         * @return Returns the archive.
          */
         @GET
-        @Path(RESOURCE_DOWNLOAD_BASENAME + "/{paths: .+}")
-        public Response downloadFile(@PathParam("paths") List<PathSegment> paths) {
-            if (paths.size() < 1) {
-                throw new BadRequestException("No file identifier given");
-            }
+        @Path("/export")
+        @Produces("application/zip")
+        public Response exportFiles(@QueryParam("offset") int offset, @QueryParam("limit") int limit) {
             FileService service = (FileService) Context.getCurrent().getService();
-            String identifier = String.join("/", service.getCleanPaths(paths));
-            return service.downloadFile(identifier);
+            return service.exportFiles(offset, limit);
+        }
+
+        /**
+         * This web API method imports an archive created by the export. All listed files are added to the file index
+         * in a single update at the end.
+         *
+         * @param archive The ZIP archive.
+         * @return Returns the number of stored files and the errors of failed files as JSON object.
+         */
+        @POST
+        @Path("/import")
+        @Consumes({"application/zip", MediaType.APPLICATION_OCTET_STREAM})
+        @Produces(MediaType.APPLICATION_JSON)
+        @ApiResponses(
+                value = {@ApiResponse(
+                        code = HttpURLConnection.HTTP_OK,
+                        message = "Archive imported. Returns the number of stored files and failures."),
+                        @ApiResponse(
+                                code = HttpURLConnection.HTTP_BAD_REQUEST,
+                                message = "Malformed archive")})
+        public Response importFiles(InputStream archive) {
+            FileService service = (FileService) Context.getCurrent().getService();
+            return service.importFiles(archive);
         }
 
     }
 
     @Api(
-            tags = {"index"})
+            tags = {"changes"})
     @SwaggerDefinition(
             info = @Info(
                     title = "las2peer File Service",
@@ -678,79 +3863,75 @@ public class FileService extends RESTService {
                     license = @License(
                             name = "ACIS License (BSD3)",
                             url = "https://github.com/rwth-acis/las2peer-FileService/blob/master/LICENSE")))
-    @Path("")
-    public static class ResourceIndex {
+    @Path(RESOURCE_CHANGES_BASENAME)
+    public static class ResourceChanges {
 
+        /**
+         * This web API method is a long poll on the changes of the file index. It answers as soon as there are changes
+         * after the given sequence number, or with an empty list of changes after the wait time. Clients pass the
+         * returned sequence number to the next request. If reset is true, changes were dropped and the client has to
+         * read the whole index.
+         *
+         * @param since       The last sequence number seen by the client. Without it, only the latest sequence number
+         *                    is returned.
+         * @param waitSeconds The maximum time to wait for changes in seconds.
+         * @return Returns the latest sequence number, the reset flag and the changes as JSON object.
+         */
         @GET
-        @Path(RESOURCE_INDEX_JSON)
         @Produces(MediaType.APPLICATION_JSON)
-        public Response getFileIndexJson() {
+        @ApiResponses(
+                value = {@ApiResponse(
+                        code = HttpURLConnection.HTTP_OK,
+                        message = "Changes after the given sequence number, possibly none"),
+                        @ApiResponse(
+                                code = HttpURLConnection.HTTP_UNAVAILABLE,
+                                message = "Too many waiting requests, retry later")})
+        public Response getChanges(@QueryParam("since") @DefaultValue("-1") long since,
+                                   @QueryParam("wait") @DefaultValue("30") long waitSeconds) {
             FileService service = (FileService) Context.getCurrent().getService();
-            try {
-                // transform index list into JSON
-                JSONArray indexJson = new JSONArray();
-                for (StoredFileIndex index : service.getFileIndexReal()) {
-                    indexJson.add(index.toJsonObject());
-                }
-                return Response.ok(indexJson.toJSONString(), MediaType.APPLICATION_JSON).build();
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "Could not read file index!", e);
-                return Response.status(Status.INTERNAL_SERVER_ERROR)
-                        .entity("Could not read file index! See log for details.").build();
-            }
+            return service.awaitChanges(since, waitSeconds);
         }
 
+    }
+
+    @Api(
+            tags = {"versions"})
+    @SwaggerDefinition(
+            info = @Info(
+                    title = "las2peer File Service",
+                    version = API_VERSION,
+                    description = "A las2peer file service for demonstration purposes.",
+                    contact = @Contact(
+                            name = "ACIS Group",
+                            url = "https://las2peer.org/",
+                            email = "cuje@dbis.rwth-aachen.de"),
+                    license = @License(
+                            name = "ACIS License (BSD3)",
+                            url = "https://github.com/rwth-acis/las2peer-FileService/blob/master/LICENSE")))
+    @Path(RESOURCE_VERSIONS_BASENAME)
+    public static class ResourceVersions {
+
+        /**
+         * This web API method lists the versions of a file, or returns the content of a version if one is given.
+         *
+         * @param paths   A list path segments or at least a single identifier to identify the file.
+         * @param version The version to fetch, as listed. Without it, the versions are listed.
+         * @return Returns the versions as JSON array, newest first, or the content of the given version.
+         */
         @GET
-        @Path(RESOURCE_INDEX_HTML)
-        @Produces(MediaType.TEXT_HTML)
-        public Response getFileIndexHtml() {
+        @Path("/{paths: .+}")
+        @ApiResponses(
+                value = {@ApiResponse(
+                        code = HttpURLConnection.HTTP_OK,
+                        message = "Versions as JSON array or the content of the requested version"),
+                        @ApiResponse(
+                                code = HttpURLConnection.HTTP_NOT_FOUND,
+                                message = "File or version not found")})
+        public Response getVersions(@PathParam("paths") List<PathSegment> paths,
+                                    @QueryParam("version") Long version) {
             FileService service = (FileService) Context.getCurrent().getService();
-            try {
-                // transform index list into HTML
-                StringBuilder sb = new StringBuilder();
-                sb.append("<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 3.2 Final//EN\">\n");
-                sb.append("<html>\n");
-                sb.append("\t<head>\n");
-                sb.append("\t\t<meta charset=\"utf-8\">");
-                sb.append("\t\t<title>").append(service.getAgent().getServiceNameVersion().toString())
-                        .append("</title>\n");
-                sb.append("</head>\n");
-                sb.append("<body>\n");
-                sb.append("<h1>Index of " + service.getAgent().getServiceNameVersion().toString() + "</h1>\n");
-                sb.append("<table>\n");
-                sb.append("<tr>").append("<th>Identifier</th><th></th><th>Name</th>").append("<th>Last modified</th>")
-                        .append("<th>Size</th>").append("<th>Description</th>").append("<th></th>").append("</tr>");
-                sb.append("<tr><th colspan=\"7\"><hr></th></tr>\n");
-                for (StoredFileIndex index : service.getFileIndexReal()) {
-                    sb.append("<tr>");
-                    String basename = cleanSlashes(RESOURCE_FILES_BASENAME).substring(1);
-                    String identifier = cleanSlashes(index.getIdentifier());
-                    sb.append("<td><a href=\"" + basename + identifier + "\">" + identifier + "</a></td>");
-                    String download = cleanSlashes(RESOURCE_DOWNLOAD_BASENAME).substring(1);
-                    sb.append("<td><a href=\"" + download + identifier + "\">[&#8595;]</a></td>");
-                    String strName = index.getName();
-                    if (strName == null) {
-                        strName = "";
-                    }
-                    sb.append("<td>" + strName + "</td>");
-                    sb.append("<td>" + HTML_DATE_FMT.format(new Date(index.getLastModified())) + "</td>");
-                    sb.append("<td align=\"right\">" + humanReadableByteCount(index.getFileSize(), true) + "</td>");
-                    String description = index.getDescription();
-                    if (description == null) {
-                        description = "";
-                    }
-                    // escape HTML special characters in file description
-                    sb.append("<td>" + StringEscapeUtils.escapeHtml4(description) + "</td>");
-                    sb.append("</tr>\n");
-                }
-                sb.append("</table>\n").append("</body>\n");
-                sb.append("</html>\n");
-                return Response.ok(sb.toString(), MediaType.TEXT_HTML).build();
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "Could not read file index!", e);
-                return Response.status(Status.INTERNAL_SERVER_ERROR)
-                        .entity("Could not read file index! See log for details.").build();
-            }
+            String identifier = String.join("/", service.getCleanPaths(paths));
+            return service.versionsResponse(identifier, version);
         }
 
     }
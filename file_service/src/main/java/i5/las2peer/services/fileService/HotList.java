@@ -0,0 +1,126 @@
+package i5.las2peer.services.fileService;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The files that are currently hot on at least one node, shared by all nodes running the service. Every node pins the
+ * listed files in its blob cache. Each entry names the latest known version of a file and expires unless a node still
+ * sees the file above the access threshold and refreshes it, so cooled down files drop off the list.
+ */
+public class HotList implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * A hot file.
+	 */
+	public static class Entry implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String identifier;
+		private long lastModified;
+		private long expires;
+
+		public Entry(String identifier, long lastModified, long expires) {
+			this.identifier = identifier;
+			this.lastModified = lastModified;
+			this.expires = expires;
+		}
+
+		public String getIdentifier() {
+			return identifier;
+		}
+
+		/**
+		 * @return Returns the last modified timestamp of the latest known version.
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public long getExpires() {
+			return expires;
+		}
+
+	}
+
+	private final HashMap<String, Entry> entries = new HashMap<>();
+
+	/**
+	 * Adds a file or extends the expiry of a listed file. A newer version replaces the listed version, an older one is
+	 * ignored. New files are only added while the list has less than the given number of entries.
+	 *
+	 * @param identifier The file identifier.
+	 * @param lastModified The last modified timestamp of the version known to the caller.
+	 * @param expires The time after which the entry is dropped unless refreshed again.
+	 * @param maxEntries The maximum number of listed files.
+	 * @return Returns true if the list changed.
+	 */
+	public boolean refresh(String identifier, long lastModified, long expires, int maxEntries) {
+		Entry entry = entries.get(identifier);
+		if (entry == null) {
+			if (entries.size() >= maxEntries) {
+				return false;
+			}
+			entries.put(identifier, new Entry(identifier, lastModified, expires));
+			return true;
+		}
+		boolean changed = false;
+		if (lastModified > entry.lastModified) {
+			entry.lastModified = lastModified;
+			changed = true;
+		}
+		if (expires > entry.expires) {
+			entry.expires = expires;
+			changed = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * Records a new version of a listed file, so the other nodes replace their pinned copies.
+	 *
+	 * @param identifier The file identifier.
+	 * @param lastModified The last modified timestamp of the new version.
+	 * @return Returns true if the file is listed and the version is newer than the listed one.
+	 */
+	public boolean update(String identifier, long lastModified) {
+		Entry entry = entries.get(identifier);
+		if (entry == null || lastModified <= entry.lastModified) {
+			return false;
+		}
+		entry.lastModified = lastModified;
+		return true;
+	}
+
+	/**
+	 * @param identifier The file identifier.
+	 * @return Returns true if the file was listed.
+	 */
+	public boolean remove(String identifier) {
+		return entries.remove(identifier) != null;
+	}
+
+	/**
+	 * Drops all entries that were not refreshed in time.
+	 *
+	 * @param now The current time.
+	 * @return Returns true if entries were dropped.
+	 */
+	public boolean expire(long now) {
+		return entries.values().removeIf(entry -> entry.expires <= now);
+	}
+
+	public boolean contains(String identifier) {
+		return entries.containsKey(identifier);
+	}
+
+	public List<Entry> getEntries() {
+		return new ArrayList<>(entries.values());
+	}
+
+}
@@ -0,0 +1,216 @@
+package i5.las2peer.services.fileService;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Renders resized and re-encoded variants of images with {@link ImageIO}. Rendering is CPU and memory intensive, so it
+ * runs on a small bounded pool of worker threads. Requests beyond the pool and its queue are rejected instead of
+ * piling up.
+ */
+class ImageVariants {
+
+	/**
+	 * The parameters of a variant.
+	 */
+	public static class Spec {
+
+		private final int width;
+		private final int height;
+		private final String format;
+
+		/**
+		 * @param width The maximum width, 0 for no limit.
+		 * @param height The maximum height, 0 for no limit.
+		 * @param format The ImageIO format name of the variant.
+		 */
+		public Spec(int width, int height, String format) {
+			this.width = width;
+			this.height = height;
+			this.format = format;
+		}
+
+		public String getMimeType() {
+			return "image/" + format;
+		}
+
+		/**
+		 * @param sourceSha256 The content hash of the source image.
+		 * @return Returns a key unique for the source content and these parameters.
+		 */
+		public String key(String sourceSha256) {
+			return sourceSha256 + "-" + width + "x" + height + "." + format;
+		}
+
+	}
+
+	private final ThreadPoolExecutor executor;
+	private final int maxDimension;
+	private final long maxSourcePixels;
+	private final long timeoutMillis;
+
+	public ImageVariants(int threads, int queueCapacity, int maxDimension, long maxSourcePixels, long timeoutMillis) {
+		AtomicInteger threadCount = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(queueCapacity), runnable -> {
+					Thread thread = new Thread(runnable, "fileservice-variant-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+		this.maxDimension = maxDimension;
+		this.maxSourcePixels = maxSourcePixels;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Validates the requested parameters.
+	 *
+	 * @param width The requested maximum width, 0 for no limit.
+	 * @param height The requested maximum height, 0 for no limit.
+	 * @param format The requested format or {@code null} to keep the format of the source.
+	 * @param sourceMimeType The mime type of the source image.
+	 * @return Returns the variant parameters.
+	 * @throws IllegalArgumentException If a parameter is out of range, the format is not supported or the source is
+	 *             no image.
+	 */
+	public Spec spec(int width, int height, String format, String sourceMimeType) throws IllegalArgumentException {
+		if (sourceMimeType == null || !sourceMimeType.toLowerCase(Locale.ROOT).startsWith("image/")) {
+			throw new IllegalArgumentException("Variants are only available for images");
+		}
+		if (width < 0 || height < 0 || width > maxDimension || height > maxDimension) {
+			throw new IllegalArgumentException("Width and height must be between 0 and " + maxDimension);
+		}
+		String name = format;
+		if (name == null || name.isEmpty()) {
+			name = sourceMimeType.substring("image/".length());
+		}
+		name = name.toLowerCase(Locale.ROOT);
+		if (name.equals("jpg")) {
+			name = "jpeg";
+		}
+		if (!ImageIO.getImageWritersByFormatName(name).hasNext()) {
+			if (format == null || format.isEmpty()) {
+				// source formats without encoder, e.g. svg+xml, can't be rendered anyway
+				throw new IllegalArgumentException("Variants of " + sourceMimeType + " are not supported");
+			}
+			throw new IllegalArgumentException("Unsupported format " + format);
+		}
+		return new Spec(width, height, name);
+	}
+
+	/**
+	 * Renders a variant on the worker pool and waits for the result.
+	 *
+	 * @param source The content of the source image.
+	 * @param spec The variant parameters.
+	 * @return Returns the encoded variant.
+	 * @throws RejectedExecutionException If too many variants are being rendered or rendering timed out.
+	 * @throws IllegalArgumentException If the source can't be decoded or is too large.
+	 * @throws IOException If encoding failed.
+	 */
+	public byte[] render(byte[] source, Spec spec)
+			throws RejectedExecutionException, IllegalArgumentException, IOException {
+		Future<byte[]> future = executor.submit(() -> renderNow(source, spec));
+		try {
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			throw new RejectedExecutionException("Rendering variant timed out after " + timeoutMillis + " ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while rendering variant");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private byte[] renderNow(byte[] source, Spec spec) throws IOException {
+		BufferedImage image = decode(source);
+		int width = image.getWidth();
+		int height = image.getHeight();
+		// fit into the requested box, keep the aspect ratio and never enlarge
+		double scale = 1;
+		if (spec.width > 0) {
+			scale = Math.min(scale, (double) spec.width / width);
+		}
+		if (spec.height > 0) {
+			scale = Math.min(scale, (double) spec.height / height);
+		}
+		int targetWidth = Math.max(1, (int) Math.round(width * scale));
+		int targetHeight = Math.max(1, (int) Math.round(height * scale));
+		// jpeg and bmp have no alpha channel
+		boolean alpha = image.getColorModel().hasAlpha() && !spec.format.equals("jpeg") && !spec.format.equals("bmp");
+		BufferedImage target = new BufferedImage(targetWidth, targetHeight,
+				alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = target.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			if (!alpha) {
+				graphics.setColor(Color.WHITE);
+				graphics.fillRect(0, 0, targetWidth, targetHeight);
+			}
+			graphics.drawImage(image, 0, 0, targetWidth, targetHeight, null);
+		} finally {
+			graphics.dispose();
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (!ImageIO.write(target, spec.format, out)) {
+			throw new IOException("No encoder for format " + spec.format);
+		}
+		return out.toByteArray();
+	}
+
+	private BufferedImage decode(byte[] source) throws IllegalArgumentException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(source))) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				throw new IllegalArgumentException("Unsupported or corrupt image");
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				// check the dimensions before decoding, a small file may expand to a huge bitmap
+				long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+				if (pixels > maxSourcePixels) {
+					throw new IllegalArgumentException("Image too large (" + pixels + " pixels)");
+				}
+				return reader.read(0);
+			} finally {
+				reader.dispose();
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Corrupt image: " + e.getMessage(), e);
+		}
+	}
+
+}
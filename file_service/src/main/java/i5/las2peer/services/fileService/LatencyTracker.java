@@ -0,0 +1,54 @@
+package i5.las2peer.services.fileService;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent operations in a ring buffer and estimates a percentile of them. The estimate
+ * is recomputed every few samples, so reading it is cheap.
+ */
+class LatencyTracker {
+
+	private static final int RECOMPUTE_INTERVAL = 32;
+
+	private final long[] samples;
+	private final int minSamples;
+	private final double quantile;
+	private int next;
+	private int count;
+	private int sinceRecompute;
+	private long estimate = -1;
+
+	/**
+	 * @param capacity The number of recent samples kept.
+	 * @param minSamples The number of samples required for an estimate.
+	 * @param quantile The estimated quantile, e.g. 0.95.
+	 */
+	public LatencyTracker(int capacity, int minSamples, double quantile) {
+		this.samples = new long[capacity];
+		this.minSamples = minSamples;
+		this.quantile = quantile;
+	}
+
+	/**
+	 * @param nanos The latency of an operation in nanoseconds.
+	 */
+	public synchronized void record(long nanos) {
+		samples[next] = nanos;
+		next = (next + 1) % samples.length;
+		count = Math.min(count + 1, samples.length);
+		if (++sinceRecompute >= RECOMPUTE_INTERVAL && count >= minSamples) {
+			long[] sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			estimate = sorted[Math.min(count - 1, (int) Math.ceil(quantile * count) - 1)];
+			sinceRecompute = 0;
+		}
+	}
+
+	/**
+	 * @return Returns the estimated quantile in nanoseconds or -1 if there are not enough samples yet.
+	 */
+	public synchronized long estimate() {
+		return estimate;
+	}
+
+}
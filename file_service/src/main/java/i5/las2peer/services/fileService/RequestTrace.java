@@ -0,0 +1,168 @@
+package i5.las2peer.services.fileService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+/**
+ * A lightweight trace of a single request with the timing of its stages. The trace of the current request is bound
+ * to the request thread, so stages are measured with {@link #span(String)} anywhere in the call path without passing
+ * the trace around. Without an active trace spans cost nothing.
+ *
+ * <pre>
+ * try (RequestTrace.Span span = RequestTrace.span("fetch")) {
+ * 	file = fetchFileReal(identifier);
+ * }
+ * </pre>
+ */
+class RequestTrace {
+
+	private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+	private static final Span NOOP = new Span(null, null, 0);
+
+	/**
+	 * A measured stage of a request. Spans may be nested.
+	 */
+	public static class Span implements AutoCloseable {
+
+		private final RequestTrace trace;
+		private final String stage;
+		private final int depth;
+		private final long start = System.nanoTime();
+		private long duration = -1;
+
+		private Span(RequestTrace trace, String stage, int depth) {
+			this.trace = trace;
+			this.stage = stage;
+			this.depth = depth;
+		}
+
+		@Override
+		public void close() {
+			if (trace != null && duration < 0) {
+				duration = System.nanoTime() - start;
+				trace.depth--;
+			}
+		}
+
+	}
+
+	private final String operation;
+	private final String target;
+	private final long startMillis = System.currentTimeMillis();
+	private final long start = System.nanoTime();
+	private final List<Span> spans = new ArrayList<>();
+	private int depth;
+	private long duration = -1;
+
+	private RequestTrace(String operation, String target) {
+		this.operation = operation;
+		this.target = target;
+	}
+
+	/**
+	 * Starts the trace of a request on the current thread. An unfinished trace of a previous request is discarded.
+	 *
+	 * @param operation The name of the traced operation.
+	 * @param target The file identifier or other target of the operation, may be {@code null}.
+	 * @return Returns the started trace.
+	 */
+	public static RequestTrace begin(String operation, String target) {
+		RequestTrace trace = new RequestTrace(operation, target);
+		CURRENT.set(trace);
+		return trace;
+	}
+
+	/**
+	 * Starts a stage of the current request.
+	 *
+	 * @param stage The name of the stage.
+	 * @return Returns the span to close at the end of the stage.
+	 */
+	public static Span span(String stage) {
+		RequestTrace trace = CURRENT.get();
+		if (trace == null) {
+			return NOOP;
+		}
+		Span span = new Span(trace, stage, trace.depth++);
+		trace.spans.add(span);
+		return span;
+	}
+
+	/**
+	 * Finishes the trace of the current thread.
+	 *
+	 * @return Returns the finished trace or {@code null} if no trace is active.
+	 */
+	public static RequestTrace end() {
+		RequestTrace trace = CURRENT.get();
+		if (trace == null) {
+			return null;
+		}
+		CURRENT.remove();
+		trace.duration = System.nanoTime() - trace.start;
+		return trace;
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public long getDurationMillis() {
+		return duration / 1000000;
+	}
+
+	/**
+	 * @return Returns a one line breakdown, e.g. {@code getFile a.png 812 ms: cache 0 ms, fetch 810 ms (envelope 790
+	 *         ms, deserialize 19 ms)}.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(operation);
+		if (target != null) {
+			sb.append(' ').append(target);
+		}
+		sb.append(' ').append(getDurationMillis()).append(" ms");
+		int level = 0;
+		for (int i = 0; i < spans.size(); i++) {
+			Span span = spans.get(i);
+			if (span.depth > level) {
+				sb.append(" (");
+			} else {
+				for (; level > span.depth; level--) {
+					sb.append(')');
+				}
+				sb.append(i == 0 ? ": " : ", ");
+			}
+			level = span.depth;
+			sb.append(span.stage).append(' ');
+			sb.append(span.duration < 0 ? "unfinished" : span.duration / 1000000 + " ms");
+		}
+		for (; level > 0; level--) {
+			sb.append(')');
+		}
+		return sb.toString();
+	}
+
+	public JSONObject toJsonObject() {
+		JSONObject result = new JSONObject();
+		result.put("operation", operation);
+		result.put("target", target);
+		result.put("start", startMillis);
+		result.put("durationMs", duration / 1e6);
+		JSONArray stages = new JSONArray();
+		for (Span span : spans) {
+			JSONObject stage = new JSONObject();
+			stage.put("stage", span.stage);
+			stage.put("depth", span.depth);
+			stage.put("offsetMs", (span.start - start) / 1e6);
+			stage.put("durationMs", span.duration < 0 ? null : span.duration / 1e6);
+			stages.add(stage);
+		}
+		result.put("stages", stages);
+		return result;
+	}
+
+}
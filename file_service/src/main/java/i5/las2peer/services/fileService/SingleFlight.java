@@ -0,0 +1,71 @@
+package i5.las2peer.services.fileService;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalesces concurrent loads of the same key. The first caller performs the load, all callers arriving while it is in
+ * flight wait for and share its result or exception. Results are not cached, the next call after completion loads
+ * again.
+ *
+ * @param <K> The key type.
+ * @param <V> The result type. Results are shared between callers and must be treated as read-only.
+ */
+class SingleFlight<K, V> {
+
+	/**
+	 * Loads the value for a key.
+	 *
+	 * @param <V> The result type.
+	 */
+	public interface Loader<V> {
+
+		V load() throws Exception;
+
+	}
+
+	private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+	/**
+	 * Loads the value for the given key or joins a load of the same key that is already in flight.
+	 *
+	 * @param key The key to load.
+	 * @param loader The loader used if no load is in flight for this key.
+	 * @return Returns the loaded value.
+	 * @throws Exception The exception thrown by the loader.
+	 */
+	public V execute(K key, Loader<V> loader) throws Exception {
+		CompletableFuture<V> flight = new CompletableFuture<>();
+		CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+		if (existing != null) {
+			try {
+				return existing.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Exception) {
+					throw (Exception) cause;
+				}
+				throw (Error) cause;
+			}
+		}
+		try {
+			V value = loader.load();
+			flight.complete(value);
+			return value;
+		} catch (Exception | Error e) {
+			flight.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, flight);
+		}
+	}
+
+	/**
+	 * @return Returns the number of loads currently in flight.
+	 */
+	public int size() {
+		return inFlight.size();
+	}
+
+}
@@ -0,0 +1,87 @@
+package i5.las2peer.services.fileService;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Node-local cache of site manifests by site name. Names without a deployed site are cached as absent, so requests for
+ * ordinary files do not look up a manifest each time. Entries expire after a time to live, after which changes
+ * published on other nodes become visible.
+ */
+class SiteCache {
+
+	private static class Cached {
+
+		private final SiteManifest manifest;
+		private final long loaded;
+
+		private Cached(SiteManifest manifest, long loaded) {
+			this.manifest = manifest;
+			this.loaded = loaded;
+		}
+
+	}
+
+	private final ConcurrentHashMap<String, Cached> sites = new ConcurrentHashMap<>();
+	private final SingleFlight<String, Optional<SiteManifest>> loads = new SingleFlight<>();
+	private final long ttlMillis;
+	private final int maxEntries;
+
+	public SiteCache(long ttlMillis, int maxEntries) {
+		this.ttlMillis = ttlMillis;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Looks up a site without loading it.
+	 *
+	 * @param site The site name.
+	 * @return Returns the manifest, an empty optional if the site is known to not exist or {@code null} if the site
+	 *         is not cached.
+	 */
+	public Optional<SiteManifest> getCached(String site) {
+		Cached cached = sites.get(site);
+		if (cached == null || System.currentTimeMillis() - cached.loaded > ttlMillis) {
+			return null;
+		}
+		return Optional.ofNullable(cached.manifest);
+	}
+
+	/**
+	 * Looks up a site and loads it if it is not cached. Concurrent loads of the same site are coalesced.
+	 *
+	 * @param site The site name.
+	 * @param loader Loads the manifest, returns {@code null} if the site does not exist.
+	 * @return Returns the manifest or an empty optional if the site does not exist.
+	 * @throws Exception The exception thrown by the loader.
+	 */
+	public Optional<SiteManifest> get(String site, SingleFlight.Loader<SiteManifest> loader) throws Exception {
+		Optional<SiteManifest> cached = getCached(site);
+		if (cached != null) {
+			return cached;
+		}
+		return loads.execute(site, () -> {
+			SiteManifest manifest = loader.load();
+			put(site, manifest);
+			return Optional.ofNullable(manifest);
+		});
+	}
+
+	/**
+	 * Caches a manifest, e.g. after it was published on this node.
+	 *
+	 * @param site The site name.
+	 * @param manifest The manifest or {@code null} if the site does not exist.
+	 */
+	public void put(String site, SiteManifest manifest) {
+		if (sites.size() >= maxEntries) {
+			long now = System.currentTimeMillis();
+			sites.values().removeIf(cached -> now - cached.loaded > ttlMillis);
+			if (sites.size() >= maxEntries) {
+				sites.clear();
+			}
+		}
+		sites.put(site, new Cached(manifest, System.currentTimeMillis()));
+	}
+
+}
@@ -0,0 +1,126 @@
+package i5.las2peer.services.fileService;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * The manifest of a deployed static site. It maps every path of the site, relative to the site root, to the file that
+ * is served for it. Directory paths map to their {@code index.html}. Fallback rules map path prefixes to the file
+ * served for paths below the prefix that are not part of the site, which is how single page applications handle
+ * client side routes.
+ */
+public class SiteManifest implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final String DIRECTORY_INDEX = "index.html";
+
+	private final String name;
+	private final String ownerId;
+	private final long lastModified;
+	private final HashMap<String, StoredFileIndex> paths = new HashMap<>();
+	// sorted, so the longest matching prefix is found by walking down from the path itself
+	private final TreeMap<String, String> fallbacks = new TreeMap<>();
+
+	public SiteManifest(String name, String ownerId, long lastModified) {
+		this.name = name;
+		this.ownerId = ownerId;
+		this.lastModified = lastModified;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getOwnerId() {
+		return ownerId;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Adds a file of the site. Files named {@code index.html} are also added for their directory path.
+	 *
+	 * @param path The path relative to the site root.
+	 * @param file The metadata of the served file.
+	 */
+	public void addFile(String path, StoredFileIndex file) {
+		paths.put(path, file);
+		if (path.equals(DIRECTORY_INDEX)) {
+			paths.putIfAbsent("", file);
+		} else if (path.endsWith("/" + DIRECTORY_INDEX)) {
+			paths.putIfAbsent(path.substring(0, path.length() - DIRECTORY_INDEX.length() - 1), file);
+		}
+	}
+
+	/**
+	 * Adds a fallback rule.
+	 *
+	 * @param prefix The path prefix relative to the site root, empty for the whole site.
+	 * @param target The path of the file served for unknown paths below the prefix.
+	 * @throws IllegalArgumentException If the target is not a file of the site.
+	 */
+	public void addFallback(String prefix, String target) throws IllegalArgumentException {
+		if (!paths.containsKey(target)) {
+			throw new IllegalArgumentException("Fallback target '" + target + "' is not part of site " + name);
+		}
+		fallbacks.put(prefix, target);
+	}
+
+	/**
+	 * Resolves a path of the site.
+	 *
+	 * @param path The requested path relative to the site root.
+	 * @return Returns the metadata of the file to serve or {@code null} if the path is not part of the site and no
+	 *         fallback rule matches.
+	 */
+	public StoredFileIndex resolve(String path) {
+		StoredFileIndex file = paths.get(path);
+		if (file != null) {
+			return file;
+		}
+		String prefix = fallbacks.floorKey(path);
+		while (prefix != null) {
+			if (path.startsWith(prefix)) {
+				return paths.get(fallbacks.get(prefix));
+			}
+			prefix = fallbacks.lowerKey(prefix);
+		}
+		return null;
+	}
+
+	public int size() {
+		return paths.size();
+	}
+
+	/**
+	 * @return Returns the metadata of all files of the site.
+	 */
+	public Collection<StoredFileIndex> getFiles() {
+		return paths.values();
+	}
+
+	public JSONObject toJsonObject() {
+		JSONObject result = new JSONObject();
+		result.put("name", name);
+		result.put("ownerId", ownerId);
+		result.put("lastModified", lastModified);
+		JSONObject files = new JSONObject();
+		for (Map.Entry<String, StoredFileIndex> entry : paths.entrySet()) {
+			files.put(entry.getKey(), entry.getValue().getIdentifier());
+		}
+		result.put("paths", files);
+		JSONObject rules = new JSONObject();
+		rules.putAll(fallbacks);
+		result.put("fallbacks", rules);
+		return result;
+	}
+
+}
@@ -19,6 +19,10 @@ public class StoredFileIndex implements Serializable {
 	private String ownerId;
 	private String description;
 	private long fileSize;
+	// tombstone marker for deleted files, default false for entries stored before deletion support
+	private boolean deleted;
+	// hex encoded SHA-256 hash of the content, null for entries stored before content addressing
+	private String sha256;
 
 	public StoredFileIndex(String identifier, String name, long lastModified, String ownerId, String mimeType,
 			String description, long fileSize) throws NullPointerException, IllegalArgumentException {
@@ -94,6 +98,22 @@ public class StoredFileIndex implements Serializable {
 		this.fileSize = fileSize;
 	}
 
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	public void setDeleted(boolean deleted) {
+		this.deleted = deleted;
+	}
+
+	public String getSha256() {
+		return sha256;
+	}
+
+	public void setSha256(String sha256) {
+		this.sha256 = sha256;
+	}
+
 	public Map<String, Object> toMap() {
 		HashMap<String, Object> result = new HashMap<>();
 		result.put("identifier", getIdentifier());
@@ -103,6 +123,9 @@ public class StoredFileIndex implements Serializable {
 		result.put("ownerId", getOwnerId());
 		result.put("description", getDescription());
 		result.put("fileSize", getFileSize());
+		if (getSha256() != null) {
+			result.put("sha256", getSha256());
+		}
 		return result;
 	}
 
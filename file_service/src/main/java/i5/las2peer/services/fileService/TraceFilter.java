@@ -0,0 +1,47 @@
+package i5.las2peer.services.fileService;
+
+import java.io.IOException;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import i5.las2peer.api.Context;
+
+/**
+ * Finishes the request trace started by a resource method once the response is written, so the trace includes the
+ * time Jersey needs to serialize the entity. Responses without entity are finished right after the resource method.
+ * The heap budget reserved for the response body is released at the same time.
+ */
+@Provider
+public class TraceFilter implements ContainerResponseFilter, WriterInterceptor {
+
+	@Override
+	public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) {
+		if (!responseContext.hasEntity()) {
+			finish();
+		}
+	}
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+		try (RequestTrace.Span span = RequestTrace.span("write")) {
+			context.proceed();
+		} finally {
+			finish();
+		}
+	}
+
+	private void finish() {
+		ByteBudget.releaseResponse();
+		RequestTrace trace = RequestTrace.end();
+		if (trace != null) {
+			((FileService) Context.getCurrent().getService()).completeTrace(trace);
+		}
+	}
+
+}
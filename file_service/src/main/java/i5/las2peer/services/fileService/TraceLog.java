@@ -0,0 +1,68 @@
+package i5.las2peer.services.fileService;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import i5.las2peer.logging.L2pLogger;
+
+/**
+ * Receives finished request traces. Requests slower than the threshold are logged with their stage breakdown. If an
+ * export file is configured, every trace is appended to it as one JSON object per line. Exporting happens on a
+ * background thread and drops traces if the disk can't keep up, so it never slows down requests.
+ */
+class TraceLog {
+
+	private static final L2pLogger logger = L2pLogger.getInstance(TraceLog.class.getName());
+
+	private final long slowMillis;
+	private final Path exportFile;
+	private final ExecutorService exporter;
+
+	/**
+	 * @param slowMillis The duration from which requests are logged as slow, 0 disables the slow request log.
+	 * @param exportFile The JSON lines file traces are appended to or {@code null} to disable the export.
+	 */
+	public TraceLog(long slowMillis, Path exportFile) {
+		this.slowMillis = slowMillis;
+		this.exportFile = exportFile;
+		if (exportFile != null) {
+			this.exporter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(10000),
+					runnable -> {
+						Thread thread = new Thread(runnable, "fileservice-trace-export");
+						thread.setDaemon(true);
+						return thread;
+					}, new ThreadPoolExecutor.DiscardPolicy());
+		} else {
+			this.exporter = null;
+		}
+	}
+
+	public void complete(RequestTrace trace) {
+		if (slowMillis > 0 && trace.getDurationMillis() >= slowMillis) {
+			logger.log(Level.WARNING, "slow request " + trace);
+		}
+		if (exporter != null) {
+			exporter.execute(() -> export(trace));
+		}
+	}
+
+	private void export(RequestTrace trace) {
+		try (Writer out = Files.newBufferedWriter(exportFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND)) {
+			out.write(trace.toJsonObject().toJSONString());
+			out.write('\n');
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Could not export trace to " + exportFile, e);
+		}
+	}
+
+}
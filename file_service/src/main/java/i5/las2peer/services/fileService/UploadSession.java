@@ -0,0 +1,197 @@
+package i5.las2peer.services.fileService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+/**
+ * This class is used internally to collect the chunks of a chunked upload until it is committed. Chunks may arrive in
+ * any order and in parallel. Each chunk is written directly into its region of the content buffer, only the
+ * bookkeeping of received byte ranges is synchronized. A session can't be committed while chunks are written and
+ * rejects chunks once it is committed, so the content doesn't change while it is stored.
+ */
+class UploadSession {
+
+	private final String sessionId;
+	private final String agentId;
+	private final String identifier;
+	private final String filename;
+	private final String mimeType;
+	private final String shareWithGroup;
+	private final String description;
+	private final boolean listFileOnIndex;
+	private final byte[] content;
+	// received byte ranges, start offset (inclusive) mapped to end offset (exclusive), never overlapping
+	private final TreeMap<Long, Long> received = new TreeMap<>();
+	private volatile long lastAccess;
+	private boolean committed;
+	private int activeWrites;
+
+	public UploadSession(String agentId, String identifier, String filename, String mimeType, String shareWithGroup,
+			String description, boolean listFileOnIndex, int size) {
+		this.sessionId = UUID.randomUUID().toString();
+		this.agentId = agentId;
+		this.identifier = identifier;
+		this.filename = filename;
+		this.mimeType = mimeType;
+		this.shareWithGroup = shareWithGroup;
+		this.description = description;
+		this.listFileOnIndex = listFileOnIndex;
+		this.content = new byte[size];
+		touch();
+	}
+
+	/**
+	 * Reads a chunk from the given stream into the content buffer.
+	 *
+	 * @param offset The offset of the first byte of this chunk in the file.
+	 * @param chunk The chunk content.
+	 * @return Returns the number of bytes read.
+	 * @throws IOException If reading from the stream fails.
+	 * @throws IllegalArgumentException If the chunk exceeds the announced file size.
+	 * @throws IllegalStateException If the session is committed.
+	 */
+	public int write(long offset, InputStream chunk) throws IOException, IllegalArgumentException,
+			IllegalStateException {
+		if (offset < 0 || offset > content.length) {
+			throw new IllegalArgumentException("Offset " + offset + " out of range [0, " + content.length + "]");
+		}
+		synchronized (this) {
+			if (committed) {
+				throw new IllegalStateException("Upload session (" + sessionId + ") is committed");
+			}
+			activeWrites++;
+		}
+		try {
+			touch();
+			int pos = (int) offset;
+			int nRead;
+			while (pos < content.length && (nRead = chunk.read(content, pos, content.length - pos)) != -1) {
+				pos += nRead;
+			}
+			if (pos == content.length && chunk.read() != -1) {
+				throw new IllegalArgumentException("Chunk exceeds announced file size of " + content.length
+						+ " bytes");
+			}
+			if (pos > offset) {
+				addRange(offset, pos);
+			}
+			return pos - (int) offset;
+		} finally {
+			synchronized (this) {
+				activeWrites--;
+			}
+		}
+	}
+
+	private synchronized void addRange(long start, long end) {
+		// merge with overlapping or adjacent ranges
+		Map.Entry<Long, Long> before = received.floorEntry(start);
+		if (before != null && before.getValue() >= start) {
+			start = before.getKey();
+			end = Math.max(end, before.getValue());
+		}
+		Map.Entry<Long, Long> next = received.ceilingEntry(start);
+		while (next != null && next.getKey() <= end) {
+			end = Math.max(end, next.getValue());
+			received.remove(next.getKey());
+			next = received.ceilingEntry(start);
+		}
+		received.put(start, end);
+	}
+
+	public synchronized boolean isComplete() {
+		if (content.length == 0) {
+			return false;
+		}
+		Map.Entry<Long, Long> first = received.firstEntry();
+		return first != null && first.getKey() == 0 && first.getValue() == content.length;
+	}
+
+	/**
+	 * Marks this session as committed, so that it can't be committed twice and no more chunks are accepted.
+	 *
+	 * @return Returns false if the session was already committed before or a chunk is being written.
+	 */
+	public synchronized boolean markCommitted() {
+		if (committed || activeWrites > 0) {
+			return false;
+		}
+		committed = true;
+		return true;
+	}
+
+	/**
+	 * Accepts chunks again after the commit failed, so the client can retry it.
+	 */
+	public synchronized void resetCommitted() {
+		committed = false;
+	}
+
+	public void touch() {
+		lastAccess = System.currentTimeMillis();
+	}
+
+	public boolean isExpired(long timeoutMillis) {
+		return System.currentTimeMillis() - lastAccess > timeoutMillis;
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public String getAgentId() {
+		return agentId;
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	public String getShareWithGroup() {
+		return shareWithGroup;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public boolean isListFileOnIndex() {
+		return listFileOnIndex;
+	}
+
+	public byte[] getContent() {
+		return content;
+	}
+
+	public synchronized JSONObject toJsonObject() {
+		JSONObject result = new JSONObject();
+		result.put("session", sessionId);
+		result.put("identifier", identifier);
+		result.put("size", content.length);
+		JSONArray ranges = new JSONArray();
+		for (Map.Entry<Long, Long> range : received.entrySet()) {
+			JSONArray pair = new JSONArray();
+			pair.add(range.getKey());
+			pair.add(range.getValue());
+			ranges.add(pair);
+		}
+		result.put("received", ranges);
+		result.put("complete", isComplete());
+		return result;
+	}
+
+}
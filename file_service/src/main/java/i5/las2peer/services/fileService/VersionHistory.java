@@ -0,0 +1,158 @@
+package i5.las2peer.services.fileService;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The previous versions of a file. The content of each version is split into chunks with {@link Chunker}, which are
+ * stored once per file by their SHA-256 hash. A version only lists the hashes of its chunks, so the chunks a version
+ * has in common with other versions take no additional space. The current version is not part of the history, it is
+ * stored as {@link StoredFile} as before.
+ *
+ * <p>
+ * Chunks that are no longer referenced after versions were dropped are released, but keep their content for a grace
+ * period. A version archived concurrently may still rely on them and takes them back into use.
+ */
+public class VersionHistory implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * A previous version of the file.
+	 */
+	public static class Version implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final StoredFileIndex meta;
+		private final ArrayList<String> blocks;
+		private final long replaced;
+
+		/**
+		 * @param meta The metadata of the version, its last modified timestamp identifies the version.
+		 * @param blocks The hex encoded SHA-256 hashes of the chunks of the content, in order.
+		 * @param replaced The time the version was replaced by a newer one or deleted.
+		 */
+		public Version(StoredFileIndex meta, List<String> blocks, long replaced) {
+			this.meta = meta;
+			this.blocks = new ArrayList<>(blocks);
+			this.replaced = replaced;
+		}
+
+		public StoredFileIndex getMeta() {
+			return meta;
+		}
+
+		public List<String> getBlocks() {
+			return Collections.unmodifiableList(blocks);
+		}
+
+		public long getReplaced() {
+			return replaced;
+		}
+
+	}
+
+	// oldest first
+	private final ArrayList<Version> versions = new ArrayList<>();
+	// release time of chunks that are no longer referenced but still stored
+	private final HashMap<String, Long> released = new HashMap<>();
+
+	/**
+	 * @return Returns the versions, oldest first.
+	 */
+	public List<Version> getVersions() {
+		return Collections.unmodifiableList(versions);
+	}
+
+	/**
+	 * @param lastModified The last modified timestamp of the version.
+	 * @return Returns the version or {@code null} if it is not in the history.
+	 */
+	public Version get(long lastModified) {
+		for (Version version : versions) {
+			if (version.meta.getLastModified() == lastModified) {
+				return version;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds a version, unless a version with the same timestamp is in the history already.
+	 *
+	 * @param version The version to add.
+	 * @return Returns true if the version was added.
+	 */
+	public boolean add(Version version) {
+		if (get(version.meta.getLastModified()) != null) {
+			return false;
+		}
+		int position = versions.size();
+		while (position > 0 && versions.get(position - 1).meta.getLastModified() > version.meta.getLastModified()) {
+			position--;
+		}
+		versions.add(position, version);
+		released.keySet().removeAll(version.blocks);
+		return true;
+	}
+
+	/**
+	 * @return Returns the hashes of all chunks whose content is stored, referenced or released within the grace
+	 *         period.
+	 */
+	public Set<String> getStoredBlocks() {
+		Set<String> blocks = getBlocks();
+		blocks.addAll(released.keySet());
+		return blocks;
+	}
+
+	/**
+	 * @return Returns the hashes of all chunks referenced by a version.
+	 */
+	public Set<String> getBlocks() {
+		Set<String> blocks = new HashSet<>();
+		for (Version version : versions) {
+			blocks.addAll(version.blocks);
+		}
+		return blocks;
+	}
+
+	/**
+	 * Drops the versions replaced before the given time and the oldest versions beyond the given number. Chunks no
+	 * longer referenced by any kept version are released.
+	 *
+	 * @param maxVersions The maximum number of kept versions.
+	 * @param oldest Versions replaced before this time are dropped, 0 keeps versions of any age.
+	 * @param now The current time.
+	 * @param graceMillis The time released chunks keep their content.
+	 * @return Returns the hashes of the chunks released longer than the grace period ago, their content can be
+	 *         removed.
+	 */
+	public Set<String> retain(int maxVersions, long oldest, long now, long graceMillis) {
+		Set<String> before = getBlocks();
+		versions.removeIf(version -> version.replaced < oldest);
+		while (versions.size() > maxVersions) {
+			versions.remove(0);
+		}
+		before.removeAll(getBlocks());
+		for (String block : before) {
+			released.putIfAbsent(block, now);
+		}
+		Set<String> expired = new HashSet<>();
+		released.entrySet().removeIf(block -> {
+			if (now - block.getValue() < graceMillis) {
+				return false;
+			}
+			expired.add(block.getKey());
+			return true;
+		});
+		return expired;
+	}
+
+}
@@ -0,0 +1,118 @@
+package i5.las2peer.services.fileService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AccessSketchTest {
+
+	private static final long HOUR = 3600000;
+
+	private Path directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("accesssketch");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		Files.deleteIfExists(directory.resolve("record.bin"));
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	public void testTop() {
+		AccessSketch sketch = new AccessSketch(3, HOUR);
+		record(sketch, "a", 5);
+		record(sketch, "b", 20);
+		record(sketch, "c", 10);
+		Assert.assertEquals(Arrays.asList("b", "c", "a"), sketch.top(10));
+		Assert.assertEquals(Arrays.asList("b", "c"), sketch.top(2));
+		Assert.assertEquals(Arrays.asList("b", "c"), sketch.top(10, 10));
+		// a hotter identifier replaces the coldest candidate
+		record(sketch, "d", 15);
+		Assert.assertEquals(Arrays.asList("b", "d", "c"), sketch.top(10));
+		// a colder one doesn't
+		record(sketch, "e", 1);
+		Assert.assertFalse(sketch.top(10).contains("e"));
+	}
+
+	@Test
+	public void testDecay() throws Exception {
+		AccessSketch sketch = new AccessSketch(3, 100);
+		record(sketch, "a", 16);
+		Assert.assertEquals(Collections.singletonList("a"), sketch.top(10, 8));
+		Thread.sleep(300);
+		// at most 2 accesses left after three half-lives
+		Assert.assertTrue(sketch.top(10, 8).isEmpty());
+		Assert.assertEquals(Collections.singletonList("a"), sketch.top(10));
+		// new accesses count fully against the decayed ones
+		record(sketch, "b", 8);
+		Assert.assertEquals(Arrays.asList("b", "a"), sketch.top(10));
+	}
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		Path file = directory.resolve("record.bin");
+		AccessSketch sketch = new AccessSketch(3, HOUR);
+		record(sketch, "a", 5);
+		record(sketch, "b", 20);
+		record(sketch, "\u00fcml\u00e4ut", 10);
+		sketch.save(file);
+		AccessSketch loaded = new AccessSketch(3, HOUR);
+		loaded.load(file);
+		Assert.assertEquals(sketch.top(10), loaded.top(10));
+		Assert.assertEquals(sketch.top(10, 10), loaded.top(10, 10));
+		// the counts are restored too, not only the candidates
+		record(loaded, "c", 15);
+		Assert.assertEquals(Arrays.asList("b", "c", "\u00fcml\u00e4ut"), loaded.top(10));
+		// a record with fewer candidates keeps only as many
+		AccessSketch smaller = new AccessSketch(2, HOUR);
+		smaller.load(file);
+		Assert.assertEquals(2, smaller.top(10).size());
+	}
+
+	@Test
+	public void testLoadDecaysForDowntime() throws Exception {
+		Path file = directory.resolve("record.bin");
+		AccessSketch sketch = new AccessSketch(3, 100);
+		record(sketch, "a", 16);
+		sketch.save(file);
+		Thread.sleep(300);
+		AccessSketch loaded = new AccessSketch(3, 100);
+		loaded.load(file);
+		Assert.assertTrue(loaded.top(10, 8).isEmpty());
+		Assert.assertEquals(Collections.singletonList("a"), loaded.top(10));
+	}
+
+	@Test
+	public void testUnknownFormat() throws Exception {
+		Path file = directory.resolve("record.bin");
+		Files.write(file, new byte[] { 0, 0, 0, 99 });
+		AccessSketch sketch = new AccessSketch(3, HOUR);
+		record(sketch, "a", 1);
+		try {
+			sketch.load(file);
+			Assert.fail("unknown format loaded");
+		} catch (IOException e) {
+			// expected
+		}
+		// a failed load keeps the current record
+		Assert.assertEquals(Collections.singletonList("a"), sketch.top(10));
+	}
+
+	private static void record(AccessSketch sketch, String identifier, int count) {
+		for (int i = 0; i < count; i++) {
+			sketch.record(identifier);
+		}
+	}
+
+}
@@ -0,0 +1,200 @@
+package i5.las2peer.services.fileService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlobCacheTest {
+
+	private Path directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("blobcache");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	public void testPutAndReload() throws Exception {
+		BlobCache cache = new BlobCache(() -> directory, 1000, 60000);
+		cache.put(file("a", 1, "content of a"));
+		BlobCache.Entry entry = awaitEntry(cache, "a");
+		Assert.assertEquals(1, entry.getMeta().getLastModified());
+		Assert.assertArrayEquals("content of a".getBytes(StandardCharsets.UTF_8), cache.read(entry));
+		Assert.assertNotNull(cache.getByDigest(entry.getMeta().getSha256()));
+		// a new instance restores the entry from disk
+		BlobCache reloaded = new BlobCache(() -> directory, 1000, 60000);
+		Assert.assertNotNull(reloaded.get("a"));
+		Assert.assertEquals(entry.getSize(), reloaded.getTotalBytes());
+	}
+
+	@Test
+	public void testFreshness() throws Exception {
+		BlobCache cache = new BlobCache(() -> directory, 1000, 50);
+		cache.put(file("a", 1, "content of a"));
+		awaitEntry(cache, "a");
+		Thread.sleep(100);
+		// stale entries are only returned if freshness does not matter
+		Assert.assertNull(cache.get("a"));
+		Assert.assertNotNull(cache.peek("a"));
+		// putting the same version again confirms it
+		cache.put(file("a", 1, "content of a"));
+		Assert.assertNotNull(cache.get("a"));
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		BlobCache cache = new BlobCache(() -> directory, 100, 60000);
+		cache.put(file("a", 1, repeat('a', 40)));
+		awaitEntry(cache, "a");
+		Thread.sleep(5);
+		cache.put(file("b", 1, repeat('b', 40)));
+		awaitEntry(cache, "b");
+		Thread.sleep(5);
+		// a was used more recently than b
+		cache.get("a");
+		cache.put(file("c", 1, repeat('c', 40)));
+		awaitEntry(cache, "c");
+		Assert.assertNull(cache.peek("b"));
+		Assert.assertNotNull(cache.peek("a"));
+		Assert.assertEquals(80, cache.getTotalBytes());
+		// pinned files are skipped, even if they were not used for a long time
+		Assert.assertTrue(cache.pin("c", 40));
+		Assert.assertFalse(cache.pin("a", 40));
+		Thread.sleep(5);
+		cache.get("a");
+		cache.put(file("d", 1, repeat('d', 40)));
+		awaitEntry(cache, "d");
+		Assert.assertNotNull(cache.peek("c"));
+		Assert.assertNull(cache.peek("a"));
+		Assert.assertEquals(2, countFiles(".blob"));
+	}
+
+	@Test
+	public void testUnpin() throws Exception {
+		BlobCache cache = new BlobCache(() -> directory, 100, 60000);
+		cache.put(file("a", 1, repeat('a', 40)));
+		awaitEntry(cache, "a");
+		Assert.assertTrue(cache.pin("a", 40));
+		cache.unpin("a");
+		// an unpinned file stays cached until it is evicted
+		Assert.assertTrue(cache.getPinned().isEmpty());
+		Assert.assertNotNull(cache.get("a"));
+		Thread.sleep(5);
+		cache.put(file("b", 1, repeat('b', 40)));
+		awaitEntry(cache, "b");
+		Thread.sleep(5);
+		cache.put(file("c", 1, repeat('c', 40)));
+		awaitEntry(cache, "c");
+		Assert.assertNull(cache.peek("a"));
+	}
+
+	@Test
+	public void testInvalidate() throws Exception {
+		BlobCache cache = new BlobCache(() -> directory, 1000, 60000);
+		cache.put(file("a", 1, "content of a"));
+		awaitEntry(cache, "a");
+		// a write queued before the invalidation must not bring the old version back
+		cache.put(file("a", 2, "new content of a"));
+		cache.invalidate("a");
+		cache.put(file("marker", 1, "marker"));
+		awaitEntry(cache, "marker");
+		Assert.assertNull(cache.peek("a"));
+		Assert.assertEquals(6, cache.getTotalBytes());
+		Assert.assertEquals(1, countFiles(".blob"));
+	}
+
+	@Test
+	public void testTruncatedContent() throws Exception {
+		BlobCache cache = new BlobCache(() -> directory, 1000, 60000);
+		cache.put(file("a", 1, "content of a"));
+		BlobCache.Entry entry = awaitEntry(cache, "a");
+		truncateBlob(3);
+		// a truncated entry is dropped, so the file is fetched from the network instead
+		Assert.assertNull(cache.open(entry));
+		Assert.assertNull(cache.peek("a"));
+		Assert.assertEquals(0, cache.getTotalBytes());
+		// truncated after it was opened, the response is aborted instead of spinning
+		cache.put(file("b", 1, "content of b"));
+		BlobCache.Entry opened = awaitEntry(cache, "b");
+		StreamingOutput content = cache.open(opened);
+		Assert.assertNotNull(content);
+		truncateBlob(3);
+		try {
+			content.write(new ByteArrayOutputStream());
+			Assert.fail("truncated content sent");
+		} catch (IOException e) {
+			// expected
+		}
+		Assert.assertNull(cache.peek("b"));
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		BlobCache cache = new BlobCache(() -> {
+			throw new IOException("no directory");
+		}, 1000, 60000);
+		cache.put(file("a", 1, "content of a"));
+		Assert.assertNull(cache.get("a"));
+		Assert.assertNull(cache.peek("a"));
+	}
+
+	private static StoredFile file(String identifier, long lastModified, String content) {
+		StoredFile file = new StoredFile(identifier, identifier, content.getBytes(StandardCharsets.UTF_8),
+				lastModified, "owner", "text/plain", "");
+		file.setSha256(BlobCache.hash(content));
+		return file;
+	}
+
+	private static String repeat(char c, int count) {
+		return String.valueOf(c).repeat(count);
+	}
+
+	private static BlobCache.Entry awaitEntry(BlobCache cache, String identifier) throws InterruptedException {
+		for (int i = 0; i < 200; i++) {
+			BlobCache.Entry entry = cache.peek(identifier);
+			if (entry != null) {
+				return entry;
+			}
+			Thread.sleep(25);
+		}
+		Assert.fail("file (" + identifier + ") was not cached");
+		return null;
+	}
+
+	private void truncateBlob(long size) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			for (Path blob : (Iterable<Path>) files.filter(path -> path.toString().endsWith(".blob"))::iterator) {
+				try (FileChannel channel = FileChannel.open(blob, StandardOpenOption.WRITE)) {
+					channel.truncate(size);
+				}
+			}
+		}
+	}
+
+	private long countFiles(String suffix) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(path -> path.toString().endsWith(suffix)).count();
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+package i5.las2peer.services.fileService;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ByteBudgetTest {
+
+	private static final int KIB = 1024;
+
+	@After
+	public void releaseResponse() {
+		ByteBudget.releaseResponse();
+	}
+
+	@Test
+	public void testReserveAndRelease() {
+		ByteBudget budget = new ByteBudget(10 * KIB, 50);
+		Assert.assertTrue(budget.reserve(8 * KIB));
+		Assert.assertEquals(2 * KIB, budget.available());
+		// waits for the configured time, then fails
+		long start = System.currentTimeMillis();
+		Assert.assertFalse(budget.reserve(4 * KIB));
+		Assert.assertTrue(System.currentTimeMillis() - start >= 40);
+		budget.release(8 * KIB);
+		Assert.assertTrue(budget.reserve(4 * KIB));
+		Assert.assertEquals(6 * KIB, budget.available());
+	}
+
+	@Test
+	public void testWaitForRelease() throws Exception {
+		ByteBudget budget = new ByteBudget(10 * KIB, 10000);
+		Assert.assertTrue(budget.reserve(10 * KIB));
+		CompletableFuture.runAsync(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			budget.release(10 * KIB);
+		});
+		Assert.assertTrue(budget.reserve(1));
+	}
+
+	@Test
+	public void testOversizedReservation() {
+		// larger than the whole budget, granted once nothing else is reserved
+		ByteBudget budget = new ByteBudget(10 * KIB, 50);
+		Assert.assertTrue(budget.reserve(100 * KIB));
+		Assert.assertEquals(0, budget.available());
+		budget.release(100 * KIB);
+		Assert.assertEquals(10 * KIB, budget.available());
+	}
+
+	@Test
+	public void testRejectedResponse() throws Exception {
+		ByteBudget budget = new ByteBudget(10 * KIB, 50);
+		Assert.assertNull(FileService.admitResponse(budget, new byte[8 * KIB]));
+		// another request gets 503 while the first response is not written yet
+		Response rejected = CompletableFuture.supplyAsync(() -> FileService.admitResponse(budget, new byte[4 * KIB]))
+				.get(10, TimeUnit.SECONDS);
+		Assert.assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), rejected.getStatus());
+		Assert.assertEquals("5", rejected.getHeaderString(HttpHeaders.RETRY_AFTER));
+		// streamed content needs no budget
+		Assert.assertNull(FileService.admitResponse(budget, (Object) "streamed"));
+		Assert.assertEquals(2 * KIB, budget.available());
+	}
+
+	@Test
+	public void testResponseReleasedAfterWrite() throws Exception {
+		ByteBudget budget = new ByteBudget(10 * KIB, 50);
+		Assert.assertTrue(budget.reserveForResponse(8 * KIB));
+		Assert.assertEquals(2 * KIB, budget.available());
+		TraceFilter filter = new TraceFilter();
+		// the response has an entity, so the reservation is kept until it is written
+		filter.filter(null, response(true));
+		Assert.assertEquals(2 * KIB, budget.available());
+		filter.aroundWriteTo((WriterInterceptorContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { WriterInterceptorContext.class }, (proxy, method, args) -> null));
+		Assert.assertEquals(10 * KIB, budget.available());
+	}
+
+	@Test
+	public void testResponseWithoutEntity() {
+		ByteBudget budget = new ByteBudget(10 * KIB, 50);
+		Assert.assertTrue(budget.reserveForResponse(8 * KIB));
+		new TraceFilter().filter(null, response(false));
+		Assert.assertEquals(10 * KIB, budget.available());
+	}
+
+	@Test
+	public void testLeftoverResponseReleased() {
+		ByteBudget budget = new ByteBudget(10 * KIB, 50);
+		Assert.assertTrue(budget.reserveForResponse(8 * KIB));
+		// a response that was never written, e.g. of a HEAD request, doesn't hold the budget forever
+		Assert.assertTrue(budget.reserveForResponse(8 * KIB));
+		Assert.assertEquals(2 * KIB, budget.available());
+		ByteBudget.releaseResponse();
+		Assert.assertEquals(10 * KIB, budget.available());
+	}
+
+	private ContainerResponseContext response(boolean hasEntity) {
+		return (ContainerResponseContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { ContainerResponseContext.class }, (proxy, method, args) -> {
+					if (method.getName().equals("hasEntity")) {
+						return hasEntity;
+					}
+					return null;
+				});
+	}
+
+}
@@ -0,0 +1,107 @@
+package i5.las2peer.services.fileService;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ChangeQueueTest {
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private final ChangeLog log = new ChangeLog();
+
+	@After
+	public void stopExecutor() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testFailedAppendIsRetried() throws Exception {
+		ChangeQueue queue = new ChangeQueue(100, 3, 10);
+		AtomicInteger failures = new AtomicInteger(2);
+		ChangeQueue.Writer writer = (changes, lost) -> {
+			if (failures.getAndDecrement() > 0) {
+				throw new IOException("change log unavailable");
+			}
+			append(changes, lost);
+		};
+		// queuing never fails, the change log is written in the background
+		queue.add(ChangeLog.UPSERT, Collections.singletonList(entry("a")), executor, writer);
+		awaitEmpty(queue);
+		Assert.assertEquals(1, log.getSequence());
+		Assert.assertEquals("a", log.since(0).get(0).getEntry().getIdentifier());
+	}
+
+	@Test
+	public void testChangesStayQueued() throws Exception {
+		ChangeQueue queue = new ChangeQueue(100, 2, 10);
+		AtomicInteger failures = new AtomicInteger(2);
+		ChangeQueue.Writer writer = (changes, lost) -> {
+			if (failures.getAndDecrement() > 0) {
+				throw new IOException("change log unavailable");
+			}
+			append(changes, lost);
+		};
+		queue.add(ChangeLog.UPSERT, Collections.singletonList(entry("a")), executor, writer);
+		executor.submit(() -> null).get(10, TimeUnit.SECONDS);
+		// all attempts of the first flush failed
+		Assert.assertEquals(1, queue.size());
+		Assert.assertEquals(0, log.getSequence());
+		// the next change writes both in order
+		queue.add(ChangeLog.DELETE, Collections.singletonList(entry("a")), executor, writer);
+		awaitEmpty(queue);
+		List<ChangeLog.Event> events = log.since(0);
+		Assert.assertEquals(2, events.size());
+		Assert.assertEquals(ChangeLog.UPSERT, events.get(0).getType());
+		Assert.assertEquals(ChangeLog.DELETE, events.get(1).getType());
+		Assert.assertFalse(log.isTruncated(0));
+	}
+
+	@Test
+	public void testDroppedChangesReset() throws Exception {
+		ChangeQueue queue = new ChangeQueue(2, 1, 10);
+		AtomicInteger failures = new AtomicInteger(3);
+		ChangeQueue.Writer writer = (changes, lost) -> {
+			if (failures.getAndDecrement() > 0) {
+				throw new IOException("change log unavailable");
+			}
+			append(changes, lost);
+		};
+		for (String identifier : new String[] { "a", "b", "c", "d" }) {
+			queue.add(ChangeLog.UPSERT, Collections.singletonList(entry(identifier)), executor, writer);
+			executor.submit(() -> null).get(10, TimeUnit.SECONDS);
+		}
+		awaitEmpty(queue);
+		// a and b were dropped, but still count, so clients read the whole index
+		Assert.assertEquals(4, log.getSequence());
+		Assert.assertTrue(log.isTruncated(0));
+		Assert.assertEquals(2, log.since(0).size());
+		Assert.assertFalse(log.isTruncated(2));
+	}
+
+	private synchronized void append(List<ChangeQueue.Change> changes, int lost) {
+		log.skip(lost);
+		for (ChangeQueue.Change change : changes) {
+			log.append(change.getType(), change.getEntry(), 100);
+		}
+	}
+
+	private static StoredFileIndex entry(String identifier) {
+		return new StoredFileIndex(identifier, identifier, 1, "owner", "text/plain", "", 1);
+	}
+
+	private static void awaitEmpty(ChangeQueue queue) throws InterruptedException {
+		for (int i = 0; i < 200 && queue.size() > 0; i++) {
+			Thread.sleep(25);
+		}
+		Assert.assertEquals(0, queue.size());
+	}
+
+}
@@ -0,0 +1,117 @@
+package i5.las2peer.services.fileService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import i5.las2peer.services.fileService.StoredFileIndex.StoredFileIndexComparator;
+
+public class CompactIndexTest {
+
+	@Test
+	public void testMatchesIndexList() {
+		StoredFileIndexList list = new StoredFileIndexList();
+		list.add(entry("b.txt", "owner-1", "text/plain", "a text file", "cafe"));
+		list.add(entry("a/index.html", "owner-2", "text/html", null, null));
+		list.add(entry("\u00c4.png", null, null, "\u00fcn\u00efc\u00f6d\u00e9", "beef"));
+		list.add(tombstone("deleted.txt", "owner-1"));
+		list.add(entry("a/style.css", "owner-2", "text/css", "", "f00d"));
+		CompactIndex index = CompactIndex.of(list);
+		assertMatches(list, index);
+	}
+
+	@Test
+	public void testTombstonesAreSkipped() {
+		StoredFileIndexList list = new StoredFileIndexList();
+		list.add(entry("a.txt", "owner-1", "text/plain", "", null));
+		list.add(tombstone("b.txt", "owner-1"));
+		list.add(tombstone("c.txt", "owner-2"));
+		CompactIndex index = CompactIndex.of(list);
+		Assert.assertEquals(1, index.size());
+		Assert.assertTrue(index.containsIdentifier("a.txt"));
+		Assert.assertFalse(index.containsIdentifier("b.txt"));
+		Assert.assertEquals(-1, index.indexOfIdentifier("c.txt"));
+		Assert.assertTrue(index.withPrefix("b").isEmpty());
+		// an index of tombstones only is empty
+		CompactIndex empty = CompactIndex.of(list.subList(1, 3));
+		Assert.assertEquals(0, empty.size());
+		Assert.assertFalse(empty.containsIdentifier("b.txt"));
+	}
+
+	@Test
+	public void testLookupIgnoresCase() {
+		StoredFileIndexList list = new StoredFileIndexList();
+		list.add(entry("Docs/Readme.MD", "owner-1", "text/markdown", "", null));
+		CompactIndex index = CompactIndex.of(list);
+		Assert.assertEquals(0, index.indexOfIdentifier("docs/readme.md"));
+		Assert.assertTrue(index.containsIdentifier("DOCS/README.MD"));
+		// prefix search is case sensitive like the sort order
+		Assert.assertEquals(1, index.withPrefix("Docs/").size());
+		Assert.assertTrue(index.withPrefix("docs/").isEmpty());
+	}
+
+	@Test
+	public void testLargeIndex() {
+		Random random = new Random(42);
+		StoredFileIndexList list = new StoredFileIndexList();
+		for (int i = 0; i < 5000; i++) {
+			String identifier = "dir" + random.nextInt(20) + "/file" + i;
+			if (random.nextInt(10) == 0) {
+				list.add(tombstone(identifier, "owner-" + random.nextInt(7)));
+			} else {
+				list.add(entry(identifier, "owner-" + random.nextInt(7), "mime/" + random.nextInt(5),
+						"description " + i, Integer.toHexString(i)));
+			}
+		}
+		CompactIndex index = CompactIndex.of(list);
+		assertMatches(list, index);
+		List<StoredFileIndex> prefixed = index.withPrefix("dir7/");
+		Assert.assertFalse(prefixed.isEmpty());
+		Assert.assertEquals(list.stream().filter(entry -> !entry.isDeleted())
+				.filter(entry -> entry.getIdentifier().startsWith("dir7/")).count(), prefixed.size());
+		Assert.assertTrue(index.memoryBytes() > 0);
+	}
+
+	private static void assertMatches(StoredFileIndexList list, CompactIndex index) {
+		List<StoredFileIndex> expected = new ArrayList<>();
+		for (StoredFileIndex entry : list) {
+			if (!entry.isDeleted()) {
+				expected.add(entry);
+			}
+		}
+		expected.sort(StoredFileIndexComparator.INSTANCE);
+		Assert.assertEquals(expected.size(), index.size());
+		for (int i = 0; i < expected.size(); i++) {
+			StoredFileIndex entry = expected.get(i);
+			Assert.assertEquals(entry.toMap(), index.get(i).toMap());
+			Assert.assertEquals(entry.getSha256(), index.get(i).getSha256());
+			Assert.assertFalse(index.get(i).isDeleted());
+			Assert.assertEquals(entry.getIdentifier(), index.getIdentifier(i));
+			Assert.assertEquals(entry.getOwnerId(), index.getOwnerId(i));
+			Assert.assertEquals(entry.getMimeType(), index.getMimeType(i));
+			Assert.assertEquals(entry.getFileSize(), index.getFileSize(i));
+			Assert.assertEquals(i, index.indexOfIdentifier(entry.getIdentifier()));
+		}
+		for (StoredFileIndex entry : list) {
+			Assert.assertEquals(!entry.isDeleted(), index.containsIdentifier(entry.getIdentifier()));
+		}
+	}
+
+	private static StoredFileIndex entry(String identifier, String ownerId, String mimeType, String description,
+			String sha256) {
+		StoredFileIndex entry = new StoredFileIndex(identifier, identifier + " name", identifier.length() * 1000L,
+				ownerId, mimeType, description, identifier.length());
+		entry.setSha256(sha256);
+		return entry;
+	}
+
+	private static StoredFileIndex tombstone(String identifier, String ownerId) {
+		StoredFileIndex entry = entry(identifier, ownerId, "text/plain", "", null);
+		entry.setDeleted(true);
+		return entry;
+	}
+
+}
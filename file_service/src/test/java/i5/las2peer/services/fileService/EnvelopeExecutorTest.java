@@ -0,0 +1,220 @@
+package i5.las2peer.services.fileService;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import i5.las2peer.api.persistency.EnvelopeNotFoundException;
+
+public class EnvelopeExecutorTest {
+
+	private static final long SLOW_MILLIS = 2000;
+
+	// callers of blocking writes, the common pool may have a single thread only
+	private final ExecutorService callers = Executors.newCachedThreadPool();
+
+	@After
+	public void stopCallers() {
+		callers.shutdownNow();
+	}
+
+	@Test
+	public void testHedgedLookupHidesSlowAttempt() throws Exception {
+		EnvelopeExecutor executor = new EnvelopeExecutor(8, 8, 64, 10000, 0.1, 20);
+		EnvelopeExecutor.EnvelopeCall<String> lookup = slowEvery(40);
+		// learn the usual latency first, the slow attempts of this phase are not hedged yet
+		for (int i = 0; i < 100; i++) {
+			executor.callHedged(null, lookup);
+		}
+		long slowest = slowestOf(executor, lookup, 120);
+		Assert.assertTrue("slowest lookup took " + slowest + " ms", slowest < SLOW_MILLIS / 2);
+		Assert.assertTrue(executor.getHedgeCount() > 0);
+	}
+
+	@Test
+	public void testWithoutHedging() throws Exception {
+		EnvelopeExecutor executor = new EnvelopeExecutor(8, 8, 64, 10000, 0, 20);
+		EnvelopeExecutor.EnvelopeCall<String> lookup = slowEvery(40);
+		long slowest = slowestOf(executor, lookup, 40);
+		Assert.assertTrue("slowest lookup took " + slowest + " ms", slowest >= SLOW_MILLIS);
+		Assert.assertEquals(0, executor.getHedgeCount());
+	}
+
+	@Test
+	public void testWrappedLookups() throws Exception {
+		// hedging is enabled and the lookups are slowed down after the executor was created, like in service tests
+		EnvelopeExecutor executor = new EnvelopeExecutor(8, 8, 64, 10000, 0, 20);
+		AtomicInteger attempts = new AtomicInteger();
+		executor.wrapLookups(new EnvelopeExecutor.LookupWrapper() {
+			@Override
+			public <T> EnvelopeExecutor.EnvelopeCall<T> wrap(EnvelopeExecutor.EnvelopeCall<T> call) {
+				boolean slow = attempts.incrementAndGet() % 40 == 0;
+				return context -> {
+					Thread.sleep(slow ? SLOW_MILLIS : 5);
+					return call.call(context);
+				};
+			}
+		});
+		executor.setHedgeShare(0.1);
+		EnvelopeExecutor.EnvelopeCall<String> lookup = context -> "content";
+		for (int i = 0; i < 100; i++) {
+			executor.callHedged(null, lookup);
+		}
+		long slowest = slowestOf(executor, lookup, 120);
+		Assert.assertTrue("slowest lookup took " + slowest + " ms", slowest < SLOW_MILLIS / 2);
+		Assert.assertTrue(executor.getHedgeCount() > 0);
+		// unwrapped lookups are not slowed down
+		executor.wrapLookups(null);
+		int wrapped = attempts.get();
+		Assert.assertEquals("content", executor.callHedged(null, lookup));
+		Assert.assertEquals(wrapped, attempts.get());
+	}
+
+	@Test
+	public void testDefiniteAnswer() throws Exception {
+		EnvelopeExecutor executor = new EnvelopeExecutor(8, 8, 64, 10000, 0.1, 20);
+		try {
+			executor.callHedged(null, context -> {
+				throw new EnvelopeNotFoundException("missing");
+			});
+			Assert.fail("missing envelope not reported");
+		} catch (EnvelopeNotFoundException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testReadTimeout() throws Exception {
+		EnvelopeExecutor executor = new EnvelopeExecutor(2, 2, 4, 50, 0, 20);
+		try {
+			executor.call(null, context -> {
+				Thread.sleep(SLOW_MILLIS);
+				return "late";
+			});
+			Assert.fail("slow read not bounded");
+		} catch (EnvelopeUnavailableException e) {
+			// expected
+		}
+		// writes are awaited, even beyond the timeout
+		String written = executor.callOrCreate(null, context -> {
+			Thread.sleep(200);
+			return "written";
+		});
+		Assert.assertEquals("written", written);
+	}
+
+	@Test
+	public void testWriteSequence() throws Exception {
+		// a single write thread and place in the queue
+		EnvelopeExecutor executor = new EnvelopeExecutor(1, 1, 1, 10000, 0, 20);
+		CountDownLatch release = new CountDownLatch(1);
+		try (EnvelopeExecutor.WriteSequence writes = executor.beginWrites()) {
+			CompletableFuture<String> blocked = blockedWrite(executor, release);
+			// single writes and sequences of other threads are rejected now
+			CompletableFuture<String> single = CompletableFuture.supplyAsync(() -> {
+				try {
+					return executor.callOrCreate(null, context -> "admitted");
+				} catch (EnvelopeUnavailableException e) {
+					return "rejected";
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}, callers);
+			Assert.assertEquals("rejected", single.get(10, TimeUnit.SECONDS));
+			CompletableFuture<Boolean> other = CompletableFuture.supplyAsync(() -> {
+				try (EnvelopeExecutor.WriteSequence otherWrites = executor.beginWrites()) {
+					return true;
+				} catch (EnvelopeUnavailableException e) {
+					return false;
+				}
+			}, callers);
+			Assert.assertFalse(other.get(10, TimeUnit.SECONDS));
+			// but the writes of the begun sequence wait for the worker instead
+			CompletableFuture.runAsync(() -> {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				release.countDown();
+			}, callers);
+			Assert.assertEquals("file", executor.callOrCreate(null, context -> "file"));
+			Assert.assertEquals("index", executor.callOrCreate(null, context -> "index"));
+			Assert.assertEquals("blocked", blocked.get(10, TimeUnit.SECONDS));
+			// nested sequences join the outer one
+			try (EnvelopeExecutor.WriteSequence nested = executor.beginWrites()) {
+				Assert.assertEquals("nested", executor.callOrCreate(null, context -> "nested"));
+			}
+			Assert.assertEquals("after nested", executor.callOrCreate(null, context -> "after nested"));
+		}
+		// the sequence gave its place back
+		try (EnvelopeExecutor.WriteSequence first = executor.beginWrites()) {
+			Assert.assertEquals("single", CompletableFuture.supplyAsync(() -> {
+				try {
+					return executor.callOrCreate(null, context -> "single");
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}, callers).get(10, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	public void testSlowWritesDontDelayReads() throws Exception {
+		EnvelopeExecutor executor = new EnvelopeExecutor(2, 1, 4, 1000, 0, 20);
+		CountDownLatch release = new CountDownLatch(1);
+		CompletableFuture<String> blocked = blockedWrite(executor, release);
+		long start = System.currentTimeMillis();
+		Assert.assertEquals("read", executor.call(null, context -> "read"));
+		Assert.assertTrue(System.currentTimeMillis() - start < 500);
+		release.countDown();
+		Assert.assertEquals("blocked", blocked.get(10, TimeUnit.SECONDS));
+	}
+
+	// a write that waits for the latch, returns once it runs
+	private CompletableFuture<String> blockedWrite(EnvelopeExecutor executor, CountDownLatch release)
+			throws InterruptedException {
+		CountDownLatch running = new CountDownLatch(1);
+		CompletableFuture<String> write = CompletableFuture.supplyAsync(() -> {
+			try {
+				return executor.callOrCreate(null, context -> {
+					running.countDown();
+					release.await();
+					return "blocked";
+				});
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}, callers);
+		Assert.assertTrue(running.await(10, TimeUnit.SECONDS));
+		return write;
+	}
+
+	// every n-th attempt is slow, like a lookup that hits an overloaded node
+	private static EnvelopeExecutor.EnvelopeCall<String> slowEvery(int n) {
+		AtomicInteger attempts = new AtomicInteger();
+		return context -> {
+			Thread.sleep(attempts.incrementAndGet() % n == 0 ? SLOW_MILLIS : 5);
+			return "content";
+		};
+	}
+
+	private static long slowestOf(EnvelopeExecutor executor, EnvelopeExecutor.EnvelopeCall<String> lookup,
+			int count) throws Exception {
+		long slowest = 0;
+		for (int i = 0; i < count; i++) {
+			long start = System.currentTimeMillis();
+			Assert.assertEquals("content", executor.callHedged(null, lookup));
+			slowest = Math.max(slowest, System.currentTimeMillis() - start);
+		}
+		return slowest;
+	}
+
+}
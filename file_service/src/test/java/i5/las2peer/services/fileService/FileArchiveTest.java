@@ -0,0 +1,90 @@
+package i5.las2peer.services.fileService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FileArchiveTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		StoredFile listed = file("a.txt", "content of a", 1000);
+		listed.setSha256(BlobCache.hash("content of a"));
+		StoredFile unlisted = file("dir/b.bin", "", 2000);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = FileArchive.open(out)) {
+			FileArchive.write(zip, listed, true);
+			FileArchive.write(zip, unlisted, false);
+		}
+		List<StoredFile> files = new ArrayList<>();
+		List<Boolean> listedFlags = new ArrayList<>();
+		int count = FileArchive.read(new ByteArrayInputStream(out.toByteArray()), 1000, (file, list) -> {
+			files.add(file);
+			listedFlags.add(list);
+		});
+		Assert.assertEquals(2, count);
+		assertSameFile(listed, files.get(0));
+		Assert.assertEquals(listed.getSha256(), files.get(0).getSha256());
+		Assert.assertTrue(listedFlags.get(0));
+		assertSameFile(unlisted, files.get(1));
+		Assert.assertFalse(listedFlags.get(1));
+	}
+
+	@Test
+	public void testSizeLimit() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = FileArchive.open(out)) {
+			FileArchive.write(zip, file("a.txt", "small", 1000), true);
+			FileArchive.write(zip, file("b.txt", "much too large", 1000), true);
+		}
+		List<String> read = new ArrayList<>();
+		try {
+			FileArchive.read(new ByteArrayInputStream(out.toByteArray()), 10,
+					(file, list) -> read.add(file.getIdentifier()));
+			Assert.fail("file above the size limit was read");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		Assert.assertEquals(List.of("a.txt"), read);
+	}
+
+	@Test
+	public void testContentWithoutMetadata() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = FileArchive.open(out)) {
+			zip.putNextEntry(new ZipEntry(FileArchive.FILES_PREFIX + "a.txt"));
+			zip.write("content".getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		}
+		try {
+			FileArchive.read(new ByteArrayInputStream(out.toByteArray()), 1000, (file, list) -> {
+			});
+			Assert.fail("content without metadata was read");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private static StoredFile file(String identifier, String content, long lastModified) {
+		return new StoredFile(identifier, identifier + " name", content.getBytes(StandardCharsets.UTF_8),
+				lastModified, "owner", "text/plain", "description of " + identifier);
+	}
+
+	private static void assertSameFile(StoredFile expected, StoredFile actual) {
+		Assert.assertEquals(expected.getIdentifier(), actual.getIdentifier());
+		Assert.assertEquals(expected.getName(), actual.getName());
+		Assert.assertEquals(expected.getLastModified(), actual.getLastModified());
+		Assert.assertEquals(expected.getOwnerId(), actual.getOwnerId());
+		Assert.assertEquals(expected.getMimeType(), actual.getMimeType());
+		Assert.assertEquals(expected.getDescription(), actual.getDescription());
+		Assert.assertArrayEquals(expected.getContent(), actual.getContent());
+	}
+
+}
@@ -0,0 +1,60 @@
+package i5.las2peer.services.fileService;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HotListTest {
+
+	@Test
+	public void testRefresh() {
+		HotList list = new HotList();
+		Assert.assertTrue(list.refresh("a", 1, 100, 2));
+		Assert.assertTrue(list.refresh("b", 1, 100, 2));
+		// the list is full, new files are not added
+		Assert.assertFalse(list.refresh("c", 1, 100, 2));
+		Assert.assertFalse(list.contains("c"));
+		// listed files are refreshed anyway
+		Assert.assertFalse(list.refresh("a", 1, 100, 2));
+		Assert.assertTrue(list.refresh("a", 1, 200, 2));
+		Assert.assertTrue(list.refresh("a", 2, 200, 2));
+		// an older version known to another node is ignored
+		Assert.assertFalse(list.refresh("a", 1, 150, 2));
+		HotList.Entry entry = entry(list, "a");
+		Assert.assertEquals(2, entry.getLastModified());
+		Assert.assertEquals(200, entry.getExpires());
+	}
+
+	@Test
+	public void testUpdate() {
+		HotList list = new HotList();
+		Assert.assertFalse(list.update("a", 2));
+		list.refresh("a", 1, 100, 10);
+		Assert.assertTrue(list.update("a", 2));
+		Assert.assertFalse(list.update("a", 2));
+		Assert.assertEquals(2, entry(list, "a").getLastModified());
+	}
+
+	@Test
+	public void testExpireAndRemove() {
+		HotList list = new HotList();
+		list.refresh("a", 1, 100, 10);
+		list.refresh("b", 1, 200, 10);
+		Assert.assertFalse(list.expire(99));
+		Assert.assertTrue(list.expire(100));
+		Assert.assertFalse(list.contains("a"));
+		Assert.assertTrue(list.contains("b"));
+		Assert.assertTrue(list.remove("b"));
+		Assert.assertFalse(list.remove("b"));
+		Assert.assertTrue(list.getEntries().isEmpty());
+	}
+
+	private static HotList.Entry entry(HotList list, String identifier) {
+		for (HotList.Entry entry : list.getEntries()) {
+			if (entry.getIdentifier().equals(identifier)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,70 @@
+package i5.las2peer.services.fileService;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ImageVariantsTest {
+
+	@Test
+	public void testRender() throws Exception {
+		ImageVariants variants = new ImageVariants(1, 4, 1000, 1000000, 10000);
+		ImageVariants.Spec spec = variants.spec(50, 0, "jpg", "image/png");
+		Assert.assertEquals("image/jpeg", spec.getMimeType());
+		BufferedImage variant = ImageIO.read(new ByteArrayInputStream(variants.render(png(200, 100), spec)));
+		// the aspect ratio is kept
+		Assert.assertEquals(50, variant.getWidth());
+		Assert.assertEquals(25, variant.getHeight());
+		// never enlarged
+		variant = ImageIO.read(new ByteArrayInputStream(variants.render(png(20, 10), spec)));
+		Assert.assertEquals(20, variant.getWidth());
+	}
+
+	@Test
+	public void testSourceTooLarge() throws Exception {
+		ImageVariants variants = new ImageVariants(1, 4, 1000, 10000, 10000);
+		ImageVariants.Spec spec = variants.spec(50, 50, null, "image/png");
+		variants.render(png(100, 100), spec);
+		try {
+			variants.render(png(101, 100), spec);
+			Assert.fail("source beyond the pixel limit decoded");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("10100 pixels"));
+		}
+	}
+
+	@Test
+	public void testInvalidSpec() throws Exception {
+		ImageVariants variants = new ImageVariants(1, 4, 1000, 10000, 10000);
+		try {
+			variants.spec(50, 50, null, "text/plain");
+			Assert.fail("variant of a text file accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			variants.spec(1001, 50, null, "image/png");
+			Assert.fail("width beyond the maximum dimension accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			variants.render(new byte[] { 1, 2, 3 }, variants.spec(50, 50, null, "image/png"));
+			Assert.fail("corrupt source decoded");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private static byte[] png(int width, int height) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", out);
+		return out.toByteArray();
+	}
+
+}
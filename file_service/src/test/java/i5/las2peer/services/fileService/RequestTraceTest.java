@@ -0,0 +1,89 @@
+package i5.las2peer.services.fileService;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RequestTraceTest {
+
+	@After
+	public void endTrace() {
+		RequestTrace.end();
+	}
+
+	@Test
+	public void testWithoutTrace() {
+		try (RequestTrace.Span span = RequestTrace.span("fetch")) {
+			Assert.assertNotNull(span);
+		}
+		Assert.assertNull(RequestTrace.end());
+	}
+
+	@Test
+	public void testNesting() {
+		RequestTrace.begin("getFile", "a.png");
+		try (RequestTrace.Span fetch = RequestTrace.span("fetch")) {
+			try (RequestTrace.Span envelope = RequestTrace.span("envelope")) {
+				// nested stage
+			}
+			try (RequestTrace.Span deserialize = RequestTrace.span("deserialize")) {
+				// nested stage
+			}
+		}
+		try (RequestTrace.Span write = RequestTrace.span("write")) {
+			// top level stage
+		}
+		RequestTrace trace = RequestTrace.end();
+		Assert.assertEquals("getFile", trace.getOperation());
+		assertMatches("getFile a.png \\d+ ms: fetch \\d+ ms \\(envelope \\d+ ms, deserialize \\d+ ms\\), write \\d+ ms",
+				trace.toString());
+		// the trace is bound to the thread until it ends
+		Assert.assertNull(RequestTrace.end());
+	}
+
+	@Test
+	public void testSpanClosedByException() {
+		RequestTrace.begin("storeFile", "a.txt");
+		try (RequestTrace.Span span = RequestTrace.span("store.file")) {
+			throw new IllegalStateException("store failed");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try (RequestTrace.Span span = RequestTrace.span("store.index")) {
+			// must not be nested under the failed stage
+		}
+		assertMatches("storeFile a.txt \\d+ ms: store.file \\d+ ms, store.index \\d+ ms",
+				RequestTrace.end().toString());
+	}
+
+	@Test
+	public void testUnfinishedSpan() {
+		RequestTrace.begin("getFile", null);
+		RequestTrace.span("fetch");
+		RequestTrace.span("write").close();
+		assertMatches("getFile \\d+ ms: fetch unfinished \\(write \\d+ ms\\)", RequestTrace.end().toString());
+	}
+
+	@Test
+	public void testJson() {
+		RequestTrace.begin("getFile", "a.png");
+		try (RequestTrace.Span fetch = RequestTrace.span("fetch")) {
+			RequestTrace.span("envelope").close();
+		}
+		Map<String, Object> json = RequestTrace.end().toJsonObject();
+		Assert.assertEquals("getFile", json.get("operation"));
+		Assert.assertEquals("a.png", json.get("target"));
+		List<?> stages = (List<?>) json.get("stages");
+		Assert.assertEquals(2, stages.size());
+		Assert.assertEquals("envelope", ((Map<?, ?>) stages.get(1)).get("stage"));
+		Assert.assertEquals(1, ((Map<?, ?>) stages.get(1)).get("depth"));
+	}
+
+	private static void assertMatches(String regex, String actual) {
+		Assert.assertTrue(actual + " does not match " + regex, actual.matches(regex));
+	}
+
+}
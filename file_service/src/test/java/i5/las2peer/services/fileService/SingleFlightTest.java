@@ -0,0 +1,111 @@
+package i5.las2peer.services.fileService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+	private static final int CALLERS = 8;
+
+	private final List<Thread> threads = new CopyOnWriteArrayList<>();
+	private final ExecutorService callers = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable);
+		threads.add(thread);
+		return thread;
+	});
+
+	@After
+	public void stopCallers() {
+		callers.shutdownNow();
+	}
+
+	@Test
+	public void testConcurrentLoadsAreCoalesced() throws Exception {
+		SingleFlight<String, String> flight = new SingleFlight<>();
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<Future<String>> results = new ArrayList<>();
+		results.add(callers.submit(() -> flight.execute("a", () -> {
+			loads.incrementAndGet();
+			started.countDown();
+			release.await();
+			return "value of a";
+		})));
+		Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+		for (int i = 1; i < CALLERS; i++) {
+			results.add(callers.submit(() -> flight.execute("a", () -> {
+				loads.incrementAndGet();
+				return "second load";
+			})));
+		}
+		// other keys are loaded on their own
+		Assert.assertEquals("value of b", flight.execute("b", () -> "value of b"));
+		awaitWaiting(CALLERS);
+		release.countDown();
+		for (Future<String> result : results) {
+			Assert.assertEquals("value of a", result.get(10, TimeUnit.SECONDS));
+		}
+		Assert.assertEquals(1, loads.get());
+		Assert.assertEquals(0, flight.size());
+		// results are not cached
+		Assert.assertEquals("second load", flight.execute("a", () -> "second load"));
+	}
+
+	@Test
+	public void testErrorIsShared() throws Exception {
+		SingleFlight<String, String> flight = new SingleFlight<>();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<Future<String>> results = new ArrayList<>();
+		results.add(callers.submit(() -> flight.execute("a", () -> {
+			started.countDown();
+			release.await();
+			throw new IOException("load failed");
+		})));
+		Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+		for (int i = 1; i < CALLERS; i++) {
+			results.add(callers.submit(() -> flight.execute("a", () -> "second load")));
+		}
+		awaitWaiting(CALLERS);
+		release.countDown();
+		for (Future<String> result : results) {
+			try {
+				result.get(10, TimeUnit.SECONDS);
+				Assert.fail("error not propagated");
+			} catch (ExecutionException e) {
+				// every caller gets the exception of the loader, not a wrapper
+				Assert.assertTrue(e.getCause() instanceof IOException);
+				Assert.assertEquals("load failed", e.getCause().getMessage());
+			}
+		}
+		// failures are not cached either
+		Assert.assertEquals(0, flight.size());
+		Assert.assertEquals("second load", flight.execute("a", () -> "second load"));
+	}
+
+	// waits until the callers are blocked, the first one in its loader and the others in the flight
+	private void awaitWaiting(int count) throws InterruptedException {
+		for (int i = 0; i < 400; i++) {
+			if (threads.stream().filter(thread -> thread.getState() == Thread.State.WAITING).count() >= count) {
+				return;
+			}
+			Thread.sleep(25);
+		}
+		Assert.fail("callers did not join the flight");
+	}
+
+}
@@ -0,0 +1,65 @@
+package i5.las2peer.services.fileService;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import i5.las2peer.api.Service;
+
+/**
+ * Makes every n-th envelope lookup of a running service instance slow and enables hedged reads, so tests on a test
+ * network can check that hedging hides slow lookups.
+ */
+public class SlowLookups implements EnvelopeExecutor.LookupWrapper {
+
+	private final EnvelopeExecutor executor;
+	private final int every;
+	private final long delayMillis;
+	private final AtomicLong attempts = new AtomicLong();
+
+	private SlowLookups(EnvelopeExecutor executor, int every, long delayMillis) {
+		this.executor = executor;
+		this.every = every;
+		this.delayMillis = delayMillis;
+	}
+
+	/**
+	 * @param service The file service instance.
+	 * @param every Every how many lookup attempts one is slow.
+	 * @param delayMillis The delay of slow attempts.
+	 * @param hedgeMaxExtraPercent The share of extra lookups for hedging, like the service property.
+	 * @return Returns the installed wrapper.
+	 */
+	public static SlowLookups install(Service service, int every, long delayMillis, int hedgeMaxExtraPercent) {
+		EnvelopeExecutor executor = ((FileService) service).getEnvelopeExecutor();
+		SlowLookups slowLookups = new SlowLookups(executor, every, delayMillis);
+		executor.setHedgeShare(hedgeMaxExtraPercent / 100.0);
+		executor.wrapLookups(slowLookups);
+		return slowLookups;
+	}
+
+	@Override
+	public <T> EnvelopeExecutor.EnvelopeCall<T> wrap(EnvelopeExecutor.EnvelopeCall<T> call) {
+		boolean slow = attempts.incrementAndGet() % every == 0;
+		return context -> {
+			if (slow) {
+				Thread.sleep(delayMillis);
+			}
+			return call.call(context);
+		};
+	}
+
+	/**
+	 * @return Returns the number of hedged lookups of the service so far.
+	 */
+	public long getHedgeCount() {
+		return executor.getHedgeCount();
+	}
+
+	/**
+	 * Runs lookups unwrapped and without hedging again.
+	 */
+	public void remove() {
+		executor.wrapLookups(null);
+		executor.setHedgeShare(0);
+	}
+
+}
@@ -0,0 +1,54 @@
+package i5.las2peer.services.fileService;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TraceFilterTest {
+
+	@After
+	public void endTrace() {
+		RequestTrace.end();
+	}
+
+	@Test
+	public void testResponseWithEntity() {
+		RequestTrace.begin("getFile", "a.png");
+		new TraceFilter().filter(null, response(true));
+		// the trace is finished once the entity is written
+		Assert.assertNotNull(RequestTrace.end());
+	}
+
+	@Test
+	public void testWithoutTrace() throws Exception {
+		TraceFilter filter = new TraceFilter();
+		filter.filter(null, response(false));
+		AtomicBoolean proceeded = new AtomicBoolean();
+		filter.aroundWriteTo((WriterInterceptorContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { WriterInterceptorContext.class }, (proxy, method, args) -> {
+					if (method.getName().equals("proceed")) {
+						proceeded.set(true);
+					}
+					return null;
+				}));
+		Assert.assertTrue(proceeded.get());
+		Assert.assertNull(RequestTrace.end());
+	}
+
+	private ContainerResponseContext response(boolean hasEntity) {
+		return (ContainerResponseContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { ContainerResponseContext.class }, (proxy, method, args) -> {
+					if (method.getName().equals("hasEntity")) {
+						return hasEntity;
+					}
+					return null;
+				});
+	}
+
+}
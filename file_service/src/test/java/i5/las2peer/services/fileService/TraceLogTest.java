@@ -0,0 +1,53 @@
+package i5.las2peer.services.fileService;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+
+public class TraceLogTest {
+
+	@Test
+	public void testExport() throws Exception {
+		Path exportFile = Files.createTempFile("traces", ".jsonl");
+		try {
+			TraceLog log = new TraceLog(0, exportFile);
+			for (String target : new String[] { "a.png", "b.png" }) {
+				RequestTrace.begin("getFile", target);
+				RequestTrace.span("fetch").close();
+				log.complete(RequestTrace.end());
+			}
+			List<String> lines = null;
+			for (int i = 0; i < 200; i++) {
+				lines = Files.readAllLines(exportFile, StandardCharsets.UTF_8);
+				if (lines.size() == 2) {
+					break;
+				}
+				Thread.sleep(25);
+			}
+			Assert.assertEquals(2, lines.size());
+			// one JSON object per line, in order
+			JSONObject first = (JSONObject) new JSONParser(JSONParser.MODE_PERMISSIVE).parse(lines.get(0));
+			Assert.assertEquals("a.png", first.get("target"));
+			JSONObject second = (JSONObject) new JSONParser(JSONParser.MODE_PERMISSIVE).parse(lines.get(1));
+			Assert.assertEquals("b.png", second.get("target"));
+		} finally {
+			Files.deleteIfExists(exportFile);
+		}
+	}
+
+	@Test
+	public void testWithoutExport() {
+		TraceLog log = new TraceLog(1, null);
+		RequestTrace.begin("getFile", "a.png");
+		// logged as slow request, nothing else happens
+		log.complete(RequestTrace.end());
+	}
+
+}
@@ -0,0 +1,122 @@
+package i5.las2peer.services.fileService;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UploadSessionTest {
+
+	private static final byte[] CONTENT = "Hello chunked World!".getBytes(StandardCharsets.UTF_8);
+
+	@Test
+	public void testChunksInAnyOrder() throws Exception {
+		UploadSession session = session();
+		Assert.assertEquals(10, session.write(10, chunk(10, 20)));
+		Assert.assertFalse(session.isComplete());
+		// overlapping and repeated chunks are merged
+		Assert.assertEquals(8, session.write(0, chunk(0, 8)));
+		Assert.assertEquals(6, session.write(5, chunk(5, 11)));
+		Assert.assertTrue(session.isComplete());
+		Assert.assertArrayEquals(CONTENT, session.getContent());
+		Assert.assertEquals("[[0,20]]", session.toJsonObject().get("received").toString().replace(" ", ""));
+	}
+
+	@Test
+	public void testInvalidChunks() throws Exception {
+		UploadSession session = session();
+		try {
+			session.write(-1, chunk(0, 1));
+			Assert.fail("negative offset accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			session.write(15, new ByteArrayInputStream(new byte[10]));
+			Assert.fail("chunk beyond the announced size accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		Assert.assertFalse(session.isComplete());
+	}
+
+	@Test
+	public void testCommit() throws Exception {
+		UploadSession session = session();
+		session.write(0, chunk(0, 20));
+		Assert.assertTrue(session.markCommitted());
+		Assert.assertFalse(session.markCommitted());
+		// the content must not change while it is stored
+		try {
+			session.write(0, new ByteArrayInputStream(new byte[20]));
+			Assert.fail("chunk accepted after commit");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		Assert.assertArrayEquals(CONTENT, session.getContent());
+		// a failed commit can be retried and chunks are accepted again
+		session.resetCommitted();
+		session.write(0, chunk(0, 5));
+		Assert.assertTrue(session.markCommitted());
+	}
+
+	@Test
+	public void testCommitDuringWrite() throws Exception {
+		UploadSession session = session();
+		session.write(0, chunk(0, 20));
+		CountDownLatch reading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		// a retried chunk that is still being received
+		InputStream slowChunk = new InputStream() {
+			private final InputStream in = chunk(0, 20);
+
+			@Override
+			public int read() throws IOException {
+				reading.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return in.read();
+			}
+		};
+		CompletableFuture<Integer> write = CompletableFuture.supplyAsync(() -> {
+			try {
+				return session.write(0, slowChunk);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		Assert.assertTrue(reading.await(10, TimeUnit.SECONDS));
+		Assert.assertFalse(session.markCommitted());
+		release.countDown();
+		Assert.assertEquals(Integer.valueOf(20), write.get(10, TimeUnit.SECONDS));
+		Assert.assertTrue(session.markCommitted());
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		UploadSession session = session();
+		Assert.assertFalse(session.isExpired(60000));
+		Thread.sleep(20);
+		Assert.assertTrue(session.isExpired(10));
+		session.touch();
+		Assert.assertFalse(session.isExpired(10));
+	}
+
+	private static UploadSession session() {
+		return new UploadSession("agent", "a.txt", "a.txt", "text/plain", null, null, true, CONTENT.length);
+	}
+
+	private static InputStream chunk(int start, int end) {
+		return new ByteArrayInputStream(CONTENT, start, end - start);
+	}
+
+}
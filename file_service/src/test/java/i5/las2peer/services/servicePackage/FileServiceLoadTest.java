@@ -0,0 +1,333 @@
+package i5.las2peer.services.servicePackage;
+
+import java.io.File;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import i5.las2peer.api.p2p.ServiceNameVersion;
+import i5.las2peer.p2p.PastryNodeImpl;
+import i5.las2peer.security.Mediator;
+import i5.las2peer.security.ServiceAgentImpl;
+import i5.las2peer.security.UserAgentImpl;
+import i5.las2peer.services.fileService.FileService;
+import i5.las2peer.testing.TestSuite;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+/**
+ * Reproducible load test for the file service on a local network started with {@link TestSuite#launchNetwork(int)}.
+ * <p>
+ * The test is skipped unless the system property {@code loadtest.enabled} is set to {@code true}, e. g.
+ * {@code ./gradlew test --tests '*FileServiceLoadTest' -Dloadtest.enabled=true -Dloadtest.users=32}. All parameters
+ * are read from {@code loadtest.*} system properties:
+ * <ul>
+ * <li>{@code nodes} - number of local nodes (default 3), the service runs on node 0, users on the others</li>
+ * <li>{@code users} - number of concurrent user agents (default 8)</li>
+ * <li>{@code opsPerUser} - operations each user performs (default 50)</li>
+ * <li>{@code mix} - weighted operation mix (default {@code store=2,index=2,fetch=5,list=1})</li>
+ * <li>{@code minSize} / {@code maxSize} - bounds of the log-uniform file size distribution in bytes</li>
+ * <li>{@code preload} - number of files stored before the measurement starts (default 20)</li>
+ * <li>{@code seed} - random seed, a run with the same parameters issues the same operation sequence per user</li>
+ * <li>{@code report} - path of the JSON report (default {@code build/loadtest/report.json})</li>
+ * </ul>
+ * Operation {@code store} uploads a file excluded from the index, {@code index} uploads a file that is listed on the
+ * index and therefore contends on the index envelope, {@code fetch} downloads a random known file and {@code list}
+ * reads the whole file index.
+ */
+public class FileServiceLoadTest {
+
+	private static final String PROPERTY_PREFIX = "loadtest.";
+	private static final String[] OPERATIONS = { "store", "index", "fetch", "list" };
+
+	private int nodeCount;
+	private int userCount;
+	private int opsPerUser;
+	private int[] mixWeights;
+	private int minSize;
+	private int maxSize;
+	private int preload;
+	private long seed;
+	private File reportFile;
+
+	private List<PastryNodeImpl> nodes;
+
+	@Before
+	public void startNetwork() throws Exception {
+		Assume.assumeTrue("load test disabled, set -Dloadtest.enabled=true",
+				Boolean.parseBoolean(property("enabled", "false")));
+		nodeCount = Math.max(2, Integer.parseInt(property("nodes", "3")));
+		userCount = Integer.parseInt(property("users", "8"));
+		opsPerUser = Integer.parseInt(property("opsPerUser", "50"));
+		mixWeights = parseMix(property("mix", "store=2,index=2,fetch=5,list=1"));
+		minSize = Integer.parseInt(property("minSize", "128"));
+		maxSize = Integer.parseInt(property("maxSize", "1000000"));
+		preload = Math.max(1, Integer.parseInt(property("preload", "20")));
+		seed = Long.parseLong(property("seed", "42"));
+		reportFile = new File(property("report", "build/loadtest/report.json"));
+		System.out.println("starting network with " + nodeCount + " nodes...");
+		nodes = TestSuite.launchNetwork(nodeCount);
+	}
+
+	@After
+	public void stopNetwork() {
+		if (nodes != null) {
+			for (PastryNodeImpl node : nodes) {
+				node.shutDown();
+			}
+		}
+	}
+
+	@Test
+	public void testLoad() {
+		try {
+			ServiceNameVersion nameVersion = new ServiceNameVersion(FileService.class.getName(),
+					FileService.API_VERSION);
+			ServiceAgentImpl service = ServiceAgentImpl.createServiceAgent(nameVersion, "test-service-pass");
+			service.unlock("test-service-pass");
+			nodes.get(0).storeAgent(service);
+			nodes.get(0).registerReceiver(service);
+
+			// spread user agents round robin over all nodes except the service node
+			System.out.println("creating " + userCount + " user agents...");
+			List<Mediator> mediators = new ArrayList<>();
+			for (int i = 0; i < userCount; i++) {
+				UserAgentImpl user = UserAgentImpl.createUserAgent("load-pass-" + i);
+				user.unlock("load-pass-" + i);
+				PastryNodeImpl node = nodes.get(1 + i % (nodeCount - 1));
+				node.storeAgent(user);
+				mediators.add(node.createMediatorForAgent(user));
+			}
+
+			List<String> identifiers = Collections.synchronizedList(new ArrayList<>());
+			Random preloadRandom = new Random(seed);
+			for (int i = 0; i < preload; i++) {
+				String identifier = "load/preload-" + i;
+				mediators.get(i % userCount).invoke(nameVersion, "storeFile",
+						new Serializable[] { identifier, identifier, randomContent(preloadRandom), "text/plain",
+								"", "preloaded", true },
+						false);
+				identifiers.add(identifier);
+			}
+
+			@SuppressWarnings("unchecked")
+			List<Long>[] latencies = new List[OPERATIONS.length];
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i] = Collections.synchronizedList(new ArrayList<>());
+			}
+			AtomicLong errors = new AtomicLong();
+			AtomicLong bytesStored = new AtomicLong();
+			HeapSampler heap = new HeapSampler();
+			heap.start();
+
+			System.out.println("running " + userCount * opsPerUser + " operations...");
+			ExecutorService executor = Executors.newFixedThreadPool(userCount);
+			CountDownLatch done = new CountDownLatch(userCount);
+			long start = System.nanoTime();
+			for (int u = 0; u < userCount; u++) {
+				final int user = u;
+				executor.execute(() -> {
+					Random random = new Random(seed + user + 1);
+					Mediator mediator = mediators.get(user);
+					try {
+						for (int n = 0; n < opsPerUser; n++) {
+							int op = pickOperation(random);
+							long opStart = System.nanoTime();
+							try {
+								if (op == 0 || op == 1) {
+									String identifier = "load/u" + user + "/f" + n;
+									byte[] content = randomContent(random);
+									mediator.invoke(nameVersion, "storeFile", new Serializable[] { identifier,
+											identifier, content, "application/octet-stream", "", "", op == 1 },
+											false);
+									identifiers.add(identifier);
+									bytesStored.addAndGet(content.length);
+								} else if (op == 2) {
+									String identifier = identifiers.get(random.nextInt(identifiers.size()));
+									mediator.invoke(nameVersion, "fetchFile", new Serializable[] { identifier },
+											false);
+								} else {
+									mediator.invoke(nameVersion, "getFileIndex", new Serializable[] {}, false);
+								}
+								latencies[op].add(System.nanoTime() - opStart);
+							} catch (Exception e) {
+								errors.incrementAndGet();
+								System.err.println(OPERATIONS[op] + " failed: " + e);
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				});
+			}
+			done.await();
+			long elapsedNanos = System.nanoTime() - start;
+			executor.shutdown();
+			heap.stop();
+
+			JSONObject report = new JSONObject();
+			JSONObject config = new JSONObject();
+			config.put("nodes", nodeCount);
+			config.put("users", userCount);
+			config.put("opsPerUser", opsPerUser);
+			config.put("mix", property("mix", "store=2,index=2,fetch=5,list=1"));
+			config.put("minSize", minSize);
+			config.put("maxSize", maxSize);
+			config.put("preload", preload);
+			config.put("seed", seed);
+			report.put("config", config);
+			long totalOps = 0;
+			JSONArray operations = new JSONArray();
+			for (int i = 0; i < OPERATIONS.length; i++) {
+				long[] sorted = toSortedArray(latencies[i]);
+				totalOps += sorted.length;
+				JSONObject stats = new JSONObject();
+				stats.put("operation", OPERATIONS[i]);
+				stats.put("count", sorted.length);
+				stats.put("throughputPerSecond", sorted.length * 1e9 / elapsedNanos);
+				stats.put("p50Millis", percentile(sorted, 50) / 1e6);
+				stats.put("p99Millis", percentile(sorted, 99) / 1e6);
+				stats.put("maxMillis", sorted.length > 0 ? sorted[sorted.length - 1] / 1e6 : 0);
+				operations.add(stats);
+			}
+			report.put("operations", operations);
+			report.put("elapsedMillis", elapsedNanos / 1e6);
+			report.put("throughputPerSecond", totalOps * 1e9 / elapsedNanos);
+			report.put("errors", errors.get());
+			report.put("bytesStored", bytesStored.get());
+			report.put("heapPeakBytes", heap.getPeak());
+			report.put("heapUsedAfterBytes", heap.getLast());
+
+			File parent = reportFile.getAbsoluteFile().getParentFile();
+			if (parent != null) {
+				parent.mkdirs();
+			}
+			Files.write(reportFile.toPath(), report.toJSONString().getBytes(StandardCharsets.UTF_8));
+			System.out.println("load test report written to " + reportFile.getAbsolutePath());
+			System.out.println(report.toJSONString());
+			Assert.assertTrue("all operations failed", totalOps > 0);
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail(e.toString());
+		}
+	}
+
+	private int pickOperation(Random random) {
+		int total = 0;
+		for (int weight : mixWeights) {
+			total += weight;
+		}
+		int pick = random.nextInt(total);
+		for (int i = 0; i < mixWeights.length; i++) {
+			pick -= mixWeights[i];
+			if (pick < 0) {
+				return i;
+			}
+		}
+		return mixWeights.length - 1;
+	}
+
+	/**
+	 * Creates random content with a log-uniform size between minSize and maxSize, so small files dominate like in
+	 * typical web deployments while large uploads still occur.
+	 */
+	private byte[] randomContent(Random random) {
+		double logMin = Math.log(Math.max(1, minSize));
+		double logMax = Math.log(Math.max(minSize, maxSize));
+		int size = (int) Math.exp(logMin + random.nextDouble() * (logMax - logMin));
+		byte[] content = new byte[Math.max(1, size)];
+		random.nextBytes(content);
+		return content;
+	}
+
+	private static int[] parseMix(String mix) {
+		int[] weights = new int[OPERATIONS.length];
+		for (String part : mix.split(",")) {
+			String[] keyValue = part.trim().split("=");
+			int index = Arrays.asList(OPERATIONS).indexOf(keyValue[0].trim());
+			if (index < 0 || keyValue.length != 2) {
+				throw new IllegalArgumentException("Invalid operation mix entry '" + part + "'");
+			}
+			weights[index] = Integer.parseInt(keyValue[1].trim());
+		}
+		return weights;
+	}
+
+	private static long[] toSortedArray(List<Long> values) {
+		long[] result;
+		synchronized (values) {
+			result = new long[values.size()];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = values.get(i);
+			}
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	private static long percentile(long[] sorted, int percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+	}
+
+	private static String property(String name, String defaultValue) {
+		return System.getProperty(PROPERTY_PREFIX + name, defaultValue);
+	}
+
+	/**
+	 * Samples the used heap periodically while the load test is running.
+	 */
+	private static class HeapSampler {
+
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		private volatile long peak;
+		private volatile long last;
+
+		public void start() {
+			scheduler.scheduleAtFixedRate(this::sample, 0, 100, TimeUnit.MILLISECONDS);
+		}
+
+		public void stop() {
+			scheduler.shutdownNow();
+			sample();
+		}
+
+		private void sample() {
+			last = memory.getHeapMemoryUsage().getUsed();
+			peak = Math.max(peak, last);
+		}
+
+		public long getPeak() {
+			return peak;
+		}
+
+		public long getLast() {
+			return last;
+		}
+
+	}
+
+}
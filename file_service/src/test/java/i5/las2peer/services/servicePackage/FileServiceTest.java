@@ -3,8 +3,10 @@ package i5.las2peer.services.servicePackage;
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -18,7 +20,9 @@ import i5.las2peer.security.GroupAgentImpl;
 import i5.las2peer.security.Mediator;
 import i5.las2peer.security.ServiceAgentImpl;
 import i5.las2peer.security.UserAgentImpl;
+import i5.las2peer.services.fileService.BlockDelta;
 import i5.las2peer.services.fileService.FileService;
+import i5.las2peer.services.fileService.SlowLookups;
 import i5.las2peer.testing.TestSuite;
 
 public class FileServiceTest {
@@ -86,12 +90,103 @@ public class FileServiceTest {
 			Assert.assertEquals(TEST_MIME, map.get("mimeType"));
 			Assert.assertEquals(userA.getIdentifier(), map.get("ownerId"));
 			Assert.assertEquals(TEST_DESCRIPTION, map.get("description"));
+
+			// UserA fetches the same file by its content hash
+			System.out.println("downloading file by content hash");
+			Map<String, Object> blob = awaitDigest(mediatorA, nameVersion, (String) map.get("sha256"));
+			Assert.assertEquals(TEST_IDENTIFIER, blob.get("identifier"));
+			Assert.assertArrayEquals(TEST_CONTENT, (byte[]) blob.get("content"));
 		} catch (Exception e) {
 			e.printStackTrace();
 			Assert.fail(e.toString());
 		}
 	}
 
+	@Test
+	public void testFetchByDigest() {
+		try {
+			// create agents
+			System.out.println("creating agents...");
+			ServiceNameVersion nameVersion = new ServiceNameVersion(FileService.class.getName(),
+					FileService.API_VERSION);
+			ServiceAgentImpl service = ServiceAgentImpl.createServiceAgent(nameVersion, "test-service-pass");
+			UserAgentImpl userA = UserAgentImpl.createUserAgent("test-pass-a");
+
+			// start service instance on node 0
+			System.out.println("starting service on node 0");
+			service.unlock("test-service-pass");
+			nodes.get(0).storeAgent(service);
+			nodes.get(0).registerReceiver(service);
+
+			// UserA login at node 1
+			userA.unlock("test-pass-a");
+			nodes.get(1).storeAgent(userA);
+			Mediator mediatorA = nodes.get(1).createMediatorForAgent(userA);
+
+			// UserA uploads a file, which becomes available by its content hash
+			System.out.println("uploading file");
+			mediatorA.invoke(nameVersion, "storeFile",
+					new Serializable[] { TEST_IDENTIFIER, TEST_NAME, TEST_CONTENT, TEST_MIME, TEST_DESCRIPTION },
+					false);
+			@SuppressWarnings("unchecked")
+			Map<String, Object> first = (Map<String, Object>) mediatorA.invoke(nameVersion, "fetchFile",
+					new Serializable[] { TEST_IDENTIFIER }, false);
+			String firstSha256 = (String) first.get("sha256");
+			Assert.assertArrayEquals(TEST_CONTENT, (byte[]) awaitDigest(mediatorA, nameVersion, firstSha256)
+					.get("content"));
+
+			// after an overwrite the pointer to the old content leads to a file with other content
+			System.out.println("overwriting file");
+			mediatorA.invoke(nameVersion, "storeFile",
+					new Serializable[] { TEST_IDENTIFIER, TEST_NAME, TEST_CONTENT2, TEST_MIME, TEST_DESCRIPTION },
+					false);
+			try {
+				mediatorA.invoke(nameVersion, "fetchFileByDigest", new Serializable[] { firstSha256 }, false);
+				Assert.fail("Exception expected");
+			} catch (Exception e) {
+				// expected
+			}
+			@SuppressWarnings("unchecked")
+			Map<String, Object> second = (Map<String, Object>) mediatorA.invoke(nameVersion, "fetchFile",
+					new Serializable[] { TEST_IDENTIFIER }, false);
+			String secondSha256 = (String) second.get("sha256");
+			Assert.assertArrayEquals(TEST_CONTENT2, (byte[]) awaitDigest(mediatorA, nameVersion, secondSha256)
+					.get("content"));
+
+			// after a delete no file has the content anymore
+			System.out.println("deleting file");
+			mediatorA.invoke(nameVersion, "deleteFile", new Serializable[] { TEST_IDENTIFIER }, false);
+			try {
+				mediatorA.invoke(nameVersion, "fetchFileByDigest", new Serializable[] { secondSha256 }, false);
+				Assert.fail("Exception expected");
+			} catch (Exception e) {
+				// expected
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail(e.toString());
+		}
+	}
+
+	// the pointer from content hash to file is written in the background after an upload
+	private static Map<String, Object> awaitDigest(Mediator mediator, ServiceNameVersion nameVersion, String sha256)
+			throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (true) {
+			try {
+				@SuppressWarnings("unchecked")
+				Map<String, Object> file = (Map<String, Object>) mediator.invoke(nameVersion, "fetchFileByDigest",
+						new Serializable[] { sha256 }, false);
+				return file;
+			} catch (Exception e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
 	@Test
 	public void testFileIndex() {
 		try {
@@ -151,6 +246,304 @@ public class FileServiceTest {
 		}
 	}
 
+	@Test
+	public void testOwnerFileIndex() {
+		try {
+			// create agents
+			System.out.println("creating agents...");
+			ServiceNameVersion nameVersion = new ServiceNameVersion(FileService.class.getName(),
+					FileService.API_VERSION);
+			ServiceAgentImpl service = ServiceAgentImpl.createServiceAgent(nameVersion, "test-service-pass");
+			UserAgentImpl userA = UserAgentImpl.createUserAgent("test-pass-a");
+			UserAgentImpl userB = UserAgentImpl.createUserAgent("test-pass-b");
+
+			// start service instance on node 0
+			System.out.println("starting service on node 0");
+			service.unlock("test-service-pass");
+			nodes.get(0).storeAgent(service);
+			nodes.get(0).registerReceiver(service);
+
+			// UserA and UserB login at node 1
+			userA.unlock("test-pass-a");
+			nodes.get(1).storeAgent(userA);
+			Mediator mediatorA = nodes.get(1).createMediatorForAgent(userA);
+			userB.unlock("test-pass-b");
+			nodes.get(1).storeAgent(userB);
+			Mediator mediatorB = nodes.get(1).createMediatorForAgent(userB);
+
+			// UserA uploads two files, UserB one
+			System.out.println("uploading files");
+			mediatorA.invoke(nameVersion, "storeFile",
+					new Serializable[] { "a1.txt", TEST_NAME, TEST_CONTENT, TEST_MIME, TEST_DESCRIPTION }, false);
+			mediatorA.invoke(nameVersion, "storeFile",
+					new Serializable[] { "a2.txt", TEST_NAME, TEST_CONTENT, TEST_MIME, TEST_DESCRIPTION }, false);
+			mediatorB.invoke(nameVersion, "storeFile",
+					new Serializable[] { "b1.txt", TEST_NAME, TEST_CONTENT, TEST_MIME, TEST_DESCRIPTION }, false);
+
+			// each user lists only the own files, the partitions are updated in the background
+			System.out.println("fetching owner file indexes");
+			List<Map<String, Object>> filesA = awaitOwnerFiles(mediatorA, nameVersion, "", 2);
+			Assert.assertEquals(2, filesA.size());
+			for (Map<String, Object> map : filesA) {
+				Assert.assertEquals(userA.getIdentifier(), map.get("ownerId"));
+			}
+			List<Map<String, Object>> filesB = awaitOwnerFiles(mediatorA, nameVersion, userB.getIdentifier(), 1);
+			Assert.assertEquals(1, filesB.size());
+			Assert.assertEquals("b1.txt", filesB.get(0).get("identifier"));
+
+			// pages follow the order of the file index
+			@SuppressWarnings("unchecked")
+			ArrayList<Map<String, Object>> page = (ArrayList<Map<String, Object>>) mediatorA.invoke(nameVersion,
+					"getOwnerFileIndex", new Serializable[] { "", 1, 1 }, false);
+			Assert.assertEquals(1, page.size());
+			Assert.assertEquals(filesA.get(1).get("identifier"), page.get(0).get("identifier"));
+
+			// deleted files disappear from the listing of their owner
+			System.out.println("deleting file");
+			mediatorA.invoke(nameVersion, "deleteFile", new Serializable[] { "a1.txt" }, false);
+			List<Map<String, Object>> filesA2 = awaitOwnerFiles(mediatorA, nameVersion, "", 1);
+			Assert.assertEquals(1, filesA2.size());
+			Assert.assertEquals("a2.txt", filesA2.get(0).get("identifier"));
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail(e.toString());
+		}
+	}
+
+	private static List<Map<String, Object>> awaitOwnerFiles(Mediator mediator, ServiceNameVersion nameVersion,
+			String ownerId, int count) throws Exception {
+		List<Map<String, Object>> files = null;
+		long deadline = System.currentTimeMillis() + 10000;
+		while (System.currentTimeMillis() < deadline) {
+			@SuppressWarnings("unchecked")
+			List<Map<String, Object>> listed = (List<Map<String, Object>>) mediator.invoke(nameVersion,
+					"getOwnerFileIndex", new Serializable[] { ownerId, 0, 0 }, false);
+			files = listed;
+			if (files.size() == count) {
+				break;
+			}
+			Thread.sleep(100);
+		}
+		return files;
+	}
+
+	@Test
+	public void testChanges() {
+		try {
+			// create agents
+			System.out.println("creating agents...");
+			ServiceNameVersion nameVersion = new ServiceNameVersion(FileService.class.getName(),
+					FileService.API_VERSION);
+			ServiceAgentImpl service = ServiceAgentImpl.createServiceAgent(nameVersion, "test-service-pass");
+			UserAgentImpl userA = UserAgentImpl.createUserAgent("test-pass-a");
+
+			// start service instance on node 0
+			System.out.println("starting service on node 0");
+			service.unlock("test-service-pass");
+			nodes.get(0).storeAgent(service);
+			nodes.get(0).registerReceiver(service);
+
+			// UserA login at node 1
+			System.out.println("user a login at node 1");
+			userA.unlock("test-pass-a");
+			nodes.get(1).storeAgent(userA);
+			Mediator mediatorA = nodes.get(1).createMediatorForAgent(userA);
+
+			// start following the changes
+			@SuppressWarnings("unchecked")
+			Map<String, Object> start = (Map<String, Object>) mediatorA.invoke(nameVersion, "getChanges",
+					new Serializable[] { -1L }, false);
+			long sequence = ((Number) start.get("sequence")).longValue();
+			Assert.assertTrue(((List<?>) start.get("changes")).isEmpty());
+
+			// upload and delete a file
+			System.out.println("uploading and deleting file");
+			mediatorA.invoke(nameVersion, "storeFile",
+					new Serializable[] { TEST_IDENTIFIER, TEST_NAME, TEST_CONTENT, TEST_MIME, TEST_DESCRIPTION },
+					false);
+			mediatorA.invoke(nameVersion, "deleteFile", new Serializable[] { TEST_IDENTIFIER }, false);
+
+			// both changes follow the start sequence in order, they are appended in the background
+			System.out.println("fetching changes");
+			Map<String, Object> result = awaitChanges(mediatorA, nameVersion, sequence, 2);
+			Assert.assertEquals(Boolean.FALSE, result.get("reset"));
+			Assert.assertEquals(sequence + 2, ((Number) result.get("sequence")).longValue());
+			List<?> changes = (List<?>) result.get("changes");
+			Assert.assertEquals(2, changes.size());
+			Map<?, ?> upsert = (Map<?, ?>) changes.get(0);
+			Assert.assertEquals("upsert", upsert.get("type"));
+			Assert.assertEquals(TEST_IDENTIFIER, upsert.get("identifier"));
+			Assert.assertEquals(sequence + 1, ((Number) upsert.get("sequence")).longValue());
+			Map<?, ?> delete = (Map<?, ?>) changes.get(1);
+			Assert.assertEquals("delete", delete.get("type"));
+			Assert.assertEquals(TEST_IDENTIFIER, delete.get("identifier"));
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail(e.toString());
+		}
+	}
+
+	private static Map<String, Object> awaitChanges(Mediator mediator, ServiceNameVersion nameVersion, long since,
+			int count) throws Exception {
+		Map<String, Object> result = null;
+		long deadline = System.currentTimeMillis() + 10000;
+		while (System.currentTimeMillis() < deadline) {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> changes = (Map<String, Object>) mediator.invoke(nameVersion, "getChanges",
+					new Serializable[] { since }, false);
+			result = changes;
+			if (((List<?>) result.get("changes")).size() >= count) {
+				break;
+			}
+			Thread.sleep(100);
+		}
+		return result;
+	}
+
+	@Test
+	public void testFileVersions() {
+		try {
+			// create agents
+			System.out.println("creating agents...");
+			ServiceNameVersion nameVersion = new ServiceNameVersion(FileService.class.getName(),
+					FileService.API_VERSION);
+			ServiceAgentImpl service = ServiceAgentImpl.createServiceAgent(nameVersion, "test-service-pass");
+			UserAgentImpl userA = UserAgentImpl.createUserAgent("test-pass-a");
+
+			// start service instance on node 0
+			System.out.println("starting service on node 0");
+			service.unlock("test-service-pass");
+			nodes.get(0).storeAgent(service);
+			nodes.get(0).registerReceiver(service);
+
+			// UserA login at node 1
+			System.out.println("user a login at node 1");
+			userA.unlock("test-pass-a");
+			nodes.get(1).storeAgent(userA);
+			Mediator mediatorA = nodes.get(1).createMediatorForAgent(userA);
+
+			// three versions, each with a small change to the previous one
+			byte[] version1 = new byte[500000];
+			new Random(42).nextBytes(version1);
+			byte[] version2 = version1.clone();
+			version2[250000] ^= 1;
+			byte[] version3 = new byte[version2.length + 10];
+			System.arraycopy(version2, 0, version3, 10, version2.length);
+			System.out.println("uploading three versions");
+			for (byte[] content : new byte[][] { version1, version2, version3 }) {
+				mediatorA.invoke(nameVersion, "storeFile",
+						new Serializable[] { TEST_IDENTIFIER, TEST_NAME, content, TEST_MIME, TEST_DESCRIPTION }, false);
+				Thread.sleep(10);
+			}
+
+			// listed newest first, only the latest is current, replaced versions are archived in the background
+			List<Map<String, Object>> versions = awaitVersions(mediatorA, nameVersion, 3);
+			Assert.assertEquals(3, versions.size());
+			Assert.assertEquals(Boolean.TRUE, versions.get(0).get("current"));
+			Assert.assertEquals(Boolean.FALSE, versions.get(1).get("current"));
+			Assert.assertEquals((long) version3.length, ((Number) versions.get(0).get("fileSize")).longValue());
+
+			// previous versions are rebuilt from their blocks
+			long oldest = ((Number) versions.get(2).get("version")).longValue();
+			@SuppressWarnings("unchecked")
+			Map<String, Object> fetched = (Map<String, Object>) mediatorA.invoke(nameVersion, "fetchFileVersion",
+					new Serializable[] { TEST_IDENTIFIER, oldest }, false);
+			Assert.assertArrayEquals(version1, (byte[]) fetched.get("content"));
+
+			// a deleted file keeps its history
+			System.out.println("deleting file");
+			mediatorA.invoke(nameVersion, "deleteFile", new Serializable[] { TEST_IDENTIFIER }, false);
+			List<Map<String, Object>> deleted = awaitVersions(mediatorA, nameVersion, 3);
+			Assert.assertEquals(3, deleted.size());
+			Assert.assertEquals(Boolean.FALSE, deleted.get(0).get("current"));
+			long latest = ((Number) deleted.get(0).get("version")).longValue();
+			@SuppressWarnings("unchecked")
+			Map<String, Object> restored = (Map<String, Object>) mediatorA.invoke(nameVersion, "fetchFileVersion",
+					new Serializable[] { TEST_IDENTIFIER, latest }, false);
+			Assert.assertArrayEquals(version3, (byte[]) restored.get("content"));
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail(e.toString());
+		}
+	}
+
+	private static List<Map<String, Object>> awaitVersions(Mediator mediator, ServiceNameVersion nameVersion,
+			int count) throws Exception {
+		List<Map<String, Object>> versions = null;
+		long deadline = System.currentTimeMillis() + 10000;
+		while (System.currentTimeMillis() < deadline) {
+			@SuppressWarnings("unchecked")
+			List<Map<String, Object>> listed = (List<Map<String, Object>>) mediator.invoke(nameVersion,
+					"getFileVersions", new Serializable[] { TEST_IDENTIFIER }, false);
+			versions = listed;
+			if (versions.size() >= count) {
+				break;
+			}
+			Thread.sleep(100);
+		}
+		return versions;
+	}
+
+	@Test
+	public void testHedgedReads() {
+		try {
+			// create agents
+			System.out.println("creating agents...");
+			ServiceNameVersion nameVersion = new ServiceNameVersion(FileService.class.getName(),
+					FileService.API_VERSION);
+			ServiceAgentImpl service = ServiceAgentImpl.createServiceAgent(nameVersion, "test-service-pass");
+			UserAgentImpl userA = UserAgentImpl.createUserAgent("test-pass-a");
+
+			// start service instance on node 0
+			System.out.println("starting service on node 0");
+			service.unlock("test-service-pass");
+			nodes.get(0).storeAgent(service);
+			nodes.get(0).registerReceiver(service);
+
+			// UserA login at node 1
+			System.out.println("user a login at node 1");
+			userA.unlock("test-pass-a");
+			nodes.get(1).storeAgent(userA);
+			Mediator mediatorA = nodes.get(1).createMediatorForAgent(userA);
+
+			System.out.println("uploading file");
+			mediatorA.invoke(nameVersion, "storeFile",
+					new Serializable[] { TEST_IDENTIFIER, TEST_NAME, TEST_CONTENT, TEST_MIME, TEST_DESCRIPTION },
+					false);
+
+			// every 40th lookup of the service is delayed, which a hedged read has to hide
+			long injectedDelay = 4000;
+			SlowLookups slowLookups = SlowLookups.install(service.getServiceInstance(), 40, injectedDelay, 10);
+			try {
+				// learn the usual lookup latency, the delayed lookups of this phase are not hedged yet
+				System.out.println("warming up");
+				for (int i = 0; i < 100; i++) {
+					mediatorA.invoke(nameVersion, "fetchFile", new Serializable[] { TEST_IDENTIFIER }, false);
+				}
+
+				// delayed lookups are answered by their hedge
+				System.out.println("measuring hedged reads");
+				long slowest = 0;
+				for (int i = 0; i < 120; i++) {
+					long start = System.currentTimeMillis();
+					@SuppressWarnings("unchecked")
+					Map<String, Object> map = (Map<String, Object>) mediatorA.invoke(nameVersion, "fetchFile",
+							new Serializable[] { TEST_IDENTIFIER }, false);
+					slowest = Math.max(slowest, System.currentTimeMillis() - start);
+					Assert.assertArrayEquals(TEST_CONTENT, (byte[]) map.get("content"));
+				}
+				System.out.println("slowest read took " + slowest + " ms");
+				Assert.assertTrue("slowest read took " + slowest + " ms", slowest < injectedDelay / 2);
+				Assert.assertTrue(slowLookups.getHedgeCount() > 0);
+			} finally {
+				slowLookups.remove();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail(e.toString());
+		}
+	}
+
 	@Test
 	public void testFileShareWithGroup() {
 		try {
@@ -222,6 +615,309 @@ public class FileServiceTest {
 			Assert.assertEquals(TEST_MIME, map2.get("mimeType"));
 			Assert.assertEquals(groupAB.getIdentifier(), map2.get("ownerId"));
 			Assert.assertEquals(TEST_DESCRIPTION, map2.get("description"));
+
+			// a non member can't share with the group, although the group is cached on the node by now
+			System.out.println("user c sharing with foreign group");
+			UserAgentImpl userC = UserAgentImpl.createUserAgent("test-pass-c");
+			userC.unlock("test-pass-c");
+			nodes.get(1).storeAgent(userC);
+			Mediator mediatorC = nodes.get(1).createMediatorForAgent(userC);
+			for (int i = 0; i < 2; i++) {
+				try {
+					mediatorC.invoke(nameVersion, "storeFile", new Serializable[] { TEST_IDENTIFIER, TEST_NAME,
+							TEST_CONTENT, TEST_MIME, groupAB.getIdentifier(), TEST_DESCRIPTION }, false);
+					Assert.fail("Non member shared file with group");
+				} catch (Exception e) {
+					// expected, the group agent can't be unlocked for user c
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail(e.toString());
+		}
+	}
+
+	@Test
+	public void testDeleteFile() {
+		try {
+			// create agents
+			System.out.println("creating agents...");
+			ServiceNameVersion nameVersion = new ServiceNameVersion(FileService.class.getName(),
+					FileService.API_VERSION);
+			ServiceAgentImpl service = ServiceAgentImpl.createServiceAgent(nameVersion, "test-service-pass");
+			UserAgentImpl userA = UserAgentImpl.createUserAgent("test-pass-a");
+			UserAgentImpl userB = UserAgentImpl.createUserAgent("test-pass-b");
+
+			// start service instance on node 0
+			System.out.println("starting service on node 0");
+			service.unlock("test-service-pass");
+			nodes.get(0).storeAgent(service);
+			nodes.get(0).registerReceiver(service);
+
+			// UserA and UserB login at node 1
+			userA.unlock("test-pass-a");
+			nodes.get(1).storeAgent(userA);
+			Mediator mediatorA = nodes.get(1).createMediatorForAgent(userA);
+			userB.unlock("test-pass-b");
+			nodes.get(1).storeAgent(userB);
+			Mediator mediatorB = nodes.get(1).createMediatorForAgent(userB);
+
+			// UserA uploads a file to the network
+			System.out.println("uploading file");
+			mediatorA.invoke(nameVersion, "storeFile",
+					new Serializable[] { TEST_IDENTIFIER, TEST_NAME, TEST_CONTENT, TEST_MIME, TEST_DESCRIPTION },
+					false);
+
+			// UserB is not the owner and must not delete the file
+			System.out.println("deleting file as non owner");
+			try {
+				mediatorB.invoke(nameVersion, "deleteFile", new Serializable[] { TEST_IDENTIFIER }, false);
+				Assert.fail("Exception expected");
+			} catch (Exception e) {
+				// expected
+			}
+
+			// UserA deletes the file
+			System.out.println("deleting file");
+			Assert.assertEquals(Boolean.TRUE,
+					mediatorA.invoke(nameVersion, "deleteFile", new Serializable[] { TEST_IDENTIFIER }, false));
+			Assert.assertEquals(Boolean.FALSE,
+					mediatorA.invoke(nameVersion, "deleteFile", new Serializable[] { TEST_IDENTIFIER }, false));
+
+			// verify: file is gone and not listed on the index
+			try {
+				mediatorA.invoke(nameVersion, "fetchFile", new Serializable[] { TEST_IDENTIFIER }, false);
+				Assert.fail("Exception expected");
+			} catch (Exception e) {
+				// expected
+			}
+			@SuppressWarnings("unchecked")
+			ArrayList<Map<String, Object>> result = (ArrayList<Map<String, Object>>) mediatorA.invoke(nameVersion,
+					"getFileIndex", new Serializable[] {}, false);
+			Assert.assertTrue(result.isEmpty());
+
+			// upload again after delete
+			System.out.println("uploading file again");
+			Assert.assertEquals(Boolean.TRUE, mediatorA.invoke(nameVersion, "storeFile",
+					new Serializable[] { TEST_IDENTIFIER, TEST_NAME, TEST_CONTENT2, TEST_MIME, TEST_DESCRIPTION },
+					false));
+			@SuppressWarnings("unchecked")
+			Map<String, Object> map = (Map<String, Object>) mediatorA.invoke(nameVersion, "fetchFile",
+					new Serializable[] { TEST_IDENTIFIER }, false);
+			Assert.assertArrayEquals(TEST_CONTENT2, (byte[]) map.get("content"));
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail(e.toString());
+		}
+	}
+
+	@Test
+	public void testDeltaUpload() {
+		try {
+			// create agents
+			System.out.println("creating agents...");
+			ServiceNameVersion nameVersion = new ServiceNameVersion(FileService.class.getName(),
+					FileService.API_VERSION);
+			ServiceAgentImpl service = ServiceAgentImpl.createServiceAgent(nameVersion, "test-service-pass");
+			UserAgentImpl userA = UserAgentImpl.createUserAgent("test-pass-a");
+
+			// start service instance on node 0
+			System.out.println("starting service on node 0");
+			service.unlock("test-service-pass");
+			nodes.get(0).storeAgent(service);
+			nodes.get(0).registerReceiver(service);
+
+			// UserA login at node 1
+			userA.unlock("test-pass-a");
+			nodes.get(1).storeAgent(userA);
+			Mediator mediatorA = nodes.get(1).createMediatorForAgent(userA);
+
+			// UserA uploads a file to the network
+			System.out.println("uploading file");
+			mediatorA.invoke(nameVersion, "storeFile",
+					new Serializable[] { TEST_IDENTIFIER, TEST_NAME, TEST_CONTENT, TEST_MIME, TEST_DESCRIPTION },
+					false);
+
+			// UserA computes a delta against the stored version
+			System.out.println("uploading delta");
+			@SuppressWarnings("unchecked")
+			Map<String, Object> signatures = (Map<String, Object>) mediatorA.invoke(nameVersion,
+					"getBlockSignatures", new Serializable[] { TEST_IDENTIFIER, 4 }, false);
+			long version = ((Number) signatures.get("version")).longValue();
+			ArrayList<Map<String, Object>> ops = new ArrayList<>(BlockDelta.diff(signatures, TEST_CONTENT2));
+			Assert.assertTrue(ops.stream().anyMatch(op -> op.containsKey(BlockDelta.OP_COPY)));
+			Assert.assertEquals((long) TEST_CONTENT2.length, mediatorA.invoke(nameVersion, "applyDelta",
+					new Serializable[] { TEST_IDENTIFIER, version, 4, ops, "" }, false));
+
+			// verify: content is replaced, metadata is kept
+			@SuppressWarnings("unchecked")
+			Map<String, Object> map = (Map<String, Object>) mediatorA.invoke(nameVersion, "fetchFile",
+					new Serializable[] { TEST_IDENTIFIER }, false);
+			Assert.assertArrayEquals(TEST_CONTENT2, (byte[]) map.get("content"));
+			Assert.assertEquals(TEST_NAME, map.get("name"));
+
+			// a delta against the outdated version is rejected
+			try {
+				mediatorA.invoke(nameVersion, "applyDelta",
+						new Serializable[] { TEST_IDENTIFIER, version, 4, ops, "" }, false);
+				Assert.fail("Exception expected");
+			} catch (Exception e) {
+				// expected
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail(e.toString());
+		}
+	}
+
+	@Test
+	public void testDeltaUploadByOtherUser() {
+		try {
+			// create agents
+			System.out.println("creating agents...");
+			ServiceNameVersion nameVersion = new ServiceNameVersion(FileService.class.getName(),
+					FileService.API_VERSION);
+			ServiceAgentImpl service = ServiceAgentImpl.createServiceAgent(nameVersion, "test-service-pass");
+			UserAgentImpl userA = UserAgentImpl.createUserAgent("test-pass-a");
+			UserAgentImpl userB = UserAgentImpl.createUserAgent("test-pass-b");
+			GroupAgentImpl groupAB = GroupAgentImpl.createGroupAgent(new Agent[] { userA, userB });
+
+			// start service instance on node 0
+			System.out.println("starting service on node 0");
+			service.unlock("test-service-pass");
+			nodes.get(0).storeAgent(service);
+			nodes.get(0).registerReceiver(service);
+
+			// UserA and UserB login at node 1
+			userA.unlock("test-pass-a");
+			nodes.get(1).storeAgent(userA);
+			Mediator mediatorA = nodes.get(1).createMediatorForAgent(userA);
+			userB.unlock("test-pass-b");
+			nodes.get(1).storeAgent(userB);
+			Mediator mediatorB = nodes.get(1).createMediatorForAgent(userB);
+
+			// store group in network
+			groupAB.unlock(userA);
+			nodes.get(1).storeAgent(groupAB);
+
+			// UserA uploads a file owned by UserA and one shared with groupAB
+			String sharedIdentifier = "shared.txt";
+			System.out.println("uploading files");
+			mediatorA.invoke(nameVersion, "storeFile",
+					new Serializable[] { TEST_IDENTIFIER, TEST_NAME, TEST_CONTENT, TEST_MIME, TEST_DESCRIPTION },
+					false);
+			mediatorA.invoke(nameVersion, "storeFile", new Serializable[] { sharedIdentifier, TEST_NAME, TEST_CONTENT,
+					TEST_MIME, groupAB.getIdentifier(), TEST_DESCRIPTION }, false);
+
+			// UserB must not replace the file of UserA
+			System.out.println("uploading delta as non owner");
+			@SuppressWarnings("unchecked")
+			Map<String, Object> signatures = (Map<String, Object>) mediatorB.invoke(nameVersion,
+					"getBlockSignatures", new Serializable[] { TEST_IDENTIFIER, 4 }, false);
+			ArrayList<Map<String, Object>> ops = new ArrayList<>(BlockDelta.diff(signatures, TEST_CONTENT2));
+			try {
+				mediatorB.invoke(nameVersion, "applyDelta", new Serializable[] { TEST_IDENTIFIER,
+						((Number) signatures.get("version")).longValue(), 4, ops, "" }, false);
+				Assert.fail("Exception expected");
+			} catch (Exception e) {
+				// expected, the owner is a user agent
+			}
+			@SuppressWarnings("unchecked")
+			Map<String, Object> map = (Map<String, Object>) mediatorA.invoke(nameVersion, "fetchFile",
+					new Serializable[] { TEST_IDENTIFIER }, false);
+			Assert.assertArrayEquals(TEST_CONTENT, (byte[]) map.get("content"));
+			Assert.assertEquals(userA.getIdentifier(), map.get("ownerId"));
+
+			// UserB is a member of the owning group and may replace the shared file
+			System.out.println("uploading delta as group member");
+			@SuppressWarnings("unchecked")
+			Map<String, Object> groupSignatures = (Map<String, Object>) mediatorB.invoke(nameVersion,
+					"getBlockSignatures", new Serializable[] { sharedIdentifier, 4 }, false);
+			ArrayList<Map<String, Object>> groupOps = new ArrayList<>(BlockDelta.diff(groupSignatures,
+					TEST_CONTENT2));
+			Assert.assertEquals((long) TEST_CONTENT2.length, mediatorB.invoke(nameVersion, "applyDelta",
+					new Serializable[] { sharedIdentifier, ((Number) groupSignatures.get("version")).longValue(), 4,
+							groupOps, "" }, false));
+			@SuppressWarnings("unchecked")
+			Map<String, Object> groupMap = (Map<String, Object>) mediatorA.invoke(nameVersion, "fetchFile",
+					new Serializable[] { sharedIdentifier }, false);
+			Assert.assertArrayEquals(TEST_CONTENT2, (byte[]) groupMap.get("content"));
+			Assert.assertEquals(groupAB.getIdentifier(), groupMap.get("ownerId"));
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail(e.toString());
+		}
+	}
+
+	@Test
+	public void testPublishSite() {
+		try {
+			// create agents
+			System.out.println("creating agents...");
+			ServiceNameVersion nameVersion = new ServiceNameVersion(FileService.class.getName(),
+					FileService.API_VERSION);
+			ServiceAgentImpl service = ServiceAgentImpl.createServiceAgent(nameVersion, "test-service-pass");
+			UserAgentImpl userA = UserAgentImpl.createUserAgent("test-pass-a");
+			UserAgentImpl userB = UserAgentImpl.createUserAgent("test-pass-b");
+
+			// start service instance on node 0
+			System.out.println("starting service on node 0");
+			service.unlock("test-service-pass");
+			nodes.get(0).storeAgent(service);
+			nodes.get(0).registerReceiver(service);
+
+			// UserA and UserB login at node 1
+			userA.unlock("test-pass-a");
+			nodes.get(1).storeAgent(userA);
+			Mediator mediatorA = nodes.get(1).createMediatorForAgent(userA);
+			userB.unlock("test-pass-b");
+			nodes.get(1).storeAgent(userB);
+			Mediator mediatorB = nodes.get(1).createMediatorForAgent(userB);
+
+			// UserA uploads the files of a site
+			System.out.println("uploading site files");
+			mediatorA.invoke(nameVersion, "storeFile",
+					new Serializable[] { "site/index.html", "index.html", TEST_CONTENT, "text/html", "" }, false);
+			mediatorA.invoke(nameVersion, "storeFile",
+					new Serializable[] { "site/app.js", "app.js", TEST_CONTENT2, "text/javascript", "" }, false);
+
+			// UserA publishes the site with a fallback for client side routes
+			System.out.println("publishing site");
+			HashMap<String, String> fallbacks = new HashMap<>();
+			fallbacks.put("", "index.html");
+			mediatorA.invoke(nameVersion, "publishSite", new Serializable[] { "site", fallbacks, new ArrayList<>() },
+					false);
+
+			// verify manifest
+			@SuppressWarnings("unchecked")
+			Map<String, Object> manifest = (Map<String, Object>) mediatorA.invoke(nameVersion, "getSite",
+					new Serializable[] { "site" }, false);
+			Map<?, ?> paths = (Map<?, ?>) manifest.get("paths");
+			Assert.assertEquals("site/index.html", paths.get(""));
+			Assert.assertEquals("site/app.js", paths.get("app.js"));
+			Assert.assertEquals("index.html", ((Map<?, ?>) manifest.get("fallbacks")).get(""));
+
+			// UserB must not replace the site of UserA
+			System.out.println("publishing site as other agent");
+			try {
+				mediatorB.invoke(nameVersion, "publishSite",
+						new Serializable[] { "site", new HashMap<>(), new ArrayList<>() }, false);
+				Assert.fail("Exception expected");
+			} catch (Exception e) {
+				// expected
+			}
+
+			// UserA must not claim a prefix with files of UserB
+			System.out.println("publishing site with files of other agent");
+			mediatorB.invoke(nameVersion, "storeFile",
+					new Serializable[] { "other/index.html", "index.html", TEST_CONTENT, "text/html", "" }, false);
+			try {
+				mediatorA.invoke(nameVersion, "publishSite",
+						new Serializable[] { "other", new HashMap<>(), new ArrayList<>() }, false);
+				Assert.fail("Exception expected");
+			} catch (Exception e) {
+				// expected
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			Assert.fail(e.toString());